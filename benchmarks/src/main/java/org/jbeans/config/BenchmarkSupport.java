@@ -0,0 +1,135 @@
+package org.jbeans.config;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.enterprise.inject.spi.AnnotatedField;
+import javax.enterprise.inject.spi.InjectionPoint;
+import org.jasypt.encryption.pbe.StandardPBEStringEncryptor;
+
+/**
+ * Shared setup of the benchmarks: the application settings the Configurator
+ * normally reads from jbeans-app.properties, generated properties files and
+ * injection points.
+ *
+ * @author jhogan
+ */
+final class BenchmarkSupport {
+
+    static final String APP_NAME = "jbeans-bench";
+    static final String PROPS_FILE = "bench.properties";
+    static final String PASSWORD_PROPERTY = "jbeans.bench.key";
+
+    // held so the level is not lost when the logger is garbage collected.
+    private static final Logger LOGGER = Logger.getLogger("org.jbeans.config");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+        Configurator.APPLICATION_NAME = APP_NAME;
+        Configurator.EXTERNAL_PROPS_FILE = PROPS_FILE;
+        Configurator.JASYPT_PW_ENV_PROPERTY_VALUE = PASSWORD_PROPERTY;
+        System.setProperty(PASSWORD_PROPERTY, "bench-password");
+    }
+
+    /*
+     * Fields to take injection points from.
+     */
+    static final class Beans {
+
+        @Configurable("bench.string")
+        String string;
+        @Configurable("bench.long")
+        long longValue;
+        @Configurable("bench.int")
+        int intValue;
+        @Configurable("bench.boolean")
+        boolean booleanValue;
+        @Configurable("bench.missing")
+        String missing;
+    }
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Makes sure the application settings are in place before a benchmark
+     * touches the Configurator or the provider.
+     */
+    static void init() {
+    }
+
+    /**
+     * @param name a field of Beans.
+     * @return an injection point for the field.
+     */
+    static InjectionPoint injectionPoint(String name) {
+        final Field field;
+        try {
+            field = Beans.class.getDeclaredField(name);
+        } catch (NoSuchFieldException ex) {
+            throw new IllegalArgumentException(name, ex);
+        }
+        final AnnotatedField<?> annotated = (AnnotatedField<?>) Proxy.newProxyInstance(BenchmarkSupport.class.getClassLoader(),
+                new Class<?>[]{AnnotatedField.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAnnotation":
+                            return field.getAnnotation((Class) args[0]);
+                        case "getJavaMember":
+                            return field;
+                        case "getBaseType":
+                            return field.getGenericType();
+                        default:
+                            return null;
+                    }
+                });
+        return (InjectionPoint) Proxy.newProxyInstance(BenchmarkSupport.class.getClassLoader(),
+                new Class<?>[]{InjectionPoint.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAnnotated":
+                            return annotated;
+                        case "getMember":
+                            return field;
+                        case "getType":
+                            return field.getGenericType();
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * Writes a properties file of generated keys.
+     *
+     * @param file the file to write.
+     * @param keys the number of keys.
+     * @param encryptEvery every how many values to encrypt, 0 for none.
+     */
+    static void writeProperties(Path file, int keys, int encryptEvery) throws IOException {
+        StandardPBEStringEncryptor encryptor = JbeansConfigurationProvider.newEncryptor();
+        // one ciphertext for all encrypted values, encrypting 10k values would take minutes.
+        String encrypted = "ENC(" + encryptor.encrypt("bench-secret") + ")";
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.ISO_8859_1)) {
+            out.write("# generated by the jbeans-config benchmarks\n");
+            for (int i = 0; i < keys; i++) {
+                String value = encryptEvery > 0 && i % encryptEvery == 0 ? encrypted : "value-" + i + "-of-the-benchmark";
+                out.write("bench.group" + (i % 100) + ".key" + i + "=" + value + "\n");
+            }
+        }
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                Files.delete(f);
+            }
+        }
+        Files.delete(dir);
+    }
+}
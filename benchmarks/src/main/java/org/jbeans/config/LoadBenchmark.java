@@ -0,0 +1,76 @@
+package org.jbeans.config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The load path: parsing the external properties file and a full
+ * initializeProps(), on files of 100 to 100k keys, without and with ENC(...)
+ * values, one in ten. Encrypted values are decrypted lazily, so the load
+ * only detects them.
+ *
+ * @author jhogan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    int keys;
+
+    @Param({"false", "true"})
+    boolean encrypted;
+
+    @Param({"heap", "offheap"})
+    String store;
+
+    Path dir;
+    Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkSupport.init();
+        Configurator.STORE_MODE = store;
+        dir = Files.createTempDirectory("jbeans-bench");
+        file = dir.resolve(BenchmarkSupport.PROPS_FILE);
+        BenchmarkSupport.writeProperties(file, keys, encrypted ? 10 : 0);
+        JbeansConfigurationProvider.APP_CONFIG_DIR = dir.toString();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        JbeansConfigurationProvider.APP_CONFIG_DIR = null;
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public Map<String, String> parse() throws IOException {
+        return PropertiesFormat.load(file);
+    }
+
+    @Benchmark
+    public JbeansConfigurationProvider initializeProps() throws ConfigurationException {
+        JbeansConfigurationProvider provider = new JbeansConfigurationProvider();
+        provider.initializeProps();
+        return provider;
+    }
+}
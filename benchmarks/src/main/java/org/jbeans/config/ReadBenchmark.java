@@ -0,0 +1,115 @@
+package org.jbeans.config;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.enterprise.inject.spi.InjectionPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The read path: the producer methods, getEntry, the handling of a property
+ * that is not configured and feature flag evaluation, with and without per
+ * key metrics.
+ *
+ * @author jhogan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadBenchmark {
+
+    @Param({"false", "true"})
+    boolean metrics;
+
+    Configurator configurator;
+    InjectionPoint string;
+    InjectionPoint longValue;
+    InjectionPoint intValue;
+    InjectionPoint booleanValue;
+    InjectionPoint missing;
+    FeatureFlags features;
+
+    @Setup
+    public void setUp() {
+        BenchmarkSupport.init();
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            values.put("bench.key" + i, "value-" + i);
+        }
+        values.put("bench.string", "a string");
+        values.put("bench.long", "1234567890123");
+        values.put("bench.int", "42");
+        values.put("bench.boolean", "true");
+        values.put("feature.bench-flag.rollout", "30");
+        values.put("feature.bench-flag.deny", "tenant-1,tenant-2");
+
+        configurator = new Configurator();
+        configurator.configuration = new ConfigurationStore();
+        configurator.configuration.replace(values);
+        configurator.metrics.setEnabled(metrics);
+        configurator.markReady();
+
+        string = BenchmarkSupport.injectionPoint("string");
+        longValue = BenchmarkSupport.injectionPoint("longValue");
+        intValue = BenchmarkSupport.injectionPoint("intValue");
+        booleanValue = BenchmarkSupport.injectionPoint("booleanValue");
+        missing = BenchmarkSupport.injectionPoint("missing");
+        features = configurator.getFeatureFlags();
+    }
+
+    @Benchmark
+    public String getString() {
+        return configurator.getString(string);
+    }
+
+    @Benchmark
+    public long getLong() throws ConfigurationException {
+        return configurator.getLong(longValue);
+    }
+
+    @Benchmark
+    public int getInteger() throws ConfigurationException {
+        return configurator.getInteger(intValue);
+    }
+
+    @Benchmark
+    public boolean getBoolean() throws ConfigurationException {
+        return configurator.getBoolean(booleanValue);
+    }
+
+    @Benchmark
+    public String getEntry() {
+        return configurator.getEntry("bench.key500");
+    }
+
+    /**
+     * getValueForKey for a property that is not configured, recorded by the
+     * miss tracker.
+     */
+    @Benchmark
+    public String getStringMiss() {
+        return configurator.getString(missing);
+    }
+
+    /**
+     * A percentage rollout decided for a tenant id, run with -prof gc to see
+     * that it allocates nothing.
+     */
+    @Benchmark
+    public boolean isFeatureEnabled() {
+        return features.isEnabled("bench-flag", "tenant-42");
+    }
+}
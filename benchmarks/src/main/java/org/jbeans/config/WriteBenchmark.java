@@ -0,0 +1,82 @@
+package org.jbeans.config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The write path: saveOrUpdateProperties from concurrent writers, each call
+ * waiting until its change is on disk.
+ *
+ * @author jhogan
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class WriteBenchmark {
+
+    @Param({"1000"})
+    int keys;
+
+    @Param({"0", "50"})
+    long delayMillis;
+
+    Path dir;
+    JbeansConfigurationProvider provider;
+
+    @State(Scope.Thread)
+    public static class Writer {
+
+        private static int writers;
+        final String prefix;
+        int count;
+
+        public Writer() {
+            synchronized (Writer.class) {
+                prefix = "bench.writer" + (writers++) + ".key";
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException, ConfigurationException {
+        BenchmarkSupport.init();
+        Configurator.STORE_MODE = "heap";
+        Configurator.WRITE_DELAY_MILLIS = delayMillis;
+        dir = Files.createTempDirectory("jbeans-bench");
+        BenchmarkSupport.writeProperties(dir.resolve(BenchmarkSupport.PROPS_FILE), keys, 0);
+        JbeansConfigurationProvider.APP_CONFIG_DIR = dir.toString();
+        provider = new JbeansConfigurationProvider();
+        provider.initializeProps();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        provider.close();
+        JbeansConfigurationProvider.APP_CONFIG_DIR = null;
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public void saveOrUpdateProperties(Writer writer) throws ConfigurationException {
+        provider.saveOrUpdateProperties(writer.prefix + (writer.count++ % 100), Integer.toString(writer.count));
+    }
+}
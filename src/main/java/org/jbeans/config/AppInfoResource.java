@@ -10,7 +10,10 @@ import javax.inject.Inject;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 
 import java.util.logging.Logger;
@@ -41,9 +44,10 @@ public class AppInfoResource {
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getAll() {
-        LOGGER.info("Return appinfo in JSON format");
-        return Response.ok(config.getJbeansConfiguration()).build();
+    public Response getAll(@QueryParam("prefix") String prefix, @QueryParam("keys") String keys,
+            @Context Request request) {
+        LOGGER.fine("Return appinfo in JSON format");
+        return config.getManifestProperties(prefix, keys, request);
     }
 
     @GET
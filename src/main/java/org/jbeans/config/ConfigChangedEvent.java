@@ -0,0 +1,76 @@
+package org.jbeans.config;
+
+import java.util.Set;
+
+/**
+ * CDI event fired by the Configurator when a reload or an admin update
+ * changes the configuration, once per change with all changed keys, and
+ * once for every observed namespace whose keys were added, removed or
+ * changed. A reload that changes nothing fires nothing.
+ *
+ * @see ConfigPrefix
+ *
+ * @author jhogan
+ */
+public class ConfigChangedEvent {
+
+    private final String prefix;
+    private final ConfigurationDelta delta;
+    private final ConfigurationSnapshot previous;
+    private final ConfigurationSnapshot snapshot;
+
+    ConfigChangedEvent(String prefix, ConfigurationDelta delta, ConfigurationSnapshot previous, ConfigurationSnapshot snapshot) {
+        this.prefix = prefix;
+        this.delta = delta;
+        this.previous = previous;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return the namespace this event was fired for, "" for all keys.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the added, removed and changed keys of this event's namespace.
+     */
+    public ConfigurationDelta getDelta() {
+        return delta;
+    }
+
+    /**
+     * @return every added, removed or changed key of this event's namespace.
+     */
+    public Set<String> getKeys() {
+        return delta.getKeys();
+    }
+
+    public long getPreviousVersion() {
+        return previous.getVersion();
+    }
+
+    public long getVersion() {
+        return snapshot.getVersion();
+    }
+
+    /**
+     * @return the configuration before the change.
+     */
+    public ConfigurationSnapshot getPreviousSnapshot() {
+        return previous;
+    }
+
+    /**
+     * @return the configuration with the change applied.
+     */
+    public ConfigurationSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigChangedEvent{prefix=" + prefix + ", version=" + getVersion() + ", " + delta + "}";
+    }
+}
@@ -0,0 +1,54 @@
+package org.jbeans.config;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import javax.enterprise.util.AnnotationLiteral;
+import javax.inject.Qualifier;
+
+/**
+ *
+ * @author jhogan
+ *
+ * Qualifier used to observe configuration changes for one key namespace. The
+ * observers of a namespace are told about a change with a
+ * {@link ConfigChangedEvent} with only the keys of that namespace.  A namespace
+ * is any dot separated prefix of a key, or the key itself. The empty namespace
+ * receives one event with all changed keys.
+ *
+ * EXAMPLE USE IN A CLASS:
+ * void onDbChange(@Observes @ConfigPrefix("db.primary") ConfigChangedEvent event) {...}
+ * void onAnyChange(@Observes @ConfigPrefix("") ConfigChangedEvent event) {...}
+ *
+ * An observer without any qualifier receives the one event with all changed
+ * keys, like @ConfigPrefix(""). The observers of other namespaces are found
+ * when the application is deployed, see ConfigPrefixObservers, and called
+ * on the thread that published the change, transaction phases do not apply
+ * to them.
+ */
+@Qualifier
+@Target({ElementType.FIELD, ElementType.TYPE, ElementType.METHOD, ElementType.PARAMETER})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ConfigPrefix {
+
+    String value();
+
+    /**
+     * Supports inline instantiation of the ConfigPrefix qualifier.
+     */
+    public static final class Literal extends AnnotationLiteral<ConfigPrefix> implements ConfigPrefix {
+
+        private static final long serialVersionUID = 1L;
+        private final String value;
+
+        public Literal(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String value() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.jbeans.config;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.spi.Extension;
+import javax.enterprise.inject.spi.ObserverMethod;
+import javax.enterprise.inject.spi.ProcessObserverMethod;
+
+/**
+ * Collects the observers of {@link ConfigChangedEvent} qualified with a
+ * namespace, @ConfigPrefix("db.primary"), when the application is deployed.
+ *
+ * The Configurator fires one event per change for the observers without a
+ * namespace and notifies each namespace observer found here with the keys of
+ * its namespace only, so neither gets an event per namespace of every changed
+ * key.
+ *
+ * @author jhogan
+ */
+public class ConfigPrefixObservers implements Extension {
+
+    // written while the container deploys, read only afterwards.
+    private final Map<String, List<ObserverMethod<ConfigChangedEvent>>> observers = new HashMap<>();
+
+    void observerFound(@Observes ProcessObserverMethod<ConfigChangedEvent, ?> event) {
+        ObserverMethod<ConfigChangedEvent> observer = event.getObserverMethod();
+        for (Annotation qualifier : observer.getObservedQualifiers()) {
+            if (qualifier instanceof ConfigPrefix && !((ConfigPrefix) qualifier).value().isEmpty()) {
+                add(((ConfigPrefix) qualifier).value(), observer);
+            }
+        }
+    }
+
+    synchronized void add(String namespace, ObserverMethod<ConfigChangedEvent> observer) {
+        observers.computeIfAbsent(namespace, key -> new ArrayList<>(1)).add(observer);
+    }
+
+    /**
+     * @return the observers of each namespace, "" not included.
+     */
+    synchronized Map<String, List<ObserverMethod<ConfigChangedEvent>>> getObservers() {
+        return Collections.unmodifiableMap(observers);
+    }
+}
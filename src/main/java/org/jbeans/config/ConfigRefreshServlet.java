@@ -59,7 +59,7 @@ public class ConfigRefreshServlet extends HttpServlet {
             out.println("</head>");
             out.println("<body>");
             if (Configurator.APP_CONFIG_ADMIN_ENABLED){
-                config.mergeWithCustomConfiguration();
+                config.refreshConfiguration();
                 out.println("<h1>ConfigRefreshServlet reloaded properties ok for app: "+Configurator.APPLICATION_NAME+".</h1>");
             }
             else {
@@ -0,0 +1,179 @@
+package org.jbeans.config;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+/**
+ * A live handle to a single configuration property. Unlike a plain injected
+ * String or long, a ConfigValue always returns the value of the most recently
+ * published configuration, so reloads and admin updates reach beans that
+ * already exist.
+ *
+ * EXAMPLE USE IN A CLASS:
+ * @Inject @Configurable("jbeans.demo.int") ConfigValue<Integer> demoInt;
+ *
+ * The key is resolved once, when the handle is created. {@link #get()} costs
+ * one volatile read of the current snapshot and a version compare, the
+ * converted value is cached per snapshot version so reads allocate nothing
+ * and never lock.
+ *
+ * @param <T> String, Long, Integer, Float, Double or Boolean.
+ *
+ * @author jhogan
+ */
+public final class ConfigValue<T> {
+
+    /**
+     * Called after a published configuration changed the value of a key.
+     *
+     * @param <T> the type of the ConfigValue being listened to.
+     */
+    public interface ChangeListener<T> {
+
+        void changed(String key, T oldValue, T newValue);
+    }
+
+    private static final SecretResolver PLAINTEXT = new SecretResolver(null);
+
+    /*
+     * The converted value together with the snapshot version, raw string and
+     * resolver it was converted with. Replaced as a whole so readers never
+     * see a value paired with the wrong version.
+     */
+    private static final class Cached<T> {
+
+        final long version;
+        final String raw;
+        final SecretResolver resolver;
+        final T value;
+
+        Cached(long version, String raw, SecretResolver resolver, T value) {
+            this.version = version;
+            this.raw = raw;
+            this.resolver = resolver;
+            this.value = value;
+        }
+    }
+
+    private final String key;
+    private final ValueType type;
+    private final ConfigurationStore store;
+    private final Supplier<SecretResolver> secrets;
+    private final List<ConfigurationStore.Listener> registrations = new CopyOnWriteArrayList<>();
+    private volatile Cached<T> cached;
+
+    ConfigValue(String key, ValueType type, ConfigurationStore store) {
+        this(key, type, store, () -> PLAINTEXT);
+    }
+
+    /*
+     * The resolver is looked up on every conversion, the Configurator only
+     * has the encryptor once the providers are loaded, which may be after
+     * the handle was created.
+     */
+    ConfigValue(String key, ValueType type, ConfigurationStore store, Supplier<SecretResolver> secrets) {
+        this.key = key;
+        this.type = type;
+        this.store = store;
+        this.secrets = secrets;
+        this.cached = new Cached<>(-1L, null, null, null);
+    }
+
+    /**
+     * @return the configuration key this handle is bound to.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the value of the key in the current configuration, or the
+     * type's default (null, 0 or false) if it is not configured.
+     * @throws IllegalStateException if the configured value cannot be
+     * converted, caused by a ConfigurationException naming the key.
+     */
+    public T get() {
+        ConfigurationSnapshot snapshot = store.current();
+        Cached<T> current = cached;
+        if (current.version == snapshot.getVersion()) {
+            return current.value;
+        }
+        return refresh(snapshot, current);
+    }
+
+    /**
+     * @param defaultValue returned if the key is not configured.
+     * @return the current value, or defaultValue.
+     */
+    public T orElse(T defaultValue) {
+        return isConfigured() ? get() : defaultValue;
+    }
+
+    /**
+     * @return true if the key exists in the current configuration.
+     */
+    public boolean isConfigured() {
+        return store.current().containsKey(key);
+    }
+
+    /**
+     * Register a callback for changes of this key. The callback runs on the
+     * thread that published the change, and only if the value of this key
+     * changed.
+     *
+     * @param listener the callback.
+     * @return this ConfigValue.
+     */
+    public ConfigValue<T> onChange(final ChangeListener<? super T> listener) {
+        ConfigurationStore.Listener registration = (previous, next, delta) -> {
+            if (delta.contains(key)) {
+                SecretResolver resolver = secrets.get();
+                T oldValue = convert(resolver.resolve(key, previous.get(key)));
+                listener.changed(key, oldValue, convert(resolver.resolve(key, next.get(key))));
+            }
+        };
+        registrations.add(registration);
+        store.addListener(registration);
+        return this;
+    }
+
+    /**
+     * Unregister all change callbacks of this ConfigValue. Beans with a
+     * shorter life than the application should call this from @PreDestroy.
+     */
+    public void close() {
+        for (ConfigurationStore.Listener registration : registrations) {
+            store.removeListener(registration);
+        }
+        registrations.clear();
+    }
+
+    private T refresh(ConfigurationSnapshot snapshot, Cached<T> current) {
+        String raw = snapshot.get(key);
+        SecretResolver resolver = secrets.get();
+        T value;
+        if (current.version >= 0 && Objects.equals(raw, current.raw) && resolver == current.resolver) {
+            value = current.value;
+        } else {
+            value = convert(resolver.resolve(key, raw));
+        }
+        cached = new Cached<>(snapshot.getVersion(), raw, resolver, value);
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T convert(String raw) {
+        try {
+            return (T) type.convert(key, raw);
+        } catch (ConfigurationException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigValue{key=" + key + ", type=" + type + "}";
+    }
+}
@@ -0,0 +1,117 @@
+package org.jbeans.config;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * A live view of the properties below one namespace, with keys relative to
+ * the namespace. A view of db.primary returns db.primary.url as url.
+ *
+ * EXAMPLE USE IN A CLASS:
+ * @Inject @Configurable("db.primary") ConfigView datasource;
+ * ...
+ * String url = datasource.get("url");
+ *
+ * Like {@link ConfigValue} a view always reads the current configuration.
+ * {@link #asMap()} uses the prefix index of the snapshot and is built once
+ * per snapshot. Encrypted values are returned decrypted.
+ *
+ * @author jhogan
+ */
+public final class ConfigView {
+
+    private static final class Cached {
+
+        final ConfigurationSnapshot snapshot;
+        final SecretResolver resolver;
+        final SortedMap<String, String> values;
+
+        Cached(ConfigurationSnapshot snapshot, SecretResolver resolver, SortedMap<String, String> values) {
+            this.snapshot = snapshot;
+            this.resolver = resolver;
+            this.values = values;
+        }
+    }
+
+    private final String namespace;
+    private final String prefix;
+    private final ConfigurationStore store;
+    private final Supplier<SecretResolver> secrets;
+    private volatile Cached cached = new Cached(null, null, null);
+
+    /*
+     * The resolver is looked up on every read, see ConfigValue.
+     */
+    ConfigView(String namespace, ConfigurationStore store, Supplier<SecretResolver> secrets) {
+        this.namespace = namespace.endsWith(".") ? namespace.substring(0, namespace.length() - 1) : namespace;
+        this.prefix = this.namespace.isEmpty() ? "" : this.namespace + ".";
+        this.store = store;
+        this.secrets = secrets;
+    }
+
+    /**
+     * @return the namespace of this view, e.g. db.primary.
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * @param key a key relative to the namespace, e.g. url.
+     * @return the current value, or null if it is not configured.
+     */
+    public String get(String key) {
+        String fullKey = prefix + key;
+        return secrets.get().resolve(fullKey, store.current().get(fullKey));
+    }
+
+    /**
+     * @param key a key relative to the namespace.
+     * @param defaultValue returned if the key is not configured.
+     * @return the current value, or defaultValue.
+     */
+    public String get(String key, String defaultValue) {
+        String value = get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public boolean containsKey(String key) {
+        return store.current().containsKey(prefix + key);
+    }
+
+    /**
+     * @param namespace a namespace relative to this one, e.g. pool.
+     * @return a view of namespace below this one, db.primary.pool.
+     */
+    public ConfigView view(String namespace) {
+        return new ConfigView(prefix + namespace, store, secrets);
+    }
+
+    /**
+     * @return the current properties of the namespace with relative keys, in
+     * key order.
+     */
+    public SortedMap<String, String> asMap() {
+        ConfigurationSnapshot snapshot = store.current();
+        SecretResolver resolver = secrets.get();
+        Cached current = cached;
+        if (current.snapshot == snapshot && current.resolver == resolver) {
+            return current.values;
+        }
+        SortedMap<String, String> values = new TreeMap<>();
+        for (Map.Entry<String, String> entry : snapshot.getByPrefix(namespace).entrySet()) {
+            values.put(entry.getKey().substring(prefix.length()), resolver.resolve(entry.getKey(), entry.getValue()));
+        }
+        values = Collections.unmodifiableSortedMap(values);
+        cached = new Cached(snapshot, resolver, values);
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigView{namespace=" + namespace + "}";
+    }
+}
@@ -0,0 +1,160 @@
+package org.jbeans.config;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The keys added, removed and changed between two configuration snapshots.
+ *
+ * @author jhogan
+ */
+public final class ConfigurationDelta {
+
+    static final ConfigurationDelta EMPTY = new ConfigurationDelta(
+            Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet());
+
+    private final Set<String> added;
+    private final Set<String> removed;
+    private final Set<String> changed;
+
+    ConfigurationDelta(Set<String> added, Set<String> removed, Set<String> changed) {
+        this.added = Collections.unmodifiableSet(added);
+        this.removed = Collections.unmodifiableSet(removed);
+        this.changed = Collections.unmodifiableSet(changed);
+    }
+
+    /**
+     * Compare every key of two configurations.
+     */
+    static ConfigurationDelta between(Map<String, String> previous, Map<String, String> next) {
+        Set<String> added = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, String> entry : next.entrySet()) {
+            String old = previous.get(entry.getKey());
+            if (old == null) {
+                added.add(entry.getKey());
+            } else if (!old.equals(entry.getValue())) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String key : previous.keySet()) {
+            if (!next.containsKey(key)) {
+                removed.add(key);
+            }
+        }
+        return of(added, removed, changed);
+    }
+
+    /**
+     * Compare only the given keys of two configurations, for changes that
+     * are known to have touched nothing else.
+     */
+    static ConfigurationDelta between(Map<String, String> previous, Map<String, String> next, Collection<String> keys) {
+        return between(previous::get, next::get, keys);
+    }
+
+    /**
+     * Compare only the given keys of two configurations, given as lookup
+     * functions.
+     */
+    static ConfigurationDelta between(Function<String, String> previous, Function<String, String> next, Collection<String> keys) {
+        Set<String> added = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+        Set<String> changed = new HashSet<>();
+        for (String key : keys) {
+            String old = previous.apply(key);
+            String value = next.apply(key);
+            if (old == null && value != null) {
+                added.add(key);
+            } else if (old != null && value == null) {
+                removed.add(key);
+            } else if (!Objects.equals(old, value)) {
+                changed.add(key);
+            }
+        }
+        return of(added, removed, changed);
+    }
+
+    static ConfigurationDelta of(Set<String> added, Set<String> removed, Set<String> changed) {
+        if (added.isEmpty() && removed.isEmpty() && changed.isEmpty()) {
+            return EMPTY;
+        }
+        return new ConfigurationDelta(added, removed, changed);
+    }
+
+    /**
+     * @return keys that did not exist before.
+     */
+    public Set<String> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return keys that no longer exist.
+     */
+    public Set<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return keys whose value changed.
+     */
+    public Set<String> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return every added, removed or changed key.
+     */
+    public Set<String> getKeys() {
+        Set<String> keys = new HashSet<>(added);
+        keys.addAll(removed);
+        keys.addAll(changed);
+        return Collections.unmodifiableSet(keys);
+    }
+
+    public boolean contains(String key) {
+        return added.contains(key) || removed.contains(key) || changed.contains(key);
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    public int size() {
+        return added.size() + removed.size() + changed.size();
+    }
+
+    /*
+     * The changes of one namespace, the key itself and the keys below it,
+     * db.primary.url and db.primary for db.primary. The "" namespace is this
+     * delta.
+     */
+    ConfigurationDelta forNamespace(String namespace) {
+        if (namespace.isEmpty()) {
+            return this;
+        }
+        return of(inNamespace(added, namespace), inNamespace(removed, namespace), inNamespace(changed, namespace));
+    }
+
+    private static Set<String> inNamespace(Set<String> keys, String namespace) {
+        Set<String> matches = new HashSet<>();
+        for (String key : keys) {
+            if (key.startsWith(namespace) && (key.length() == namespace.length() || key.charAt(namespace.length()) == '.')) {
+                matches.add(key);
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigurationDelta{added=" + added + ", removed=" + removed + ", changed=" + changed + "}";
+    }
+}
@@ -10,5 +10,9 @@ public class ConfigurationException extends Exception {
     public ConfigurationException(String message) {
         super(message);
     }
+
+    public ConfigurationException(String message, Throwable cause) {
+        super(message, cause);
+    }
     
 }
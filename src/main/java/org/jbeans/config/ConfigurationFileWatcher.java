@@ -0,0 +1,266 @@
+package org.jbeans.config;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Watches the external properties file and reloads the configuration when
+ * its content changes.
+ *
+ * In WATCH mode a java.nio WatchService on the config directory reports
+ * changes, in POLL mode the file's modification time and size are checked at
+ * a fixed interval, for file systems (NFS, some container mounts) where watch
+ * events are unreliable. WATCH mode falls back to POLL if the file system has
+ * no WatchService.
+ *
+ * Bursts of events, like an editor's save, are debounced: the reload happens
+ * once the file has been quiet for the debounce interval. A reload is only
+ * performed if the CRC32 checksum of the file content changed, otherwise it
+ * is counted as skipped. A write of the application itself, see
+ * WriteBehindPersister.Listener, is already in memory and not reloaded.
+ *
+ * @author jhogan
+ */
+final class ConfigurationFileWatcher implements Runnable {
+
+    enum Mode {
+        NONE, WATCH, POLL;
+
+        static Mode of(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return NONE;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                LOGGER.log(Level.WARNING, "Unknown watch mode {0}, file watching disabled", value);
+                return NONE;
+            }
+        }
+    }
+
+    interface ReloadAction {
+
+        void reload() throws ConfigurationException;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigurationFileWatcher.class.getName());
+
+    private final Path file;
+    private final Mode mode;
+    private final long debounceMillis;
+    private final long pollMillis;
+    private final ReloadAction action;
+    private final ConfigurationMetrics metrics;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    // the checksum of the content in memory, guarded by this.
+    private long lastChecksum;
+    // only used by the watcher thread once started.
+    private long lastModified;
+    private long lastSize;
+
+    ConfigurationFileWatcher(Path file, Mode mode, long debounceMillis, long pollMillis,
+            ReloadAction action, ConfigurationMetrics metrics) {
+        this.file = file.toAbsolutePath();
+        this.mode = mode;
+        this.debounceMillis = debounceMillis;
+        this.pollMillis = pollMillis;
+        this.action = action;
+        this.metrics = metrics;
+    }
+
+    void start() {
+        long checksum;
+        try {
+            checksum = checksum();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Unable to read {0}, the first change will reload it", file);
+            checksum = -1L;
+        }
+        synchronized (this) {
+            lastChecksum = checksum;
+        }
+        lastModified = file.toFile().lastModified();
+        lastSize = file.toFile().length();
+        running = true;
+        thread = new Thread(this, "jbeans-config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        LOGGER.log(Level.INFO, "Watching {0} for changes, mode= {1}", new Object[]{file, mode});
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Takes a write of the application as loaded, if it changed the content
+     * that was loaded last. A write on top of an edit that was not reloaded
+     * yet still reloads the file.
+     *
+     * @param written the file written.
+     * @param before the checksum of the content the write started from.
+     * @param after the checksum of the content written.
+     */
+    void written(Path written, long before, long after) {
+        if (file.equals(written.toAbsolutePath())) {
+            synchronized (this) {
+                if (lastChecksum == before) {
+                    lastChecksum = after;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        if (mode == Mode.WATCH && watch()) {
+            return;
+        }
+        poll();
+    }
+
+    /*
+     * Returns false if watching is not possible and the caller should poll.
+     */
+    private boolean watch() {
+        Path dir = file.getParent();
+        WatchService watchService;
+        try {
+            watchService = dir.getFileSystem().newWatchService();
+            dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException ex) {
+            LOGGER.log(Level.WARNING, "No WatchService for {0}, falling back to polling", dir);
+            return false;
+        }
+        try {
+            boolean pending = false;
+            while (running) {
+                WatchKey key = pending ? watchService.poll(debounceMillis, TimeUnit.MILLISECONDS) : watchService.take();
+                if (key == null) {
+                    // quiet for debounceMillis after the last event.
+                    pending = false;
+                    checkForChange();
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW || file.getFileName().equals(event.context())) {
+                        pending = true;
+                    }
+                }
+                if (!key.reset()) {
+                    LOGGER.log(Level.WARNING, "Watch on {0} is no longer valid, falling back to polling", dir);
+                    return false;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException ex) {
+            LOGGER.log(Level.FINE, "WatchService closed", ex);
+        } finally {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, null, ex);
+            }
+        }
+        return true;
+    }
+
+    private void poll() {
+        try {
+            while (running) {
+                Thread.sleep(pollMillis);
+                long modified = file.toFile().lastModified();
+                long size = file.toFile().length();
+                if (modified == lastModified && size == lastSize) {
+                    continue;
+                }
+                lastModified = modified;
+                lastSize = size;
+                Thread.sleep(debounceMillis);
+                if (file.toFile().lastModified() == lastModified && file.toFile().length() == lastSize) {
+                    checkForChange();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Reloads if the file content checksum changed since the last reload.
+     */
+    void checkForChange() {
+        long checksum;
+        try {
+            checksum = checksum();
+        } catch (NoSuchFileException ex) {
+            LOGGER.log(Level.INFO, "{0} is missing, keeping the current configuration", file);
+            metrics.reloadSkipped();
+            return;
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Unable to read " + file, ex);
+            metrics.reloadFailed();
+            return;
+        }
+        synchronized (this) {
+            if (checksum == lastChecksum) {
+                LOGGER.log(Level.FINE, "{0} content unchanged, reload skipped", file);
+                metrics.reloadSkipped();
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            action.reload();
+            synchronized (this) {
+                lastChecksum = checksum;
+            }
+            long elapsed = System.nanoTime() - start;
+            metrics.reloaded(elapsed);
+            LOGGER.log(Level.INFO, "Reloaded {0} in {1} ms", new Object[]{file, TimeUnit.NANOSECONDS.toMillis(elapsed)});
+        } catch (ConfigurationException | RuntimeException ex) {
+            metrics.reloadFailed();
+            LOGGER.log(Level.SEVERE, "Unable to reload " + file, ex);
+        }
+    }
+
+    private long checksum() throws IOException {
+        return checksum(ByteBuffer.wrap(Files.readAllBytes(file)));
+    }
+
+    /**
+     * @param content the content of a file, from 0 to its limit, its
+     * position is not changed.
+     * @return the CRC32 checksum of the content.
+     */
+    static long checksum(ByteBuffer content) {
+        ByteBuffer all = content.duplicate();
+        all.position(0);
+        CRC32 crc = new CRC32();
+        crc.update(all);
+        return crc.getValue();
+    }
+}
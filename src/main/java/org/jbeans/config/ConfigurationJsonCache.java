@@ -0,0 +1,158 @@
+package org.jbeans.config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serializes configuration snapshots to JSON once per snapshot and filter, so
+ * clients polling an unchanged configuration cost a map lookup.
+ *
+ * Only the responses of the current snapshot are kept, a new snapshot drops
+ * them. Values are written as they are stored, encrypted values stay
+ * ciphertext.
+ *
+ * @author jhogan
+ */
+final class ConfigurationJsonCache {
+
+    // filters are client input, cache at most this many per snapshot.
+    private static final int MAX_RESPONSES = 64;
+
+    private static final class Responses {
+
+        final ConfigurationSnapshot snapshot;
+        final Map<String, byte[]> json = new ConcurrentHashMap<>();
+
+        Responses(ConfigurationSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+    }
+
+    private volatile Responses responses = new Responses(null);
+
+    /**
+     * @param snapshot the snapshot to serialize.
+     * @param prefix only keys equal to prefix or below it, prefix.*, null for
+     * all keys.
+     * @param keys only these comma separated keys, null for all keys.
+     * @return the filtered snapshot as UTF-8 encoded JSON, keys in order.
+     */
+    byte[] get(ConfigurationSnapshot snapshot, String prefix, String keys) {
+        Responses current = responses;
+        if (current.snapshot != snapshot) {
+            current = new Responses(snapshot);
+            responses = current;
+        }
+        String filter = normalize(prefix) + '\n' + String.join(",", parseKeys(keys));
+        byte[] json = current.json.get(filter);
+        if (json == null) {
+            json = toJson(filter(snapshot, prefix, keys));
+            if (current.json.size() < MAX_RESPONSES) {
+                current.json.put(filter, json);
+            }
+        }
+        return json;
+    }
+
+    static SortedMap<String, String> filter(ConfigurationSnapshot snapshot, String prefix, String keys) {
+        String normalized = normalize(prefix);
+        TreeSet<String> selected = parseKeys(keys);
+        SortedMap<String, String> filtered;
+        if (!selected.isEmpty()) {
+            filtered = new TreeMap<>();
+            for (String key : selected) {
+                String value = snapshot.get(key);
+                if (value != null && isBelow(key, normalized)) {
+                    filtered.put(key, value);
+                }
+            }
+        } else if (normalized.isEmpty()) {
+            filtered = new TreeMap<>(snapshot.asMap());
+        } else {
+            filtered = new TreeMap<>(snapshot.getByPrefix(normalized));
+            if (snapshot.containsKey(normalized)) {
+                filtered.put(normalized, snapshot.get(normalized));
+            }
+        }
+        return filtered;
+    }
+
+    private static boolean isBelow(String key, String prefix) {
+        if (prefix.isEmpty() || key.equals(prefix)) {
+            return true;
+        }
+        return key.startsWith(prefix) && (prefix.endsWith(".") || key.charAt(prefix.length()) == '.');
+    }
+
+    private static String normalize(String prefix) {
+        return prefix == null ? "" : prefix.trim();
+    }
+
+    private static TreeSet<String> parseKeys(String keys) {
+        TreeSet<String> parsed = new TreeSet<>();
+        if (keys != null) {
+            for (String key : keys.split(",")) {
+                if (!key.trim().isEmpty()) {
+                    parsed.add(key.trim());
+                }
+            }
+        }
+        return parsed;
+    }
+
+    static byte[] toJson(Map<String, String> values) {
+        StringBuilder json = new StringBuilder(values.size() * 48 + 2);
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendString(json, entry.getKey());
+            json.append(':');
+            appendString(json, entry.getValue());
+        }
+        json.append('}');
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,127 @@
+package org.jbeans.config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One source of properties in a layered {@link ConfigurationSnapshot}, for
+ * example jbeans-app.properties, a configuration provider or the runtime
+ * properties. A snapshot looks a key up in its layers in priority order, the
+ * first layer that has the key supplies the value.
+ *
+ * A layer is immutable and shared between snapshots, publishing a change of
+ * one layer does not copy the others.
+ *
+ * @author jhogan
+ */
+public final class ConfigurationLayer {
+
+    /**
+     * The layer changes made through the store, put, remove and update, are
+     * kept in. It is the highest priority layer of a snapshot.
+     */
+    static final String OVERRIDES = "overrides";
+
+    /**
+     * The layer of a snapshot created from a single map.
+     */
+    static final String DEFAULT = "default";
+
+    private final String name;
+    private final Map<String, String> source;
+    private final Map<String, String> values;
+    private final boolean removes;
+    // the keys in order, built on the first namespace query.
+    private volatile String[] sortedKeys;
+
+    /**
+     * The layer takes ownership of the values map, callers must not change it
+     * after construction.
+     *
+     * @param name the name of the source of the properties.
+     * @param values the properties of the source.
+     */
+    ConfigurationLayer(String name, Map<String, String> values) {
+        this(name, values, false);
+    }
+
+    /*
+     * A layer with removes maps removed keys to null, hiding the key in the
+     * layers below.
+     */
+    private ConfigurationLayer(String name, Map<String, String> values, boolean removes) {
+        this.name = name;
+        this.source = values;
+        this.values = Collections.unmodifiableMap(values);
+        this.removes = removes;
+    }
+
+    static ConfigurationLayer overrides(Map<String, String> changes) {
+        return new ConfigurationLayer(OVERRIDES, changes, changes.containsValue(null));
+    }
+
+    /**
+     * @return the name of the source of the properties.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the properties of this layer, read only.
+     */
+    public Map<String, String> asMap() {
+        return values;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    String get(String key) {
+        return values.get(key);
+    }
+
+    /**
+     * @return true if this layer removes the key from the layers below.
+     */
+    boolean removes(String key) {
+        return removes && values.containsKey(key) && values.get(key) == null;
+    }
+
+    boolean hasRemoves() {
+        return removes;
+    }
+
+    /**
+     * @return the keys of this layer in order, the index of the namespace
+     * queries of every snapshot with this layer.
+     */
+    String[] sortedKeys() {
+        String[] keys = sortedKeys;
+        if (keys == null) {
+            // racing readers may both build the index, they build the same one.
+            keys = values.keySet().toArray(new String[values.size()]);
+            Arrays.sort(keys);
+            sortedKeys = keys;
+        }
+        return keys;
+    }
+
+    /**
+     * A layer owns its source, see ProviderFetcher, so two layers of the same
+     * source have the same properties.
+     *
+     * @return true if both layers have the same name and properties.
+     */
+    boolean sameAs(ConfigurationLayer other) {
+        return other != null && (other == this || (name.equals(other.name) && removes == other.removes
+                && (source == other.source || values.equals(other.values))));
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigurationLayer{name=" + name + ", size=" + values.size() + "}";
+    }
+}
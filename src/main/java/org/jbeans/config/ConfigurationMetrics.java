@@ -0,0 +1,322 @@
+package org.jbeans.config;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings for configuration reloads. Exposed in JSON format by
+ * GET /configuration/metrics and as an MXBean.
+ *
+ * Reloads, provider fetches, writes of the properties file and the startup
+ * phases are timed in {@link LatencyHistogram}s. Reads, misses, failed type
+ * conversions and decryptions are counted in total and per key when
+ * jbeans.app.props.metrics=true. Reads cost one volatile read when the
+ * counters are disabled, and a map lookup and a LongAdder increment when
+ * they are enabled. At most MAX_KEYS keys are counted, reads of other keys
+ * only add to the totals.
+ *
+ * @author jhogan
+ */
+public class ConfigurationMetrics implements ConfigurationMetricsMXBean {
+
+    static final int MAX_KEYS = 10000;
+    static final String RELOAD = "reload";
+    static final String PROVIDER_FETCH = "provider.fetch";
+    static final String PERSIST = "persist";
+    static final String STARTUP = "startup.";
+    static final String REPLICATION = "replication.apply";
+
+    /*
+     * The counters of one key.
+     */
+    static final class KeyCounters {
+
+        final LongAdder reads = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder conversionFailures = new LongAdder();
+    }
+
+    private volatile boolean enabled;
+    private final ConcurrentHashMap<String, KeyCounters> keys = new ConcurrentHashMap<>();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder conversionFailures = new LongAdder();
+    private final LongAdder decryptions = new LongAdder();
+    private final ConcurrentHashMap<String, LatencyHistogram> timings = new ConcurrentHashMap<>();
+
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder skippedReloads = new LongAdder();
+    private final LongAdder failedReloads = new LongAdder();
+    private final LongAdder totalReloadNanos = new LongAdder();
+    private final AtomicLong maxReloadNanos = new AtomicLong();
+    private final LongAdder providerTimeouts = new LongAdder();
+    private final LongAdder providerFailures = new LongAdder();
+    private volatile long lastReloadNanos;
+    private volatile long lastReloadTime;
+
+    /**
+     * Record a reload that published the changed configuration.
+     *
+     * @param nanos the time the reload took.
+     */
+    void reloaded(long nanos) {
+        timed(RELOAD, nanos);
+        reloads.increment();
+        totalReloadNanos.add(nanos);
+        lastReloadNanos = nanos;
+        lastReloadTime = System.currentTimeMillis();
+        long max = maxReloadNanos.get();
+        while (nanos > max && !maxReloadNanos.compareAndSet(max, nanos)) {
+            max = maxReloadNanos.get();
+        }
+    }
+
+    /**
+     * Record a change notification that did not need a reload, for example
+     * because the file content was unchanged.
+     */
+    void reloadSkipped() {
+        skippedReloads.increment();
+    }
+
+    void reloadFailed() {
+        failedReloads.increment();
+    }
+
+    /**
+     * Record a configuration provider that did not answer in time.
+     */
+    void providerTimedOut() {
+        providerTimeouts.increment();
+    }
+
+    /**
+     * Record a configuration provider that failed to return its
+     * configuration.
+     */
+    void providerFailed() {
+        providerFailures.increment();
+    }
+
+    /**
+     * Count reads, misses, conversion failures and decryptions.
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Record a read of a property.
+     *
+     * @param key the property.
+     * @param hit false if the property is not configured.
+     */
+    void read(String key, boolean hit) {
+        if (!enabled) {
+            return;
+        }
+        reads.increment();
+        KeyCounters counters = counters(key);
+        if (counters != null) {
+            counters.reads.increment();
+        }
+        if (!hit) {
+            misses.increment();
+            if (counters != null) {
+                counters.misses.increment();
+            }
+        }
+    }
+
+    /**
+     * Record a value that could not be converted to the type of its
+     * injection point.
+     */
+    void conversionFailed(String key) {
+        if (!enabled) {
+            return;
+        }
+        conversionFailures.increment();
+        KeyCounters counters = counters(key);
+        if (counters != null) {
+            counters.conversionFailures.increment();
+        }
+    }
+
+    /**
+     * Record the decryption of an encrypted value.
+     */
+    void decrypted() {
+        if (enabled) {
+            decryptions.increment();
+        }
+    }
+
+    private KeyCounters counters(String key) {
+        KeyCounters counters = keys.get(key);
+        if (counters == null && keys.size() < MAX_KEYS) {
+            counters = keys.computeIfAbsent(key, k -> new KeyCounters());
+        }
+        return counters;
+    }
+
+    /**
+     * Record the duration of an operation.
+     *
+     * @param name the operation, e.g. RELOAD or STARTUP + phase.
+     * @param nanos how long it took.
+     */
+    void timed(String name, long nanos) {
+        LatencyHistogram histogram = timings.get(name);
+        if (histogram == null) {
+            histogram = timings.computeIfAbsent(name, n -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    LatencyHistogram getTiming(String name) {
+        return timings.get(name);
+    }
+
+    @Override
+    public long getReadCount() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getConversionFailureCount() {
+        return conversionFailures.sum();
+    }
+
+    @Override
+    public long getDecryptCount() {
+        return decryptions.sum();
+    }
+
+    /**
+     * @param key the property.
+     * @return the number of reads of the property, 0 if it is not counted.
+     */
+    public long getReadCount(String key) {
+        KeyCounters counters = keys.get(key);
+        return counters == null ? 0 : counters.reads.sum();
+    }
+
+    /**
+     * @param limit the number of keys.
+     * @return the most read keys and their read counts, most read first.
+     */
+    @Override
+    public Map<String, Long> getTopReads(int limit) {
+        List<Map.Entry<String, Long>> counts = new ArrayList<>(keys.size());
+        for (Map.Entry<String, KeyCounters> key : keys.entrySet()) {
+            counts.add(new AbstractMap.SimpleImmutableEntry<>(key.getKey(), key.getValue().reads.sum()));
+        }
+        counts.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        Map<String, Long> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> count : counts.subList(0, Math.min(limit, counts.size()))) {
+            top.put(count.getKey(), count.getValue());
+        }
+        return top;
+    }
+
+    /**
+     * @return the counters of every counted key.
+     */
+    Map<String, Map<String, Long>> getKeyCounters() {
+        Map<String, Map<String, Long>> counters = new TreeMap<>();
+        for (Map.Entry<String, KeyCounters> key : keys.entrySet()) {
+            Map<String, Long> values = new LinkedHashMap<>();
+            values.put("reads", key.getValue().reads.sum());
+            values.put("misses", key.getValue().misses.sum());
+            values.put("conversion.failures", key.getValue().conversionFailures.sum());
+            counters.put(key.getKey(), values);
+        }
+        return counters;
+    }
+
+    @Override
+    public Map<String, Double> getTimings() {
+        Map<String, Double> flattened = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> timing : timings.entrySet()) {
+            for (Map.Entry<String, Object> value : timing.getValue().toMap().entrySet()) {
+                flattened.put(timing.getKey() + "." + value.getKey(), ((Number) value.getValue()).doubleValue());
+            }
+        }
+        return flattened;
+    }
+
+    @Override
+    public long getReloadCount() {
+        return reloads.sum();
+    }
+
+    @Override
+    public long getSkippedReloadCount() {
+        return skippedReloads.sum();
+    }
+
+    @Override
+    public long getFailedReloadCount() {
+        return failedReloads.sum();
+    }
+
+    @Override
+    public long getProviderTimeoutCount() {
+        return providerTimeouts.sum();
+    }
+
+    @Override
+    public long getProviderFailureCount() {
+        return providerFailures.sum();
+    }
+
+    /**
+     * @return the metrics as name/value pairs, timings in milliseconds. The
+     * per key counters are left out, see getKeyCounters().
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("reload.count", reloads.sum());
+        metrics.put("reload.skipped", skippedReloads.sum());
+        metrics.put("reload.failed", failedReloads.sum());
+        metrics.put("reload.last.ms", toMillis(lastReloadNanos));
+        metrics.put("reload.max.ms", toMillis(maxReloadNanos.get()));
+        metrics.put("reload.total.ms", toMillis(totalReloadNanos.sum()));
+        metrics.put("reload.last.time", lastReloadTime);
+        metrics.put("provider.timeouts", providerTimeouts.sum());
+        metrics.put("provider.failures", providerFailures.sum());
+        metrics.put("enabled", enabled);
+        metrics.put("read.count", reads.sum());
+        metrics.put("read.misses", misses.sum());
+        metrics.put("conversion.failures", conversionFailures.sum());
+        metrics.put("decrypt.count", decryptions.sum());
+        Map<String, Object> histograms = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> timing : timings.entrySet()) {
+            histograms.put(timing.getKey(), timing.getValue().toMap());
+        }
+        metrics.put("timings", histograms);
+        return metrics;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,42 @@
+package org.jbeans.config;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link ConfigurationMetrics}, registered as
+ * org.jbeans.config:type=ConfigurationMetrics,name=${jbeans.app.name}.
+ *
+ * @author jhogan
+ */
+public interface ConfigurationMetricsMXBean {
+
+    long getReloadCount();
+
+    long getSkippedReloadCount();
+
+    long getFailedReloadCount();
+
+    long getProviderTimeoutCount();
+
+    long getProviderFailureCount();
+
+    long getReadCount();
+
+    long getMissCount();
+
+    long getConversionFailureCount();
+
+    long getDecryptCount();
+
+    /**
+     * @return count, mean, p50, p90, p99 and max of every timed operation,
+     * e.g. reload.p99.ms, in milliseconds.
+     */
+    Map<String, Double> getTimings();
+
+    /**
+     * @param limit the number of keys.
+     * @return the most read keys and their read counts.
+     */
+    Map<String, Long> getTopReads(int limit);
+}
@@ -0,0 +1,67 @@
+package org.jbeans.config;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A batch of admin changes made on one node, as replicated to the other
+ * nodes of a cluster, see Replicator.
+ *
+ * The batch is stamped with the Lamport clock of its node when it is made.
+ * Of two changes of a key the one with the higher clock wins, and of two
+ * with the same clock the one of the node with the greater id. Every node
+ * applies the same winner whatever order it receives the changes in.
+ *
+ * @author jhogan
+ */
+public final class ConfigurationMutation {
+
+    private final String node;
+    private final long clock;
+    private final Map<String, String> changes;
+
+    /**
+     * @param node the id of the node that made the changes.
+     * @param clock the Lamport clock of the node when it made them.
+     * @param changes the properties added or updated, properties mapped to
+     * null are deleted.
+     */
+    public ConfigurationMutation(String node, long clock, Map<String, String> changes) {
+        if (node == null || node.isEmpty()) {
+            throw new IllegalArgumentException("node cannot be empty");
+        }
+        this.node = node;
+        this.clock = clock;
+        this.changes = Collections.unmodifiableMap(new LinkedHashMap<>(changes));
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public long getClock() {
+        return clock;
+    }
+
+    /**
+     * @return the changes, deleted properties map to null.
+     */
+    public Map<String, String> getChanges() {
+        return changes;
+    }
+
+    /**
+     * @param clock the clock of another change.
+     * @param node the node of another change.
+     * @return true if this mutation wins over the other change.
+     */
+    boolean isNewerThan(long clock, String node) {
+        return this.clock != clock ? this.clock > clock : this.node.compareTo(node) > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigurationMutation{node=" + node + ", clock=" + clock + ", keys=" + changes.keySet() + "}";
+    }
+}
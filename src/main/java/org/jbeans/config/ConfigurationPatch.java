@@ -0,0 +1,151 @@
+package org.jbeans.config;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * A batch of property changes applied as one new configuration version.
+ *
+ * The JSON form is:
+ * <pre>
+ *     {"set": {"key": "value", ...}, "remove": ["key", ...]}
+ * </pre>
+ * Both members are optional. Values may be JSON strings, numbers or booleans,
+ * numbers and booleans are stored as their JSON text.
+ *
+ * @author jhogan
+ */
+final class ConfigurationPatch {
+
+    static final String SET = "set";
+    static final String REMOVE = "remove";
+
+    private final Map<String, String> set;
+    private final Set<String> remove;
+
+    /**
+     * @param set the keys to add or update.
+     * @param remove the keys to remove.
+     * @throws ConfigurationException if a key is empty, a value is null or a
+     * key is both set and removed.
+     */
+    ConfigurationPatch(Map<String, String> set, Collection<String> remove) throws ConfigurationException {
+        this.set = Collections.unmodifiableMap(new LinkedHashMap<>(set));
+        this.remove = Collections.unmodifiableSet(new LinkedHashSet<>(remove));
+        for (Map.Entry<String, String> entry : this.set.entrySet()) {
+            checkKey(entry.getKey());
+            if (entry.getValue() == null) {
+                throw new ConfigurationException("Patch sets " + entry.getKey() + " to null, use remove instead");
+            }
+            if (this.remove.contains(entry.getKey())) {
+                throw new ConfigurationException("Patch both sets and removes " + entry.getKey());
+            }
+        }
+        for (String key : this.remove) {
+            checkKey(key);
+        }
+    }
+
+    /**
+     * @param json the patch document.
+     * @return the validated patch.
+     * @throws ConfigurationException if the document is not a valid patch.
+     */
+    static ConfigurationPatch parse(JsonObject json) throws ConfigurationException {
+        if (json == null) {
+            throw new ConfigurationException("Patch document is missing");
+        }
+        for (String member : json.keySet()) {
+            if (!SET.equals(member) && !REMOVE.equals(member)) {
+                throw new ConfigurationException("Unknown patch member " + member + ", expected " + SET + " or " + REMOVE);
+            }
+        }
+        Map<String, String> set = new LinkedHashMap<>();
+        JsonValue setValue = json.get(SET);
+        if (setValue != null && setValue.getValueType() != JsonValue.ValueType.NULL) {
+            if (setValue.getValueType() != JsonValue.ValueType.OBJECT) {
+                throw new ConfigurationException("Patch member " + SET + " must be an object");
+            }
+            for (Map.Entry<String, JsonValue> entry : ((JsonObject) setValue).entrySet()) {
+                set.put(entry.getKey(), toText(entry.getKey(), entry.getValue()));
+            }
+        }
+        Set<String> remove = new LinkedHashSet<>();
+        JsonValue removeValue = json.get(REMOVE);
+        if (removeValue != null && removeValue.getValueType() != JsonValue.ValueType.NULL) {
+            if (removeValue.getValueType() != JsonValue.ValueType.ARRAY) {
+                throw new ConfigurationException("Patch member " + REMOVE + " must be an array");
+            }
+            for (JsonValue key : (JsonArray) removeValue) {
+                if (key.getValueType() != JsonValue.ValueType.STRING) {
+                    throw new ConfigurationException("Patch member " + REMOVE + " must only contain strings");
+                }
+                remove.add(((JsonString) key).getString());
+            }
+        }
+        return new ConfigurationPatch(set, remove);
+    }
+
+    private static String toText(String key, JsonValue value) throws ConfigurationException {
+        switch (value.getValueType()) {
+            case STRING:
+                return ((JsonString) value).getString();
+            case NUMBER:
+                return ((JsonNumber) value).toString();
+            case TRUE:
+                return Boolean.TRUE.toString();
+            case FALSE:
+                return Boolean.FALSE.toString();
+            default:
+                throw new ConfigurationException("Patch value of " + key + " must be a string, number or boolean");
+        }
+    }
+
+    private static void checkKey(String key) throws ConfigurationException {
+        if (key == null || key.trim().isEmpty()) {
+            throw new ConfigurationException("Patch contains an empty key");
+        }
+    }
+
+    Map<String, String> getSet() {
+        return set;
+    }
+
+    Set<String> getRemove() {
+        return remove;
+    }
+
+    boolean isEmpty() {
+        return set.isEmpty() && remove.isEmpty();
+    }
+
+    /**
+     * Applies the patch to a configuration draft.
+     */
+    void apply(Map<String, String> draft) {
+        draft.putAll(set);
+        for (String key : remove) {
+            draft.remove(key);
+        }
+    }
+
+    /**
+     * @return the patch as one map, removed keys map to null.
+     */
+    Map<String, String> toChanges() {
+        Map<String, String> changes = new LinkedHashMap<>(set);
+        for (String key : remove) {
+            changes.put(key, null);
+        }
+        return changes;
+    }
+}
@@ -1,6 +1,7 @@
 package org.jbeans.config;
 
 import java.util.Map;
+import javax.annotation.Priority;
 
 /**
  *
@@ -15,7 +16,53 @@ import java.util.Map;
  * @author adam bien, blog.adam-bien.com, ch191532
  */
 public interface ConfigurationProvider {
-    
+
+    /**
+     * The ordinal of providers without @Priority.
+     */
+    public static final int DEFAULT_ORDINAL = 100;
+
     public Map<String, String> getConfiguration();
 
+    /**
+     * The Configurator fetches all providers at the same time and merges
+     * their configurations in ascending ordinal order, so a provider with a
+     * higher ordinal overrides the properties of one with a lower ordinal.
+     * Providers with the same ordinal are merged in class name order.
+     *
+     * @return the value of the provider's @Priority annotation, or
+     * DEFAULT_ORDINAL.
+     */
+    public default int getOrdinal() {
+        for (Class<?> type = getClass(); type != null; type = type.getSuperclass()) {
+            Priority priority = type.getAnnotation(Priority.class);
+            if (priority != null) {
+                return priority.value();
+            }
+        }
+        return DEFAULT_ORDINAL;
+    }
+
+    /**
+     * Retrieve the configuration without decrypting Jasypt encrypted values,
+     * ENC(...). The Configurator merges the raw configuration and decrypts a
+     * value when it is read. Providers without encrypted values do not need
+     * to implement this.
+     *
+     * @return the configuration with encrypted values as ciphertext.
+     */
+    public default Map<String, String> getRawConfiguration() {
+        return getConfiguration();
+    }
+
+    /**
+     * Re-read this provider's configuration source, the next call to
+     * getConfiguration() returns the reloaded configuration. Providers whose
+     * configuration cannot change do not need to implement this.
+     *
+     * @throws ConfigurationException if the source cannot be read.
+     */
+    public default void refresh() throws ConfigurationException {
+    }
+
 }
@@ -0,0 +1,387 @@
+package org.jbeans.config;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable, versioned copy of an application's configuration.
+ *
+ * Snapshots are never changed once they are created. A reload or an admin
+ * update builds a new snapshot off to the side and publishes it through a
+ * {@link ConfigurationStore}, so a reader holding a snapshot always sees one
+ * consistent configuration, never a half merged one.
+ *
+ * A snapshot is a stack of {@link ConfigurationLayer}s, one per source of
+ * properties, highest priority first. A lookup walks the layers and the first
+ * layer with the key supplies the value, {@link #getSource(String)} tells
+ * which. Layers are shared between snapshots, so publishing a change of one
+ * source costs that source only. {@link #asMap()} is a read only view of the
+ * layers, nothing is copied, so the properties of an off heap layer, see
+ * {@link OffHeapMap}, never get a copy on the heap.
+ *
+ * Namespace queries, {@link #getByPrefix(String)}, use the sorted keys of
+ * each layer, an index built on the first query of a layer and shared by
+ * every snapshot with the layer. A query then costs a binary search per
+ * layer plus the matching keys instead of a scan of the whole map, and a
+ * snapshot that only changed the overrides layer indexes that layer only.
+ *
+ * Values with ${key} placeholders are resolved when a store publishes the
+ * snapshot, see {@link Interpolation}. Lookups return resolved values, the
+ * layers keep the raw ones.
+ *
+ * @author jhogan
+ */
+public final class ConfigurationSnapshot {
+
+    static final ConfigurationSnapshot EMPTY = new ConfigurationSnapshot(0L, Collections.<String, String>emptyMap());
+
+    private final long version;
+    private final List<ConfigurationLayer> layers;
+    // the single layer of a snapshot without placeholders, else null.
+    private volatile Map<String, String> values;
+    private volatile LayeredMap resolvedView;
+    private volatile LayeredMap rawView;
+    // set before the snapshot is published, null for an unpublished snapshot.
+    private Interpolation interpolation;
+
+    /**
+     * A snapshot of a single layer. The snapshot takes ownership of the
+     * values map, callers must not keep a reference to it after construction.
+     */
+    ConfigurationSnapshot(long version, Map<String, String> values) {
+        this(version, Collections.singletonList(new ConfigurationLayer(ConfigurationLayer.DEFAULT, values)));
+    }
+
+    /**
+     * @param layers the layers of the snapshot, highest priority first.
+     */
+    ConfigurationSnapshot(long version, List<ConfigurationLayer> layers) {
+        this.version = version;
+        this.layers = Collections.unmodifiableList(new ArrayList<>(layers));
+        if (layers.size() == 1 && !layers.get(0).hasRemoves()) {
+            this.values = layers.get(0).asMap();
+        }
+    }
+
+    /**
+     * @return the version of this snapshot. Versions increase monotonically
+     * for every snapshot published by the same store.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param key the property to retrieve.
+     * @return the value for the key, or null if it is not configured.
+     */
+    public String get(String key) {
+        Map<String, String> single = values;
+        if (single != null) {
+            return single.get(key);
+        }
+        Interpolation resolved = interpolation;
+        if (resolved != null && !resolved.isEmpty()) {
+            String value = resolved.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return getRaw(key);
+    }
+
+    /**
+     * @param key the property to retrieve.
+     * @return the value for the key with its placeholders, or null if it is
+     * not configured.
+     */
+    String getRaw(String key) {
+        for (ConfigurationLayer layer : layers) {
+            String value = layer.get(key);
+            if (value != null) {
+                return value;
+            }
+            if (layer.removes(key)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(String key) {
+        return get(key) != null;
+    }
+
+    /*
+     * Placeholders change values, never keys, so the raw map has the keys.
+     */
+    public boolean isEmpty() {
+        return asRawMap().isEmpty();
+    }
+
+    public int size() {
+        return asRawMap().size();
+    }
+
+    /**
+     * @param key the property to look up.
+     * @return the name of the layer that supplies the value of the key, or
+     * null if it is not configured.
+     */
+    public String getSource(String key) {
+        for (ConfigurationLayer layer : layers) {
+            if (layer.get(key) != null) {
+                return layer.getName();
+            }
+            if (layer.removes(key)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the placeholders of this snapshot, before it is published.
+     *
+     * @param previous the snapshot this one replaces.
+     * @param changed the keys whose raw value changed.
+     * @return the delta of the resolved values, including the properties
+     * that depend on a changed one.
+     */
+    ConfigurationDelta resolve(ConfigurationSnapshot previous, Collection<String> changed) {
+        Interpolation base = previous.interpolation;
+        Collection<String> keys = changed;
+        if (base == null) {
+            // the previous snapshot was never resolved, resolve everything.
+            base = Interpolation.NONE;
+            Set<String> all = new HashSet<>(changed);
+            all.addAll(asRawMap().keySet());
+            keys = all;
+        }
+        Set<String> affected = new HashSet<>();
+        interpolation = Interpolation.update(base, this::getRaw, keys, affected);
+        if (!interpolation.isEmpty()) {
+            values = null;
+        }
+        return ConfigurationDelta.between(previous::get, this::get, affected);
+    }
+
+    /**
+     * @return this snapshot, resolved the same, under another version.
+     */
+    ConfigurationSnapshot withVersion(long otherVersion) {
+        ConfigurationSnapshot copy = new ConfigurationSnapshot(otherVersion, layers);
+        copy.interpolation = interpolation;
+        if (interpolation != null && !interpolation.isEmpty()) {
+            copy.values = null;
+        }
+        return copy;
+    }
+
+    /**
+     * @return the resolved placeholders of this snapshot.
+     */
+    Interpolation getInterpolation() {
+        Interpolation resolved = interpolation;
+        return resolved == null ? Interpolation.NONE : resolved;
+    }
+
+    /**
+     * @return the layers of this snapshot, highest priority first.
+     */
+    public List<ConfigurationLayer> getLayers() {
+        return layers;
+    }
+
+    /**
+     * @param prefix a namespace, e.g. db.primary.
+     * @return the properties below the namespace, db.primary.url and
+     * db.primary.user for db.primary, with their full keys, in key order.
+     */
+    public SortedMap<String, String> getByPrefix(String prefix) {
+        String from = prefix.isEmpty() || prefix.endsWith(".") ? prefix : prefix + ".";
+        SortedMap<String, String> matches = new TreeMap<>();
+        for (ConfigurationLayer layer : layers) {
+            String[] keys = layer.sortedKeys();
+            int i = Arrays.binarySearch(keys, from);
+            for (i = i < 0 ? -i - 1 : i; i < keys.length && keys[i].startsWith(from); i++) {
+                if (!matches.containsKey(keys[i])) {
+                    String value = get(keys[i]);
+                    if (value != null) {
+                        matches.put(keys[i], value);
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableSortedMap(matches);
+    }
+
+    /**
+     * @return a read only map view of this snapshot.
+     */
+    public Map<String, String> asMap() {
+        Map<String, String> single = values;
+        if (single != null) {
+            return single;
+        }
+        LayeredMap view = resolvedView;
+        if (view == null) {
+            view = new LayeredMap(false);
+            resolvedView = view;
+        }
+        return view;
+    }
+
+    /**
+     * @return a read only map of this snapshot with the placeholders of the
+     * values, as they were configured.
+     */
+    Map<String, String> asRawMap() {
+        if (layers.size() == 1 && !layers.get(0).hasRemoves()) {
+            return layers.get(0).asMap();
+        }
+        LayeredMap view = rawView;
+        if (view == null) {
+            view = new LayeredMap(true);
+            rawView = view;
+        }
+        return view;
+    }
+
+    /*
+     * True if a layer above the given one has the key or removes it.
+     */
+    private boolean isHidden(String key, int layer) {
+        for (int i = 0; i < layer; i++) {
+            ConfigurationLayer above = layers.get(i);
+            if (above.get(key) != null || above.removes(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The layers seen as one map. A key is read from the highest layer that
+     * has it, iterating walks every layer and skips the keys a higher layer
+     * has or removes. The size is counted on the first call, racing readers
+     * count the same.
+     */
+    private final class LayeredMap extends AbstractMap<String, String> {
+
+        final boolean raw;
+        private int size = -1;
+        private Set<Map.Entry<String, String>> entrySet;
+
+        LayeredMap(boolean raw) {
+            this.raw = raw;
+        }
+
+        @Override
+        public String get(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            return raw ? getRaw((String) key) : ConfigurationSnapshot.this.get((String) key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size < 0 ? !entrySet().iterator().hasNext() : size == 0;
+        }
+
+        @Override
+        public int size() {
+            int count = size;
+            if (count < 0) {
+                count = 0;
+                for (Iterator<Map.Entry<String, String>> entries = entrySet().iterator(); entries.hasNext(); entries.next()) {
+                    count++;
+                }
+                size = count;
+            }
+            return count;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            Set<Map.Entry<String, String>> entries = entrySet;
+            if (entries == null) {
+                entries = new AbstractSet<Map.Entry<String, String>>() {
+                    @Override
+                    public Iterator<Map.Entry<String, String>> iterator() {
+                        return new Entries();
+                    }
+
+                    @Override
+                    public int size() {
+                        return LayeredMap.this.size();
+                    }
+                };
+                entrySet = entries;
+            }
+            return entries;
+        }
+
+        private final class Entries implements Iterator<Map.Entry<String, String>> {
+
+            private final Interpolation resolved = getInterpolation();
+            private int layer = -1;
+            private Iterator<Map.Entry<String, String>> entries = Collections.emptyIterator();
+            private Map.Entry<String, String> next = advance();
+
+            private Map.Entry<String, String> advance() {
+                while (true) {
+                    while (entries.hasNext()) {
+                        Map.Entry<String, String> entry = entries.next();
+                        if (entry.getValue() != null && !isHidden(entry.getKey(), layer)) {
+                            String value = raw ? null : resolved.get(entry.getKey());
+                            return value == null ? entry : new SimpleImmutableEntry<>(entry.getKey(), value);
+                        }
+                    }
+                    if (++layer >= layers.size()) {
+                        return null;
+                    }
+                    entries = layers.get(layer).asMap().entrySet().iterator();
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                Map.Entry<String, String> entry = next;
+                if (entry == null) {
+                    throw new NoSuchElementException();
+                }
+                next = advance();
+                return entry;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigurationSnapshot{version=" + version + ", layers=" + layers.size() + "}";
+    }
+}
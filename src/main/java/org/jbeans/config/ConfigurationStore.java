@@ -0,0 +1,358 @@
+package org.jbeans.config;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the current {@link ConfigurationSnapshot} and publishes new ones with
+ * a single atomic reference swap.
+ *
+ * Readers pay one volatile read through {@link #current()} and never block.
+ * Writers copy the current snapshot, apply their change to the copy and swap
+ * it in with compare-and-set, retrying if another writer won the race. Each
+ * published snapshot gets the previous version + 1.
+ *
+ * Snapshots are layered, see {@link ConfigurationSnapshot}. put, remove and
+ * update change an overrides layer on top of the other layers, replace
+ * publishes a single layer and replaceLayers a new stack of layers. The
+ * other layers, an off heap table too, see {@link OffHeapMap}, are shared as
+ * they are, an update copies the overrides layer only.
+ *
+ * Every write computes the {@link ConfigurationDelta} to the previous
+ * snapshot. A write that changes nothing publishes nothing, the version stays
+ * the same and listeners are not called.
+ *
+ * Every published snapshot has its ${key} placeholders resolved, see
+ * {@link Interpolation}. Only the changed keys and the keys that depend on
+ * them are resolved again, and the delta includes those that depend on them.
+ * Mutations see and change raw values.
+ *
+ * Listeners are told about every published snapshot on the writer's thread,
+ * after the swap. Writers racing each other may notify out of version order,
+ * listeners that care should compare versions.
+ *
+ * @author jhogan
+ */
+public class ConfigurationStore {
+
+    /**
+     * A change applied to a private copy of the current configuration. A
+     * mutation may be applied more than once when writers race, so it must
+     * not have side effects outside of the draft map, and it must change the
+     * draft through put, putAll, remove or clear only. Putting null removes
+     * the key.
+     */
+    interface Mutation {
+
+        void apply(Map<String, String> draft);
+    }
+
+    /**
+     * Notified after a new snapshot has been published.
+     */
+    interface Listener {
+
+        void published(ConfigurationSnapshot previous, ConfigurationSnapshot current, ConfigurationDelta delta);
+    }
+
+    /*
+     * The changes of a mutation on top of the current snapshot, removed keys
+     * map to null. Nothing is copied, so an update costs the size of the
+     * update, not the size of the configuration. Iterating a draft flattens
+     * it.
+     */
+    private static final class Draft extends AbstractMap<String, String> {
+
+        final ConfigurationSnapshot base;
+        final Map<String, String> changes = new HashMap<>();
+
+        Draft(ConfigurationSnapshot base) {
+            this.base = base;
+        }
+
+        @Override
+        public String get(Object key) {
+            if (changes.containsKey(key)) {
+                return changes.get(key);
+            }
+            return key instanceof String ? base.getRaw((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            String old = get(key);
+            changes.put(key, value);
+            return old;
+        }
+
+        @Override
+        public String remove(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            String old = get(key);
+            changes.put((String) key, null);
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            changes.replaceAll((key, value) -> null);
+            for (String key : base.asRawMap().keySet()) {
+                changes.put(key, null);
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            Map<String, String> flattened = new HashMap<>(base.asRawMap());
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    flattened.remove(change.getKey());
+                } else {
+                    flattened.put(change.getKey(), change.getValue());
+                }
+            }
+            return Collections.unmodifiableMap(flattened).entrySet();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigurationStore.class.getName());
+
+    private final AtomicReference<ConfigurationSnapshot> current = new AtomicReference<>(ConfigurationSnapshot.EMPTY);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return the currently published snapshot.
+     */
+    public ConfigurationSnapshot current() {
+        return current.get();
+    }
+
+    /**
+     * @return the version of the currently published snapshot.
+     */
+    public long getVersion() {
+        return current.get().getVersion();
+    }
+
+    ConfigurationSnapshot update(Mutation mutation) {
+        return update(-1, mutation);
+    }
+
+    /**
+     * Applies a mutation only if the current version is the expected one.
+     *
+     * @param expectedVersion the version the mutation was prepared against,
+     * -1 for any version.
+     * @return the published snapshot, the current one if the mutation changed
+     * nothing, or null if the current version is not the expected one.
+     */
+    ConfigurationSnapshot update(long expectedVersion, Mutation mutation) {
+        while (true) {
+            ConfigurationSnapshot previous = current.get();
+            if (expectedVersion >= 0 && previous.getVersion() != expectedVersion) {
+                return null;
+            }
+            Draft draft = new Draft(previous);
+            mutation.apply(draft);
+            ConfigurationDelta changed = ConfigurationDelta.between(previous::getRaw, draft::get, draft.changes.keySet());
+            if (changed.isEmpty()) {
+                return previous;
+            }
+            ConfigurationSnapshot next = new ConfigurationSnapshot(previous.getVersion() + 1,
+                    withOverrides(previous.getLayers(), draft.changes));
+            ConfigurationDelta delta = next.resolve(previous, changed.getKeys());
+            if (current.compareAndSet(previous, next)) {
+                if (!delta.isEmpty()) {
+                    notifyListeners(previous, next, delta);
+                }
+                return next;
+            }
+        }
+    }
+
+    /*
+     * An OffHeapMap is read only and used as it is, other maps are copied.
+     */
+    ConfigurationSnapshot replace(Map<String, String> values) {
+        final Map<String, String> copy = values instanceof OffHeapMap ? values : new HashMap<>(values);
+        while (true) {
+            ConfigurationSnapshot previous = current.get();
+            ConfigurationDelta changed = ConfigurationDelta.between(previous.asRawMap(), copy);
+            if (changed.isEmpty()) {
+                return previous;
+            }
+            ConfigurationSnapshot next = new ConfigurationSnapshot(previous.getVersion() + 1, copy);
+            ConfigurationDelta delta = next.resolve(previous, changed.getKeys());
+            if (current.compareAndSet(previous, next)) {
+                if (!delta.isEmpty()) {
+                    notifyListeners(previous, next, delta);
+                }
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Publishes a snapshot of the given layers. Layers equal to a layer of
+     * the current snapshot replace nothing, the current layer is kept, and
+     * only the keys of changed layers are compared. The overrides of earlier
+     * updates are dropped.
+     *
+     * If the layers changed but no value did, the new layers are swapped in
+     * under the current version and listeners are not called.
+     *
+     * @param layers the layers, highest priority first.
+     * @return the published snapshot, or the current one.
+     */
+    ConfigurationSnapshot replaceLayers(List<ConfigurationLayer> layers) {
+        while (true) {
+            ConfigurationSnapshot previous = current.get();
+            List<ConfigurationLayer> shared = share(previous.getLayers(), layers);
+            Set<String> keys = changedKeys(previous.getLayers(), shared);
+            if (keys == null) {
+                return previous;
+            }
+            ConfigurationSnapshot next = new ConfigurationSnapshot(previous.getVersion() + 1, shared);
+            ConfigurationDelta delta = next.resolve(previous, keys);
+            if (delta.isEmpty()) {
+                next = next.withVersion(previous.getVersion());
+            }
+            if (current.compareAndSet(previous, next)) {
+                if (!delta.isEmpty()) {
+                    notifyListeners(previous, next, delta);
+                }
+                return next;
+            }
+        }
+    }
+
+    /*
+     * Keeps the previous instance of every unchanged layer, so unchanged
+     * layers are recognized by identity and never duplicated.
+     */
+    private static List<ConfigurationLayer> share(List<ConfigurationLayer> previous, List<ConfigurationLayer> layers) {
+        Map<String, ConfigurationLayer> byName = new HashMap<>();
+        for (ConfigurationLayer layer : previous) {
+            byName.put(layer.getName(), layer);
+        }
+        List<ConfigurationLayer> shared = new ArrayList<>(layers.size());
+        for (ConfigurationLayer layer : layers) {
+            ConfigurationLayer old = byName.get(layer.getName());
+            shared.add(layer.sameAs(old) ? old : layer);
+        }
+        return shared;
+    }
+
+    /*
+     * The keys of every layer that was added, removed or changed, or null if
+     * the layers are the same.
+     */
+    private static Set<String> changedKeys(List<ConfigurationLayer> previous, List<ConfigurationLayer> layers) {
+        Set<String> keys = new HashSet<>();
+        boolean reordered = previous.size() != layers.size();
+        for (int i = 0; !reordered && i < layers.size(); i++) {
+            reordered = !previous.get(i).getName().equals(layers.get(i).getName());
+        }
+        boolean changed = reordered;
+        Map<String, ConfigurationLayer> byName = new HashMap<>();
+        for (ConfigurationLayer layer : previous) {
+            byName.put(layer.getName(), layer);
+        }
+        for (ConfigurationLayer layer : layers) {
+            ConfigurationLayer old = byName.remove(layer.getName());
+            if (old != layer || reordered) {
+                changed = true;
+                keys.addAll(layer.asMap().keySet());
+                if (old != null) {
+                    keys.addAll(old.asMap().keySet());
+                }
+            }
+        }
+        for (ConfigurationLayer old : byName.values()) {
+            changed = true;
+            keys.addAll(old.asMap().keySet());
+        }
+        return changed ? keys : null;
+    }
+
+    /*
+     * Folds the changes of an update into the overrides layer, the other
+     * layers are shared with the previous snapshot.
+     */
+    private static List<ConfigurationLayer> withOverrides(List<ConfigurationLayer> previous, Map<String, String> changes) {
+        List<ConfigurationLayer> layers = new ArrayList<>(previous);
+        Map<String, String> overrides = new HashMap<>();
+        if (!layers.isEmpty() && layers.get(0).getName().equals(ConfigurationLayer.OVERRIDES)) {
+            overrides.putAll(layers.remove(0).asMap());
+        }
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() != null) {
+                overrides.put(change.getKey(), change.getValue());
+            } else if (isInAnyLayer(layers, change.getKey())) {
+                overrides.put(change.getKey(), null);
+            } else {
+                overrides.remove(change.getKey());
+            }
+        }
+        if (!overrides.isEmpty()) {
+            layers.add(0, ConfigurationLayer.overrides(overrides));
+        }
+        return layers;
+    }
+
+    private static boolean isInAnyLayer(List<ConfigurationLayer> layers, String key) {
+        for (ConfigurationLayer layer : layers) {
+            if (layer.get(key) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    ConfigurationSnapshot put(final String key, final String value) {
+        return update(draft -> draft.put(key, value));
+    }
+
+    ConfigurationSnapshot putAll(final Map<String, String> values) {
+        return update(draft -> draft.putAll(values));
+    }
+
+    ConfigurationSnapshot remove(final String key) {
+        return update(draft -> draft.remove(key));
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners(ConfigurationSnapshot previous, ConfigurationSnapshot next, ConfigurationDelta delta) {
+        for (Listener listener : listeners) {
+            try {
+                listener.published(previous, next, delta);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Configuration listener failed for version " + next.getVersion(), ex);
+            }
+        }
+    }
+}
@@ -5,31 +5,62 @@ import static javax.ws.rs.core.MediaType.TEXT_PLAIN;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.net.URI;
-import java.util.HashSet;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.event.Event;
 import javax.enterprise.inject.Instance;
 import javax.enterprise.inject.spi.AnnotatedField;
 import javax.enterprise.inject.spi.InjectionPoint;
+import javax.enterprise.inject.spi.ObserverMethod;
 import javax.inject.Inject;
+import javax.json.JsonObject;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.PATCH;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
@@ -46,30 +77,94 @@ import javax.ws.rs.core.UriInfo;
  */
 @Startup
 @Singleton
+@Lock(LockType.READ)
 @Path("/configuration")
 @Produces(APPLICATION_JSON)
 public class Configurator {
 
     static final String INTERNAL_PROPS_FILE = "jbeans-app.properties";
+    static final String RUNTIME_LAYER = "runtime";
     private static final String PROPERTY_APP_PROPS_FILE = "jbeans.app.props.file";
     private static final String PROPERTY_ADMIN_ENABLED = "jbeans.app.props.admin.enabled";
     private static final String PROPERTY_APP_NAME = "jbeans.app.name";
     private static final String JASYPT_PW_ENV_PROPERTY_NAME = "jbeans.app.props.encKey.name";
+    private static final String PROPERTY_WATCH_MODE = "jbeans.app.props.watch.mode";
+    private static final String PROPERTY_WATCH_DEBOUNCE_MS = "jbeans.app.props.watch.debounce.ms";
+    private static final String PROPERTY_WATCH_POLL_MS = "jbeans.app.props.watch.poll.ms";
+    private static final String PROPERTY_DECRYPT_MODE = "jbeans.app.props.decrypt.mode";
+    private static final String PROPERTY_DECRYPT_THREADS = "jbeans.app.props.decrypt.threads";
+    private static final String PROPERTY_WRITE_DELAY_MS = "jbeans.app.props.write.delay.ms";
+    private static final String PROPERTY_PROVIDER_TIMEOUT_MS = "jbeans.app.props.provider.timeout.ms";
+    private static final String PROPERTY_STARTUP_MODE = "jbeans.app.props.startup.mode";
+    private static final String PROPERTY_STARTUP_TIMEOUT_MS = "jbeans.app.props.startup.timeout.ms";
+    private static final String STARTUP_ASYNC = "async";
+    private static final String PROPERTY_SNAPSHOT = "jbeans.app.props.snapshot";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String PROPERTY_STORE = "jbeans.app.props.store";
+    private static final String PROPERTY_METRICS = "jbeans.app.props.metrics";
+    private static final String PROPERTY_REPLICATION_DIR = "jbeans.app.props.replication.dir";
+    private static final String PROPERTY_REPLICATION_TRANSPORT = "jbeans.app.props.replication.transport";
+    private static final String PROPERTY_REPLICATION_NODE = "jbeans.app.props.replication.node";
+    private static final String PROPERTY_REPLICATION_POLL_MS = "jbeans.app.props.replication.poll.ms";
+    static final String STORE_OFF_HEAP = "offheap";
 
     static Boolean APP_CONFIG_ADMIN_ENABLED = Boolean.FALSE;
     static String EXTERNAL_PROPS_FILE;
     static String APPLICATION_NAME;
     static String JASYPT_PW_ENV_PROPERTY_VALUE;
+    static String WATCH_MODE = "none";
+    static long WATCH_DEBOUNCE_MILLIS = 500;
+    static long WATCH_POLL_MILLIS = 5000;
+    static String DECRYPT_MODE = "lazy";
+    static int DECRYPT_THREADS = 0;
+    static long WRITE_DELAY_MILLIS = 50;
+    static long PROVIDER_TIMEOUT_MILLIS = 30000;
+    static String STARTUP_MODE = "sync";
+    static long STARTUP_TIMEOUT_MILLIS = 30000;
+    static boolean SNAPSHOT_ENABLED = false;
+    static String STORE_MODE = "heap";
+    static boolean METRICS_ENABLED = false;
+    static String REPLICATION_DIR;
+    static String REPLICATION_TRANSPORT;
+    static String REPLICATION_NODE;
+    static long REPLICATION_POLL_MILLIS = 1000;
 
     public Configurator() {
     }
 
     private static final Logger LOGGER = Logger.getLogger(Configurator.class.getName());
-    Map<String, String> configuration;
-    private Set<String> unconfiguredFields;
+    ConfigurationStore configuration;
+    private final MissTracker misses = new MissTracker();
+    private final TypedValueCache typedValues = new TypedValueCache();
+    private volatile SecretResolver secrets = new SecretResolver(null);
+    private volatile FeatureFlags featureFlags;
+    private Map<String, String> appProperties = Collections.emptyMap();
+    private final Map<String, String> runtimeProperties = new ConcurrentHashMap<>();
+    private final ConfigurationJsonCache jsonResponses = new ConfigurationJsonCache();
+    private final String instanceId = Long.toString(System.currentTimeMillis(), 36);
+    final ConfigurationMetrics metrics = new ConfigurationMetrics();
+    private final ProviderFetcher providerFetcher = new ProviderFetcher(metrics);
+    private volatile CompletableFuture<ConfigurationSnapshot> ready = new CompletableFuture<>();
+    private SnapshotFile snapshotFile;
+    private ObjectName metricsName;
+    private volatile List<ConfigurationLayer> savedLayers;
+    private final List<ConfigurationFileWatcher> watchers = new CopyOnWriteArrayList<>();
+    private volatile Replicator replicator;
+    // PUT and DELETE share the read lock, PATCH and publishing merged layers take the write lock.
+    private final ReadWriteLock updates = new ReentrantReadWriteLock();
 
     @Inject
-    private Instance<ConfigurationProvider> configurationProvider;
+    Instance<ConfigurationProvider> configurationProvider;
+
+    @Inject
+    Event<ConfigChangedEvent> configChanged;
+
+    @Inject
+    ConfigPrefixObservers prefixObservers;
+
+    // the container's default executor, null outside a container.
+    @Resource
+    ManagedExecutorService executor;
 
     static JbeansConfigurationProvider jbeansConfigProvider;
 
@@ -80,14 +175,209 @@ public class Configurator {
      * multiple sources and merges them into one configuration for the
      * application. Provider implementations can import configuration from
      * properties files, database, xml, ...
+     *
+     * With jbeans.app.props.startup.mode=async only jbeans-app.properties is
+     * loaded here, the providers are loaded on the container's managed
+     * executor and GET /configuration/ready reports when they are. Injection
+     * of a property that is not configured yet waits for them, see
+     * getValueForKey.
+     *
+     * With jbeans.app.props.snapshot=true the application starts from the
+     * last known good configuration of the providers, see SnapshotFile, and
+     * loads the providers in the background too.
      */
     @PostConstruct
     void fetchConfiguration() {
         LOGGER.log(Level.INFO, "@PostConstruct fetching configuration, hashcode={0}", this.hashCode());
-        this.configuration = new ConcurrentHashMap<>();
-        this.unconfiguredFields = new HashSet<>();
+        this.configuration = new ConfigurationStore();
+        providerFetcher.setExecutor(executor);
+        long start = System.nanoTime();
         initializeAppProperties();
-        mergeWithCustomConfiguration();
+        metrics.timed(ConfigurationMetrics.STARTUP + "app-properties", System.nanoTime() - start);
+        metrics.setEnabled(METRICS_ENABLED);
+        registerMetrics();
+        this.configuration.addListener(this::invalidateTypedValues);
+        if (restoreSnapshot() || STARTUP_ASYNC.equalsIgnoreCase(STARTUP_MODE)) {
+            if (executor != null) {
+                executor.execute(this::loadProviders);
+            } else {
+                // outside a container.
+                Thread loader = new Thread(this::loadProviders, "jbeans-config-startup");
+                loader.setDaemon(true);
+                loader.start();
+            }
+        } else {
+            start = System.nanoTime();
+            mergeWithCustomConfiguration();
+            metrics.timed(ConfigurationMetrics.STARTUP + "providers", System.nanoTime() - start);
+            this.configuration.addListener(this::configurationPublished);
+            markReady();
+            startFileWatcher();
+            startReplication();
+        }
+    }
+
+    /*
+     * Publishes the provider layers of the last known good snapshot. A
+     * provider that fails or times out when the providers are loaded keeps
+     * its layer from the snapshot.
+     */
+    private boolean restoreSnapshot() {
+        if (!SNAPSHOT_ENABLED) {
+            return false;
+        }
+        try {
+            long start = System.nanoTime();
+            snapshotFile = new SnapshotFile(Paths.get(JbeansConfigurationProvider.resolveConfigDir(), EXTERNAL_PROPS_FILE + SNAPSHOT_SUFFIX));
+            List<ConfigurationLayer> layers = snapshotFile.read();
+            if (layers == null) {
+                LOGGER.log(Level.INFO, "No configuration snapshot {0}, loading the providers", snapshotFile.getFile());
+                return false;
+            }
+            secrets = new SecretResolver(JbeansConfigurationProvider.newEncryptor());
+            secrets.setMetrics(metrics);
+            providerFetcher.remember(layers);
+            merge(layers);
+            savedLayers = layers;
+            metrics.timed(ConfigurationMetrics.STARTUP + "snapshot", System.nanoTime() - start);
+            LOGGER.log(Level.INFO, "Started from configuration snapshot {0}, layers= {1}, {2} ms",
+                    new Object[]{snapshotFile.getFile(), layers.size(), (System.nanoTime() - start) / 1000000});
+            return true;
+        } catch (ConfigurationException | IOException ex) {
+            LOGGER.log(Level.WARNING, "Unable to start from the configuration snapshot, loading the providers", ex);
+            return false;
+        }
+    }
+
+    /*
+     * Writes the provider layers to the snapshot file, unless they are the
+     * layers last written.
+     */
+    private void saveSnapshot(List<ConfigurationLayer> layers) {
+        if (snapshotFile == null || sameLayers(savedLayers, layers)) {
+            return;
+        }
+        try {
+            snapshotFile.write(configuration.getVersion(), layers);
+            savedLayers = layers;
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Unable to write the configuration snapshot " + snapshotFile.getFile(), ex);
+        }
+    }
+
+    private static boolean sameLayers(List<ConfigurationLayer> saved, List<ConfigurationLayer> layers) {
+        if (saved == null || saved.size() != layers.size()) {
+            return false;
+        }
+        for (int i = 0; i < layers.size(); i++) {
+            if (!layers.get(i).sameAs(saved.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Loads the configuration providers in async startup mode.
+     */
+    private void loadProviders() {
+        long start = System.nanoTime();
+        try {
+            mergeWithCustomConfiguration();
+            metrics.timed(ConfigurationMetrics.STARTUP + "providers", System.nanoTime() - start);
+            this.configuration.addListener(this::configurationPublished);
+            markReady();
+            LOGGER.log(Level.INFO, "Configuration ready, version= {0}, {1} ms",
+                    new Object[]{configuration.getVersion(), (System.nanoTime() - start) / 1000000});
+            startFileWatcher();
+            startReplication();
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.SEVERE, "Unable to load the configuration providers", ex);
+            ready.completeExceptionally(ex);
+        }
+    }
+
+    /*
+     * Opens the readiness gate. A successful refresh after a failed async
+     * startup opens it too.
+     */
+    void markReady() {
+        if (!ready.complete(configuration.current()) && ready.isCompletedExceptionally()) {
+            ready = CompletableFuture.completedFuture(configuration.current());
+        }
+    }
+
+    /**
+     * @return true once the configuration of all providers has been loaded.
+     */
+    public boolean isReady() {
+        CompletableFuture<ConfigurationSnapshot> gate = ready;
+        return gate.isDone() && !gate.isCompletedExceptionally();
+    }
+
+    /**
+     * Wait for the configuration of all providers to be loaded.
+     *
+     * @param timeoutMillis how long to wait.
+     * @return true if the configuration is loaded.
+     */
+    public boolean awaitReady(long timeoutMillis) {
+        try {
+            ready.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException ex) {
+            LOGGER.log(Level.WARNING, "Configuration not ready after {0} ms", timeoutMillis);
+        } catch (ExecutionException ex) {
+            LOGGER.log(Level.WARNING, "Configuration failed to load: {0}", ex.getCause().getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @PreDestroy
+    void stopFileWatcher() {
+        if (jbeansConfigProvider != null) {
+            jbeansConfigProvider.setWriteListener(null);
+        }
+        for (ConfigurationFileWatcher watcher : watchers) {
+            watcher.stop();
+        }
+        watchers.clear();
+        Replicator current = replicator;
+        if (current != null) {
+            if (jbeansConfigProvider != null) {
+                jbeansConfigProvider.setReplicator(null);
+            }
+            current.close();
+            replicator = null;
+        }
+        if (jbeansConfigProvider != null) {
+            jbeansConfigProvider.close();
+        }
+        providerFetcher.close();
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException ex) {
+                LOGGER.log(Level.FINE, "Unable to unregister " + metricsName, ex);
+            }
+            metricsName = null;
+        }
+    }
+
+    /*
+     * Registers the metrics MXBean, once per application name.
+     */
+    private void registerMetrics() {
+        try {
+            ObjectName name = new ObjectName("org.jbeans.config:type=ConfigurationMetrics,name="
+                    + ObjectName.quote(String.valueOf(APPLICATION_NAME)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException ex) {
+            LOGGER.log(Level.WARNING, "Unable to register the configuration metrics MXBean: {0}", ex.getMessage());
+        }
     }
 
     /**
@@ -103,25 +393,92 @@ public class Configurator {
      * The configurator  supports Jasypt encrypted properties also.  These
      * properties should appear in the properties files in a format of:
      *     my.secret.prop=ENC(xasdffxYY7xxx)
-     * The Configurator will automatically decrypt these properties.
+     * The Configurator will automatically decrypt these properties, each one
+     * when it is first read.
      * 
      * properties files. The properties in jbeans-app.properties are:
      *     jbeans.app.name=jee-config-demo
      *     jbeans.app.props.file=jee-config-demo.properties
      *     jbeans.app.props.admin.enabled=false
+     *
+     * Optional properties to reload the external properties file when it
+     * changes on disk:
+     *     jbeans.app.props.watch.mode=none|watch|poll (default none)
+     *     jbeans.app.props.watch.debounce.ms=500
+     *     jbeans.app.props.watch.poll.ms=5000
+     *
+     * Optional properties to decrypt all encrypted properties when the file
+     * is loaded, failing the load if any cannot be decrypted:
+     *     jbeans.app.props.decrypt.mode=lazy|eager|parallel (default lazy)
+     *     jbeans.app.props.decrypt.threads=0 (parallel only, 0 = one per core)
+     *
+     * Optional property, how long changes made through the REST api are
+     * collected before they are written to the external properties file:
+     *     jbeans.app.props.write.delay.ms=50
+     *
+     * Optional property, how long to wait for the configuration providers
+     * before merging without the ones that have not answered:
+     *     jbeans.app.props.provider.timeout.ms=30000
+     *
+     * Optional properties to load the configuration providers in the
+     * background, and how long injection waits for them:
+     *     jbeans.app.props.startup.mode=sync|async (default sync)
+     *     jbeans.app.props.startup.timeout.ms=30000
+     *
+     * Optional property to start from the last known good configuration of
+     * the providers, kept in ${jbeans.app.props.file}.snapshot in the
+     * configuration directory:
+     *     jbeans.app.props.snapshot=true|false (default false)
+     *
+     * Optional property to keep the properties of the external properties
+     * file outside the Java heap, see OffHeapMap:
+     *     jbeans.app.props.store=heap|offheap (default heap)
+     *
+     * Optional property to count reads, misses, conversion failures and
+     * decryptions per key, see ConfigurationMetrics:
+     *     jbeans.app.props.metrics=true|false (default false)
+     *
+     * Optional properties to propagate changes made through the REST api to
+     * the other nodes of a cluster, through a directory they share or a
+     * ReplicationTransport class with a public no argument constructor, see
+     * Replicator. The node defaults to -D${jbeans.app.name}.node, else the
+     * JVM name, pid@host:
+     *     jbeans.app.props.replication.dir=/shared/jee-config-demo/replication
+     *     jbeans.app.props.replication.transport=org.example.JmsTransport
+     *     jbeans.app.props.replication.node=node1
+     *     jbeans.app.props.replication.poll.ms=1000
+     *
+     * Profiles, set with -D${jbeans.app.name}.profiles=dev,eu and
+     * -D${jbeans.app.name}.node=node1 or the JNDI props PROFILES and NODE
+     * next to ENVIRONMENT_PROPERTIES_PATH, overlay jbeans-app.properties with
+     * jbeans-app-dev.properties, jbeans-app-eu.properties and
+     * jbeans-app-node1.properties from the classpath, and the external
+     * properties file likewise, see JbeansConfigurationProvider.
      */
     void initializeAppProperties() {
         LOGGER.log(Level.INFO, "Now LOADING jbeans-app.properties");
 
-        Properties jbeansEnvProps = new Properties();
-        try {
-            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-            InputStream fis = classLoader.getResourceAsStream(INTERNAL_PROPS_FILE);
+        Map<String, String> appProperties = new HashMap<>();
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        try (InputStream fis = classLoader.getResourceAsStream(INTERNAL_PROPS_FILE)) {
             LOGGER.log(Level.INFO, "fis = {0}", fis);
-            jbeansEnvProps.load(fis);
-            for (Map.Entry<Object, Object> e : jbeansEnvProps.entrySet()) {
-                String key = (String) e.getKey();
-                String value = e.getValue().toString().trim();
+            Map<String, String> loaded = PropertiesFormat.load(fis);
+            String name = loaded.get(PROPERTY_APP_NAME);
+            if (name != null) {
+                APPLICATION_NAME = name.trim();
+            }
+            for (String profile : JbeansConfigurationProvider.resolveProfiles()) {
+                String profileFile = JbeansConfigurationProvider.profileFile(INTERNAL_PROPS_FILE, profile);
+                try (InputStream profileStream = classLoader.getResourceAsStream(profileFile)) {
+                    if (profileStream != null) {
+                        LOGGER.log(Level.INFO, "Now LOADING {0}", profileFile);
+                        loaded.putAll(PropertiesFormat.load(profileStream));
+                    }
+                }
+            }
+            for (Map.Entry<String, String> e : loaded.entrySet()) {
+                String key = e.getKey();
+                String value = e.getValue().trim();
                 switch (key) {
                     case PROPERTY_APP_NAME:
                         APPLICATION_NAME = value;
@@ -146,34 +503,326 @@ public class Configurator {
                             }
                         }
                         break;
+                    case PROPERTY_WATCH_MODE:
+                        WATCH_MODE = value;
+                        LOGGER.log(Level.INFO, "Configured jbeans.app.props.watch.mode = {0}", WATCH_MODE);
+                        break;
+                    case PROPERTY_WATCH_DEBOUNCE_MS:
+                        WATCH_DEBOUNCE_MILLIS = parseLong(key, value, WATCH_DEBOUNCE_MILLIS);
+                        break;
+                    case PROPERTY_WATCH_POLL_MS:
+                        WATCH_POLL_MILLIS = parseLong(key, value, WATCH_POLL_MILLIS);
+                        break;
+                    case PROPERTY_DECRYPT_MODE:
+                        DECRYPT_MODE = value;
+                        LOGGER.log(Level.INFO, "Configured jbeans.app.props.decrypt.mode = {0}", DECRYPT_MODE);
+                        break;
+                    case PROPERTY_DECRYPT_THREADS:
+                        DECRYPT_THREADS = (int) parseLong(key, value, DECRYPT_THREADS);
+                        break;
+                    case PROPERTY_WRITE_DELAY_MS:
+                        WRITE_DELAY_MILLIS = parseLong(key, value, WRITE_DELAY_MILLIS);
+                        break;
+                    case PROPERTY_PROVIDER_TIMEOUT_MS:
+                        PROVIDER_TIMEOUT_MILLIS = parseLong(key, value, PROVIDER_TIMEOUT_MILLIS);
+                        break;
+                    case PROPERTY_STARTUP_MODE:
+                        STARTUP_MODE = value.trim();
+                        LOGGER.log(Level.INFO, "Configured jbeans.app.props.startup.mode = {0}", STARTUP_MODE);
+                        break;
+                    case PROPERTY_STARTUP_TIMEOUT_MS:
+                        STARTUP_TIMEOUT_MILLIS = parseLong(key, value, STARTUP_TIMEOUT_MILLIS);
+                        break;
+                    case PROPERTY_SNAPSHOT:
+                        SNAPSHOT_ENABLED = Boolean.parseBoolean(value);
+                        LOGGER.log(Level.INFO, "Configured jbeans.app.props.snapshot = {0}", SNAPSHOT_ENABLED);
+                        break;
+                    case PROPERTY_STORE:
+                        STORE_MODE = value;
+                        LOGGER.log(Level.INFO, "Configured jbeans.app.props.store = {0}", STORE_MODE);
+                        break;
+                    case PROPERTY_METRICS:
+                        METRICS_ENABLED = Boolean.parseBoolean(value);
+                        LOGGER.log(Level.INFO, "Configured jbeans.app.props.metrics = {0}", METRICS_ENABLED);
+                        break;
+                    case PROPERTY_REPLICATION_DIR:
+                        REPLICATION_DIR = value;
+                        LOGGER.log(Level.INFO, "Configured jbeans.app.props.replication.dir = {0}", REPLICATION_DIR);
+                        break;
+                    case PROPERTY_REPLICATION_TRANSPORT:
+                        REPLICATION_TRANSPORT = value;
+                        LOGGER.log(Level.INFO, "Configured jbeans.app.props.replication.transport = {0}", REPLICATION_TRANSPORT);
+                        break;
+                    case PROPERTY_REPLICATION_NODE:
+                        REPLICATION_NODE = value;
+                        break;
+                    case PROPERTY_REPLICATION_POLL_MS:
+                        REPLICATION_POLL_MILLIS = parseLong(key, value, REPLICATION_POLL_MILLIS);
+                        break;
                 }
-                configuration.put(key, value);
+                appProperties.put(key, value);
             }
-            LOGGER.log(Level.INFO, "props configuration= {0}", configuration);
+            this.appProperties = Collections.unmodifiableMap(appProperties);
+            configuration.putAll(appProperties);
+            LOGGER.log(Level.INFO, "props configuration= {0}", configuration.current().asMap());
         } catch (IOException ex) {
             LOGGER.log(Level.SEVERE, ex.getMessage());
         }
     }
 
+    private static long parseLong(String key, String value, long defaultValue) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            LOGGER.log(Level.WARNING, "Configured {0} = {1} is not a number, using default= {2}", new Object[]{key, value, defaultValue});
+            return defaultValue;
+        }
+    }
+
     public boolean doesCustomConfigurationExist() {
         return !configurationProvider.isUnsatisfied();
     }
 
     /*
      * merge configuration from all defined configuration providers in the application.
+     * The merged configuration is built off to the side from jbeans-app.properties,
+     * the providers and runtime properties, and published as one new snapshot.
+     * Readers never see a partially merged configuration, and properties a
+     * provider no longer has are gone after the merge.
+     *
+     * Providers are fetched concurrently, each within
+     * jbeans.app.props.provider.timeout.ms, and merged in ordinal order, see
+     * ConfigurationProvider.getOrdinal().
      */
     public void mergeWithCustomConfiguration() {
+        List<ConfigurationLayer> layers = providerFetcher.fetch(configurationProvider, false, PROVIDER_TIMEOUT_MILLIS);
+        merge(layers);
+        saveSnapshot(layers);
+    }
+
+    /*
+     * Each source is one layer of the snapshot, nothing is copied into a
+     * merged map. Layers that did not change are kept as they are.
+     *
+     * Publishing the layers drops the overrides of changes made through this
+     * api, so no change may be in flight meanwhile, and the layer of the
+     * properties file is taken as it is now, with the changes made while the
+     * providers were fetched.
+     */
+    private void merge(List<ConfigurationLayer> providerLayers) {
         LOGGER.log(Level.INFO, "Merging configuration");
-        for (ConfigurationProvider provider : configurationProvider) {
+        updates.writeLock().lock();
+        try {
+            List<ConfigurationLayer> layers = new ArrayList<>(providerLayers.size() + 2);
+            layers.add(new ConfigurationLayer(RUNTIME_LAYER, new HashMap<>(runtimeProperties)));
+            for (int i = providerLayers.size() - 1; i >= 0; i--) {
+                layers.add(withLatestChanges(providerLayers.get(i)));
+            }
+            layers.add(new ConfigurationLayer(INTERNAL_PROPS_FILE, appProperties));
+            if (jbeansConfigProvider != null) {
+                jbeansConfigProvider.setMetrics(metrics);
+                secrets = jbeansConfigProvider.getSecretResolver();
+            }
+            ConfigurationSnapshot snapshot = this.configuration.replaceLayers(layers);
+            LOGGER.log(Level.INFO, "Published configuration version= {0}", snapshot.getVersion());
+        } finally {
+            updates.writeLock().unlock();
+        }
+    }
+
+    /*
+     * The current configuration of the JbeansConfigurationProvider in place
+     * of its fetched layer, other layers are returned as they are.
+     */
+    private static ConfigurationLayer withLatestChanges(ConfigurationLayer layer) {
+        JbeansConfigurationProvider provider = jbeansConfigProvider;
+        if (provider == null || !layer.getName().equals(ProviderFetcher.nameOf(provider))) {
+            return layer;
+        }
+        return new ConfigurationLayer(layer.getName(), provider.getRawConfiguration());
+    }
+
+    /*
+     * Called for every published configuration change from the start, drops
+     * the typed values of changed keys.
+     */
+    void invalidateTypedValues(ConfigurationSnapshot previous, ConfigurationSnapshot current, ConfigurationDelta delta) {
+        for (String key : delta.getChanged()) {
+            typedValues.invalidate(key);
+        }
+        for (String key : delta.getRemoved()) {
+            typedValues.invalidate(key);
+        }
+    }
 
-            LOGGER.log(Level.INFO, "Configuration provider= {0}", provider);
+    /*
+     * Called for every published configuration change after the providers
+     * were loaded the first time, so startup fires no events. Fires one
+     * ConfigChangedEvent with all the changes, qualified @ConfigPrefix(""),
+     * and notifies the observers of every namespace with changes, see
+     * ConfigPrefixObservers, with the changes of their namespace.
+     */
+    void configurationPublished(ConfigurationSnapshot previous, ConfigurationSnapshot current, ConfigurationDelta delta) {
+        LOGGER.log(Level.INFO, "Configuration version= {0}, added= {1}, removed= {2}, changed= {3}",
+                new Object[]{current.getVersion(), delta.getAdded().size(), delta.getRemoved().size(), delta.getChanged().size()});
+        if (configChanged == null) {
+            return;
+        }
+        configChanged.select(new ConfigPrefix.Literal("")).fire(new ConfigChangedEvent("", delta, previous, current));
+        if (prefixObservers == null) {
+            return;
+        }
+        for (Map.Entry<String, List<ObserverMethod<ConfigChangedEvent>>> observed : prefixObservers.getObservers().entrySet()) {
+            ConfigurationDelta namespace = delta.forNamespace(observed.getKey());
+            if (!namespace.isEmpty()) {
+                ConfigChangedEvent event = new ConfigChangedEvent(observed.getKey(), namespace, previous, current);
+                for (ObserverMethod<ConfigChangedEvent> observer : observed.getValue()) {
+                    observer.notify(event);
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-read the configuration source of every provider and merge the
+     * result. Used by the /configRefresh servlet and the file watcher.
+     */
+    public void refreshConfiguration() {
+        long start = System.nanoTime();
+        List<ConfigurationLayer> layers = providerFetcher.fetch(configurationProvider, true, PROVIDER_TIMEOUT_MILLIS);
+        merge(layers);
+        saveSnapshot(layers);
+        markReady();
+        metrics.reloaded(System.nanoTime() - start);
+    }
 
-            Map<String, String> customConfiguration = provider.getConfiguration();
-            this.configuration.putAll(customConfiguration);
+    /*
+     * Starts watching the external properties file and the files of the
+     * active profiles if a watch mode is configured in jbeans-app.properties.
+     */
+    void startFileWatcher() {
+        ConfigurationFileWatcher.Mode mode = ConfigurationFileWatcher.Mode.of(WATCH_MODE);
+        List<java.nio.file.Path> propertiesFiles = JbeansConfigurationProvider.getPropertiesFiles();
+        if (mode == ConfigurationFileWatcher.Mode.NONE || propertiesFiles.isEmpty()) {
+            LOGGER.log(Level.INFO, "Properties file watching disabled");
+            return;
+        }
+        for (java.nio.file.Path propertiesFile : propertiesFiles) {
+            ConfigurationFileWatcher watcher = new ConfigurationFileWatcher(propertiesFile, mode, WATCH_DEBOUNCE_MILLIS,
+                    WATCH_POLL_MILLIS, this::reloadPropertiesFile, metrics);
+            watchers.add(watcher);
+            watcher.start();
+        }
+        if (jbeansConfigProvider != null) {
+            // the provider's own writes are in memory already.
+            jbeansConfigProvider.setWriteListener(this::propertiesFileWritten);
+        }
+    }
 
+    private void propertiesFileWritten(java.nio.file.Path file, long before, long after) {
+        for (ConfigurationFileWatcher watcher : watchers) {
+            watcher.written(file, before, after);
         }
     }
 
+    /*
+     * Starts replicating changes made through the REST api if a replication
+     * directory or transport is configured in jbeans-app.properties. Changes
+     * the other nodes made meanwhile are applied first.
+     */
+    void startReplication() {
+        boolean shared = REPLICATION_DIR != null && !REPLICATION_DIR.isEmpty();
+        boolean custom = REPLICATION_TRANSPORT != null && !REPLICATION_TRANSPORT.isEmpty();
+        if (!shared && !custom) {
+            return;
+        }
+        if (jbeansConfigProvider == null) {
+            LOGGER.log(Level.WARNING, "Replication disabled, there is no properties file to replicate");
+            return;
+        }
+        try {
+            ReplicationTransport transport;
+            if (custom) {
+                transport = Class.forName(REPLICATION_TRANSPORT, true, Thread.currentThread().getContextClassLoader())
+                        .asSubclass(ReplicationTransport.class).getConstructor().newInstance();
+            } else {
+                transport = new SharedDirectoryTransport(Paths.get(REPLICATION_DIR));
+            }
+            String node = REPLICATION_NODE;
+            if (node == null || node.isEmpty()) {
+                node = JbeansConfigurationProvider.resolveNode();
+            }
+            if (node.isEmpty()) {
+                node = ManagementFactory.getRuntimeMXBean().getName();
+            }
+            Replicator started = new Replicator(node, transport, REPLICATION_POLL_MILLIS, this::applyReplicated);
+            replicator = started;
+            jbeansConfigProvider.setReplicator(started);
+            started.start();
+        } catch (IOException | ReflectiveOperationException | ClassCastException ex) {
+            LOGGER.log(Level.SEVERE, "Unable to start replicating configuration changes", ex);
+        }
+    }
+
+    /*
+     * Receiver of the replicator: applies the changes of the other nodes like
+     * a PATCH, to the properties file and the configuration.
+     */
+    void applyReplicated(List<ConfigurationMutation> mutations) {
+        long start = System.nanoTime();
+        updates.readLock().lock();
+        try {
+            Map<String, String> changes = jbeansConfigProvider.applyReplicated(mutations);
+            if (!changes.isEmpty()) {
+                LOGGER.log(Level.INFO, "Applying replicated changes: {0}", changes.keySet());
+                publishProviderValues(jbeansConfigProvider, changes.keySet());
+            }
+        } catch (ConfigurationException ex) {
+            LOGGER.log(Level.SEVERE, "ERROR: unable to apply replicated changes to the properties file.", ex);
+        } finally {
+            updates.readLock().unlock();
+        }
+        metrics.timed(ConfigurationMetrics.REPLICATION, System.nanoTime() - start);
+    }
+
+    /*
+     * Publishes the values the provider holds for the keys after a change.
+     * The provider orders local and replicated changes of a key, see
+     * Replicator, and the values are read in the mutation: of two racing
+     * changes the one published last reads the provider after both, so the
+     * configuration ends with the provider's winner, not the change that
+     * happened to be published last.
+     */
+    private void publishProviderValues(final JbeansConfigurationProvider provider, final Collection<String> keys) {
+        configuration.update(draft -> {
+            for (String key : keys) {
+                String value = provider.getRaw(key);
+                if (value == null) {
+                    draft.remove(key);
+                } else {
+                    draft.put(key, value);
+                }
+            }
+        });
+    }
+
+    /*
+     * Reload action of the file watcher, the watcher itself records the timing.
+     */
+    private void reloadPropertiesFile() throws ConfigurationException {
+        jbeansConfigProvider.refresh();
+        mergeWithCustomConfiguration();
+    }
+
+    /*
+     * The resolver of the current configuration. ConfigValue and ConfigView
+     * look it up on every read, the encryptor is only known once the
+     * providers are loaded.
+     */
+    SecretResolver getSecretResolver() {
+        return secrets;
+    }
+
     String obtainConfigurableName(InjectionPoint ip) {
         AnnotatedField field = (AnnotatedField) ip.getAnnotated();
         Configurable configurable = field.getAnnotation(Configurable.class);
@@ -184,60 +833,238 @@ public class Configurator {
         }
     }
 
+    Class<?> obtainConfigValueType(InjectionPoint ip) {
+        Type type = ip.getType();
+        if (type instanceof ParameterizedType) {
+            Type argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (argument instanceof Class) {
+                return (Class<?>) argument;
+            }
+        }
+        return String.class;
+    }
+
+    /**
+     * Produces a live handle for an injected property. The handle always
+     * returns the value of the current configuration, including changes made
+     * after the injecting bean was created.
+     *
+     * EXAMPLE USE IN A CLASS:
+     * @Inject @Configurable("jbeans.config.demo.int") ConfigValue<Integer> demoInt;
+     *
+     * @param point the injection point.
+     * @return a ConfigValue bound to the @Configurable key.
+     */
+    @javax.enterprise.inject.Produces
+    public <T> ConfigValue<T> getConfigValue(InjectionPoint point) {
+        String fieldName = obtainConfigurableName(point);
+        return new ConfigValue<>(fieldName, ValueType.of(obtainConfigValueType(point)), configuration, this::getSecretResolver);
+    }
+
+    /**
+     * Create a live handle to a property for code that does not use
+     * injection.
+     *
+     * @param key the property key.
+     * @param type String, Long, Integer, Float, Double or Boolean.
+     * @return a ConfigValue bound to key.
+     */
+    public <T> ConfigValue<T> getConfigValue(String key, Class<T> type) {
+        return new ConfigValue<>(key, ValueType.of(type), configuration, this::getSecretResolver);
+    }
+
+    /**
+     * Produces a live view of the properties below a namespace.
+     *
+     * EXAMPLE USE IN A CLASS:
+     * @Inject @Configurable("db.primary") ConfigView datasource;
+     *
+     * @param point the injection point.
+     * @return a ConfigView bound to the @Configurable namespace.
+     */
+    @javax.enterprise.inject.Produces
+    public ConfigView getConfigView(InjectionPoint point) {
+        return getConfigView(obtainConfigurableName(point));
+    }
+
+    /**
+     * Create a live view of a namespace for code that does not use
+     * injection.
+     *
+     * @param namespace the namespace, e.g. db.primary.
+     * @return a ConfigView bound to namespace.
+     */
+    public ConfigView getConfigView(String namespace) {
+        return new ConfigView(namespace, configuration, this::getSecretResolver);
+    }
+
+    /**
+     * Produces the properties below a namespace, with keys relative to the
+     * namespace, as they are when the bean is created.
+     *
+     * EXAMPLE USE IN A CLASS:
+     * @Inject @Configurable("db.primary") Map<String, String> datasource;
+     *
+     * @param point the injection point.
+     * @return the properties of the @Configurable namespace, e.g. url and
+     * user for db.primary.url and db.primary.user.
+     */
+    @javax.enterprise.inject.Produces
+    public Map<String, String> getConfigMap(InjectionPoint point) {
+        String namespace = obtainConfigurableName(point);
+        Map<String, String> values = getConfigView(namespace).asMap();
+        if (values.isEmpty() && !ready.isDone() && awaitReady(STARTUP_TIMEOUT_MILLIS)) {
+            values = getConfigView(namespace).asMap();
+        }
+        if (values.isEmpty()) {
+            misses.record(namespace, describe(point));
+        }
+        return values;
+    }
+
+    /**
+     * Produces the feature flags of the application, configured with
+     * feature.<flag>.enabled, rollout, allow and deny properties, see
+     * FeatureFlags. Flags are evaluated against the current configuration.
+     *
+     * EXAMPLE USE IN A CLASS:
+     * @Inject FeatureFlags features;
+     *
+     * @return the feature flags.
+     */
+    @javax.enterprise.inject.Produces
+    public FeatureFlags getFeatureFlags() {
+        FeatureFlags flags = featureFlags;
+        if (flags == null || flags.getStore() != configuration) {
+            flags = new FeatureFlags(configuration);
+            featureFlags = flags;
+        }
+        return flags;
+    }
+
     @javax.enterprise.inject.Produces
     public String getString(InjectionPoint point) {
         String fieldName = obtainConfigurableName(point);
-        return getValueForKey(fieldName);
+        return getValueForKey(fieldName, point);
     }
 
-    private String getValueForKey(String fieldName) {
-        String valueForFieldName = configuration.get(fieldName);
+    /*
+     * A key that is not configured before the providers are loaded may be
+     * configured by one of them, wait for them before giving up on it.
+     */
+    private String getValueForKey(String fieldName, InjectionPoint point) {
+        String raw = configuration.current().get(fieldName);
+        if (raw == null && !ready.isDone() && awaitReady(STARTUP_TIMEOUT_MILLIS)) {
+            raw = configuration.current().get(fieldName);
+        }
+        metrics.read(fieldName, raw != null);
+        String valueForFieldName = secrets.resolve(fieldName, raw);
         if (valueForFieldName == null) {
-            this.unconfiguredFields.add(fieldName);
+            misses.record(fieldName, describe(point));
         }
 
         return valueForFieldName;
     }
 
-    @javax.enterprise.inject.Produces
-    public long getLong(InjectionPoint point) {
-        String stringValue = getString(point);
-        if (stringValue == null) {
-            return 0;
+    /*
+     * Converts the value for an injection point through the typed value cache,
+     * so a value is parsed once per (key, type) and again only when it changes.
+     */
+    private Object getTypedValue(InjectionPoint point, ValueType type) throws ConfigurationException {
+        String fieldName = obtainConfigurableName(point);
+        try {
+            return typedValues.get(fieldName, getValueForKey(fieldName, point), type);
+        } catch (ConfigurationException ex) {
+            metrics.conversionFailed(fieldName);
+            throw ex;
         }
-        return Long.parseLong(stringValue);
     }
 
     @javax.enterprise.inject.Produces
-    public float getFloat(InjectionPoint point) {
-        String stringValue = getString(point);
-        if (stringValue == null) {
-            return Float.parseFloat("0.0");
-        }
-        return Float.parseFloat(stringValue);
+    public long getLong(InjectionPoint point) throws ConfigurationException {
+        return (Long) getTypedValue(point, ValueType.LONG);
     }
 
     @javax.enterprise.inject.Produces
-    public int getInteger(InjectionPoint point) {
-        String stringValue = getString(point);
-        if (stringValue == null) {
-            return 0;
-        }
-        return Integer.parseInt(stringValue);
+    public float getFloat(InjectionPoint point) throws ConfigurationException {
+        return (Float) getTypedValue(point, ValueType.FLOAT);
     }
 
     @javax.enterprise.inject.Produces
-    public boolean getBoolean(InjectionPoint point) {
+    public int getInteger(InjectionPoint point) throws ConfigurationException {
+        return (Integer) getTypedValue(point, ValueType.INTEGER);
+    }
+
+    @javax.enterprise.inject.Produces
+    public boolean getBoolean(InjectionPoint point) throws ConfigurationException {
         //LOGGER.log(Level.INFO, "inject Boolean for ip= {0}", point);
-        String stringValue = getString(point);
-        if (stringValue == null) {
-            return false;
+        return (Boolean) getTypedValue(point, ValueType.BOOLEAN);
+    }
+
+    /*
+     * The bean member of an injection point, e.g. org.example.Service.timeout.
+     */
+    private static String describe(InjectionPoint point) {
+        if (point == null || point.getMember() == null) {
+            return null;
         }
-        return Boolean.parseBoolean(stringValue);
+        return point.getMember().getDeclaringClass().getName() + "." + point.getMember().getName();
     }
 
+    /**
+     * @return the properties and namespaces injected so far that are not
+     * configured, a sorted read only copy.
+     */
     public Set<String> getUnconfiguredFields() {
-        return this.unconfiguredFields;
+        return misses.getKeys();
+    }
+
+    /**
+     * Report of the injected properties that are not configured and got
+     * null, 0 or false instead, the most missed first. Each miss has its
+     * count, the time it was first and last missed, in milliseconds since the
+     * epoch, the injection point that last asked for it and whether it has
+     * been configured since.
+     *
+     * @return {"tracked": n, "dropped": n, "misses": [...]} in JSON.
+     */
+    @GET
+    @Path("misses")
+    public Response getMisses() {
+        return Response.ok(misses.report(configuration.current())).build();
+    }
+
+    /**
+     * Report of the feature flags of the current configuration: whether all
+     * flags are killed by feature.enabled=false, and per flag whether it is
+     * enabled, its rollout percentage and the size of its allow and deny
+     * lists. Flags are changed like any property, e.g.
+     * PUT /configuration/feature.new-checkout.rollout with 50.
+     *
+     * @return {"version": n, "enabled": true, "flags": {...}} in JSON.
+     */
+    @GET
+    @Path("features")
+    public Response getFeatures() {
+        return Response.ok(getFeatureFlags().report()).build();
+    }
+
+    /**
+     * State of the replication of changes between nodes: this node's id and
+     * clock, how many mutations it published, how many are waiting to be
+     * published, and how many it received, applied and found stale.
+     *
+     * @return the replication state in JSON, or 404 if replication is not
+     * configured.
+     */
+    @GET
+    @Path("replication")
+    public Response getReplication() {
+        Replicator current = replicator;
+        if (current == null) {
+            return error(Response.Status.NOT_FOUND, "Replication is not configured");
+        }
+        return Response.ok(current.report()).build();
     }
 
     /**
@@ -245,24 +1072,115 @@ public class Configurator {
      *
      * @param key the desired property to retrieve.
      *
-     * @return the value associated with the input key.
+     * @return the value associated with the input key, encrypted values as
+     * ciphertext.
      */
     @GET
     @Path("{key}")
     public String getEntry(@PathParam("key") String key) {
-        return configuration.get(key);
+        String value = configuration.current().get(key);
+        metrics.read(key, value != null);
+        return value;
+    }
+
+    /**
+     * Retrieve the source of a property: runtime, the class name of the
+     * configuration provider, jbeans-app.properties or overrides for changes
+     * made through this api since the last reload.
+     *
+     * @param key the property.
+     * @return the name of the configuration layer the value comes from, or
+     * 404 if the property is not configured.
+     */
+    @GET
+    @Path("{key}/source")
+    @Produces(TEXT_PLAIN)
+    public Response getSource(@PathParam("key") String key) {
+        String source = configuration.current().getSource(key);
+        if (source == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(source).build();
     }
 
     /**
      * Retrieve JSON configuration attribute name/value pairs.
      *
-     * @return the current configuration in JSON.
+     * The response carries the configuration version as its ETag, a request
+     * with a matching If-None-Match gets 304 Not Modified. The JSON of each
+     * version is serialized once and reused.
+     *
+     * @param prefix only return keys equal to or below this prefix, e.g. db
+     * returns db.url and db.user.
+     * @param keys only return these comma separated keys.
+     * @param request the @Context Request, to evaluate If-None-Match.
+     * @return the current configuration in JSON, encrypted values as
+     * ciphertext.
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getManifestProperties() {
-		LOGGER.info("Returning app configuration map in JSON format");
-        return Response.ok(configuration).build();
+    public Response getManifestProperties(@QueryParam("prefix") String prefix, @QueryParam("keys") String keys,
+            @Context Request request) {
+        ConfigurationSnapshot snapshot = configuration.current();
+        EntityTag tag = entityTag(snapshot);
+        Response.ResponseBuilder notModified = request == null ? null : request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified.build();
+        }
+        LOGGER.fine("Returning app configuration map in JSON format");
+        return Response.ok(jsonResponses.get(snapshot, prefix, keys), MediaType.APPLICATION_JSON_TYPE).tag(tag).build();
+    }
+
+    /*
+     * The version alone would repeat after a restart, the tag also names this
+     * instance so a client never gets 304 for a configuration it has not seen.
+     */
+    EntityTag entityTag(ConfigurationSnapshot snapshot) {
+        return new EntityTag(snapshot.getVersion() + "-" + instanceId);
+    }
+
+    /**
+     * Readiness of the configuration, for container readiness probes. In
+     * async startup mode the configuration is ready once all providers have
+     * been loaded, otherwise as soon as the application is deployed.
+     *
+     * @return 200 and {"ready": true, ...} when ready, otherwise 503.
+     */
+    @GET
+    @Path("ready")
+    public Response getReadiness() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        boolean isReady = isReady();
+        status.put("ready", isReady);
+        status.put("version", configuration.getVersion());
+        if (ready.isCompletedExceptionally()) {
+            status.put("error", "Unable to load the configuration providers");
+        }
+        return Response.status(isReady ? Response.Status.OK : Response.Status.SERVICE_UNAVAILABLE).entity(status).build();
+    }
+
+    /**
+     * Retrieve configuration metrics: how many reloads were performed,
+     * skipped because the file content did not change, or failed, and how
+     * long they took, latency histograms of provider fetches, file writes and
+     * startup phases, and with jbeans.app.props.metrics=true read, miss,
+     * conversion failure and decryption counts.
+     *
+     * @param top include the top most read keys.
+     * @param keys true to include the counters of every key.
+     * @return the metrics in JSON.
+     */
+    @GET
+    @Path("metrics")
+    public Response getMetrics(@QueryParam("top") int top, @QueryParam("keys") boolean keys) {
+        Map<String, Object> values = metrics.toMap();
+        if (top > 0) {
+            values.put("top.reads", metrics.getTopReads(top));
+        }
+        if (keys) {
+            values.put("keys", metrics.getKeyCounters());
+        }
+        return Response.ok(values).build();
     }
 
     /**
@@ -280,25 +1198,30 @@ public class Configurator {
         Response response = null;
 
         if (APP_CONFIG_ADMIN_ENABLED) {
-            for (ConfigurationProvider provider : configurationProvider) {
-                if (provider instanceof JbeansConfigurationProvider) {
-                    JbeansConfigurationProvider jbeansProv = (JbeansConfigurationProvider) provider;
-                    Map<String, String> map = jbeansProv.getConfiguration();
-                    if (map.containsKey(key)) {
-                        response = Response.noContent().build();
-                    } else {
-                        URI uri = uriInfo.getAbsolutePathBuilder().build(key);
-                        response = Response.created(uri).build();
-                    }
-                    map.put(key, value);
-                    try {
-                        LOGGER.log(Level.INFO, "add/updating prop: ={0}, value={1}", new Object[]{key, value});
-                        LOGGER.log(Level.INFO, "jbeansConfig ={0}", provider);
-                        jbeansProv.saveOrUpdateProperties(key, value);
-                    } catch (ConfigurationException ex) {
-                        Logger.getLogger(Configurator.class.getName()).log(Level.SEVERE, null, "ERROR: unable to update properties file.");
+            updates.readLock().lock();
+            try {
+                for (ConfigurationProvider provider : configurationProvider) {
+                    if (provider instanceof JbeansConfigurationProvider) {
+                        JbeansConfigurationProvider jbeansProv = (JbeansConfigurationProvider) provider;
+                        Map<String, String> map = jbeansProv.getConfiguration();
+                        if (map.containsKey(key)) {
+                            response = Response.noContent().build();
+                        } else {
+                            URI uri = uriInfo.getAbsolutePathBuilder().build(key);
+                            response = Response.created(uri).build();
+                        }
+                        try {
+                            LOGGER.log(Level.INFO, "add/updating prop: ={0}, value={1}", new Object[]{key, value});
+                            LOGGER.log(Level.INFO, "jbeansConfig ={0}", provider);
+                            jbeansProv.saveOrUpdateProperties(key, value);
+                            publishProviderValues(jbeansProv, Collections.singleton(key));
+                        } catch (ConfigurationException ex) {
+                            Logger.getLogger(Configurator.class.getName()).log(Level.SEVERE, null, "ERROR: unable to update properties file.");
+                        }
                     }
                 }
+            } finally {
+                updates.readLock().unlock();
             }
         } else {
             if (response == null) {
@@ -322,28 +1245,167 @@ public class Configurator {
     public Response deleteEntry(@PathParam("key") String key) {
 
         if (APP_CONFIG_ADMIN_ENABLED) {
+            updates.readLock().lock();
             try {
                 // remove from property file.
                 jbeansConfigProvider.deleteProperty(key);
                 // remove from in memory configuration.
-                configuration.remove(key);
+                publishProviderValues(jbeansConfigProvider, Collections.singleton(key));
             } catch (ConfigurationException ex) {
                 Logger.getLogger(Configurator.class.getName()).log(Level.SEVERE, null, "ERROR: unable to update properties file.");
+            } finally {
+                updates.readLock().unlock();
             }
         }
         return Response.noContent().build();
     }
 
+    /**
+     * Add, update and delete several properties as one new configuration
+     * version, with a single write of the properties file. The body is a JSON
+     * document: {"set": {"key": "value", ...}, "remove": ["key", ...]}.
+     *
+     * The whole batch is validated before anything is changed, and written
+     * to the properties file before it is published: a batch that cannot be
+     * written fails with 500 and changes nothing. An If-Match header with a
+     * configuration version, as returned in the ETag of a previous patch,
+     * rejects the patch with 412 if the configuration has changed since. The
+     * comparison is strong: a weak W/ tag never matches and gets 412.
+     *
+     * @param patch the changes to apply.
+     * @param ifMatch the optional expected configuration version.
+     * @return the resulting configuration version.
+     */
+    @PATCH
+    @Consumes(APPLICATION_JSON)
+    public Response patchEntries(JsonObject patch, @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch) {
+        if (!APP_CONFIG_ADMIN_ENABLED) {
+            return error(Response.Status.FORBIDDEN, "Configuration admin is not enabled");
+        }
+        if (isWeak(ifMatch)) {
+            return error(Response.Status.PRECONDITION_FAILED, "If-Match needs a strong entity tag, not " + ifMatch);
+        }
+        final ConfigurationPatch changes;
+        final long expectedVersion;
+        try {
+            changes = ConfigurationPatch.parse(patch);
+            expectedVersion = parseVersion(ifMatch);
+        } catch (ConfigurationException ex) {
+            return error(Response.Status.BAD_REQUEST, ex.getMessage());
+        }
+        String instance = parseInstance(ifMatch);
+        if (instance != null && !instance.equals(instanceId)) {
+            return error(Response.Status.PRECONDITION_FAILED, "Configuration was reloaded since " + ifMatch);
+        }
+        if (jbeansConfigProvider == null) {
+            return error(Response.Status.CONFLICT, "No properties file to update");
+        }
+
+        // the write lock keeps other changes out between the version check,
+        // the write of the file and the publication of the new version.
+        final ConfigurationSnapshot snapshot;
+        updates.writeLock().lock();
+        try {
+            if (expectedVersion >= 0 && configuration.getVersion() != expectedVersion) {
+                return error(Response.Status.PRECONDITION_FAILED,
+                        "Configuration version is " + configuration.getVersion() + ", not " + expectedVersion);
+            }
+            if (!changes.isEmpty()) {
+                LOGGER.log(Level.INFO, "patching props: set={0}, remove={1}", new Object[]{changes.getSet().keySet(), changes.getRemove()});
+                jbeansConfigProvider.saveChanges(changes.toChanges());
+            }
+            snapshot = configuration.update(changes::apply);
+        } catch (ConfigurationException ex) {
+            LOGGER.log(Level.SEVERE, "ERROR: unable to update properties file.", ex);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, ex.getMessage());
+        } finally {
+            updates.writeLock().unlock();
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("version", snapshot.getVersion());
+        result.put("set", changes.getSet().size());
+        result.put("removed", changes.getRemove().size());
+        return Response.ok(result).tag(entityTag(snapshot)).build();
+    }
+
+    /*
+     * Parses the version of an If-Match header, "12-instance", "12" or 12.
+     * Returns -1 for a missing header or *.
+     */
+    static long parseVersion(String ifMatch) throws ConfigurationException {
+        String version = unquote(ifMatch);
+        if (version == null) {
+            return -1;
+        }
+        int dash = version.indexOf('-');
+        if (dash > 0) {
+            version = version.substring(0, dash);
+        }
+        try {
+            long parsed = Long.parseLong(version);
+            if (parsed < 0) {
+                throw new NumberFormatException(version);
+            }
+            return parsed;
+        } catch (NumberFormatException ex) {
+            throw new ConfigurationException("If-Match must be a configuration version, not " + ifMatch);
+        }
+    }
+
+    /*
+     * Returns the instance of an If-Match header, null if it has none.
+     */
+    static String parseInstance(String ifMatch) {
+        String tag = unquote(ifMatch);
+        int dash = tag == null ? -1 : tag.indexOf('-');
+        return dash > 0 ? tag.substring(dash + 1) : null;
+    }
+
+    /*
+     * Returns true for a weak entity tag, W/"12".
+     */
+    static boolean isWeak(String tag) {
+        return tag != null && tag.trim().startsWith("W/");
+    }
+
+    private static String unquote(String tag) {
+        if (tag == null || tag.trim().isEmpty() || tag.trim().equals("*")) {
+            return null;
+        }
+        String unquoted = tag.trim();
+        if (unquoted.length() > 1 && unquoted.startsWith("\"") && unquoted.endsWith("\"")) {
+            unquoted = unquoted.substring(1, unquoted.length() - 1);
+        }
+        return unquoted;
+    }
+
+    private static Response error(Response.Status status, String message) {
+        return Response.status(status).entity(Collections.singletonMap("error", message)).build();
+    }
+
     public void debugEnabled() {
+        this.runtimeProperties.put("debug", Boolean.TRUE.toString());
         this.configuration.put("debug", Boolean.TRUE.toString());
     }
 
     public void debugDisabled() {
+        this.runtimeProperties.put("debug", Boolean.FALSE.toString());
         this.configuration.put("debug", Boolean.FALSE.toString());
     }
 
     public Map<String, String> getJbeansConfiguration() {
-        return configuration;
+        return configuration.current().asMap();
+    }
+
+    /**
+     * Retrieve the currently published configuration snapshot. The snapshot
+     * is immutable, callers may hold on to it to read several properties from
+     * one consistent version of the configuration.
+     *
+     * @return the current configuration snapshot and its version.
+     */
+    public ConfigurationSnapshot getSnapshot() {
+        return configuration.current();
     }
 
 }
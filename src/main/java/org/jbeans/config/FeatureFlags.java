@@ -0,0 +1,293 @@
+package org.jbeans.config;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Feature flags defined by properties below feature., evaluated against the
+ * current configuration, so a flag flipped through the REST api or a reload
+ * reaches beans that already exist.
+ *
+ * A flag is configured with:
+ *     feature.new-checkout.enabled=true|false (default true, false is the kill switch)
+ *     feature.new-checkout.rollout=25 (percent of keys, 0 to 100, default 100)
+ *     feature.new-checkout.allow=tenant-1,tenant-7 (always on, unless killed)
+ *     feature.new-checkout.deny=tenant-3 (always off)
+ * and feature.enabled=false turns every flag off. A flag that is not
+ * configured is off.
+ *
+ * EXAMPLE USE IN A CLASS:
+ * @Inject FeatureFlags features;
+ * if (features.isEnabled("new-checkout", tenantId)) { ... }
+ *
+ * A key is in a rollout if the hash of the flag and the key falls in the
+ * first rollout percent of 10000 buckets. The hash only depends on the flag
+ * name and the key, so a key gets the same answer on every node and after a
+ * restart, and raising the rollout only adds keys. Each flag buckets keys
+ * differently.
+ *
+ * The rules are compiled by a listener of the store, on the thread that
+ * publishes a new version, and only if the version changed a feature.
+ * property. An evaluation reads the compiled rules and looks the flag up, it
+ * allocates nothing and never locks.
+ *
+ * @author jhogan
+ */
+public final class FeatureFlags {
+
+    static final String PREFIX = "feature.";
+    static final String ENABLED = "enabled";
+    static final String ROLLOUT = "rollout";
+    static final String ALLOW = "allow";
+    static final String DENY = "deny";
+    static final int BUCKETS = 10000;
+
+    private static final Logger LOGGER = Logger.getLogger(FeatureFlags.class.getName());
+
+    /*
+     * The compiled rules of one flag.
+     */
+    static final class Flag {
+
+        final String name;
+        final boolean enabled;
+        // the buckets in the rollout, 0 to BUCKETS.
+        final int rollout;
+        final Set<String> allow;
+        final Set<String> deny;
+        final int seed;
+
+        Flag(String name, boolean enabled, int rollout, Set<String> allow, Set<String> deny) {
+            this.name = name;
+            this.enabled = enabled;
+            this.rollout = rollout;
+            this.allow = allow;
+            this.deny = deny;
+            this.seed = name.hashCode();
+        }
+
+        boolean isEnabled(String key) {
+            if (!enabled || deny.contains(key)) {
+                return false;
+            }
+            return allow.contains(key) || rollout >= BUCKETS || rollout > 0 && bucket(seed, key) < rollout;
+        }
+    }
+
+    /*
+     * The flags compiled from the feature. properties of a snapshot version.
+     */
+    static final class Rules {
+
+        final long version;
+        final boolean enabled;
+        final Map<String, Flag> flags;
+
+        Rules(long version, boolean enabled, Map<String, Flag> flags) {
+            this.version = version;
+            this.enabled = enabled;
+            this.flags = flags;
+        }
+    }
+
+    private final ConfigurationStore store;
+    private volatile Rules rules = new Rules(-1L, true, Collections.<String, Flag>emptyMap());
+
+    /*
+     * The listener is added before the current snapshot is compiled, a
+     * version published meanwhile is compiled by one or the other.
+     */
+    FeatureFlags(ConfigurationStore store) {
+        this.store = store;
+        store.addListener(this::published);
+        compile(store.current());
+    }
+
+    ConfigurationStore getStore() {
+        return store;
+    }
+
+    /**
+     * @param flag the flag name, e.g. new-checkout.
+     * @return true if the flag is on for everyone: it is configured, not
+     * killed and rolled out to 100 percent.
+     */
+    public boolean isEnabled(String flag) {
+        Rules current = current();
+        Flag rule = current.flags.get(flag);
+        return current.enabled && rule != null && rule.enabled && rule.rollout >= BUCKETS;
+    }
+
+    /**
+     * @param flag the flag name, e.g. new-checkout.
+     * @param key the user, tenant or other id the rollout is decided for.
+     * @return true if the flag is on for the key.
+     */
+    public boolean isEnabled(String flag, String key) {
+        if (key == null) {
+            return isEnabled(flag);
+        }
+        Rules current = current();
+        Flag rule = current.flags.get(flag);
+        return current.enabled && rule != null && rule.isEnabled(key);
+    }
+
+    /**
+     * @return the names of the configured flags, sorted.
+     */
+    public Set<String> getFlags() {
+        return Collections.unmodifiableSet(new TreeMap<>(current().flags).keySet());
+    }
+
+    /**
+     * @return the compiled flags in a read only report, for the REST api.
+     */
+    Map<String, Object> report() {
+        Rules current = current();
+        Map<String, Object> flags = new LinkedHashMap<>();
+        for (Flag flag : new TreeMap<>(current.flags).values()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put(ENABLED, current.enabled && flag.enabled);
+            entry.put(ROLLOUT, flag.rollout * 100.0 / BUCKETS);
+            entry.put(ALLOW, flag.allow.size());
+            entry.put(DENY, flag.deny.size());
+            flags.put(flag.name, Collections.unmodifiableMap(entry));
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("version", current.version);
+        report.put(ENABLED, current.enabled);
+        report.put("flags", Collections.unmodifiableMap(flags));
+        return Collections.unmodifiableMap(report);
+    }
+
+    /*
+     * The rules of the latest version that changed a feature. property.
+     */
+    Rules current() {
+        return rules;
+    }
+
+    /*
+     * Listener of the store. Listeners may be told about versions out of
+     * order, the rules of an older version never replace newer ones.
+     */
+    private void published(ConfigurationSnapshot previous, ConfigurationSnapshot current, ConfigurationDelta delta) {
+        for (String key : delta.getKeys()) {
+            if (key.startsWith(PREFIX)) {
+                compile(current);
+                return;
+            }
+        }
+    }
+
+    private synchronized void compile(ConfigurationSnapshot snapshot) {
+        if (snapshot.getVersion() > rules.version) {
+            rules = compile(snapshot.getVersion(), snapshot.getByPrefix(PREFIX));
+        }
+    }
+
+    static Rules compile(long version, SortedMap<String, String> properties) {
+        boolean enabled = true;
+        Map<String, Map<String, String>> attributes = new HashMap<>();
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            String name = property.getKey().substring(PREFIX.length());
+            int dot = name.lastIndexOf('.');
+            if (dot < 0) {
+                if (ENABLED.equals(name)) {
+                    enabled = !"false".equalsIgnoreCase(property.getValue().trim());
+                } else {
+                    LOGGER.log(Level.WARNING, "Ignoring {0}, feature flags are configured as feature.<flag>.enabled|rollout|allow|deny",
+                            property.getKey());
+                }
+                continue;
+            }
+            attributes.computeIfAbsent(name.substring(0, dot), flag -> new HashMap<>()).put(name.substring(dot + 1), property.getValue());
+        }
+        Map<String, Flag> flags = new HashMap<>();
+        for (Map.Entry<String, Map<String, String>> flag : attributes.entrySet()) {
+            flags.put(flag.getKey(), compile(flag.getKey(), flag.getValue()));
+        }
+        LOGGER.log(Level.FINE, "Compiled {0} feature flags for version {1}", new Object[]{flags.size(), version});
+        return new Rules(version, enabled, flags);
+    }
+
+    /*
+     * A flag with an invalid rollout is compiled as killed, an invalid value
+     * must not turn a feature on for everyone.
+     */
+    private static Flag compile(String name, Map<String, String> attributes) {
+        boolean enabled = true;
+        boolean invalid = false;
+        int rollout = BUCKETS;
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            String value = attribute.getValue().trim();
+            switch (attribute.getKey()) {
+                case ENABLED:
+                    enabled = !"false".equalsIgnoreCase(value);
+                    break;
+                case ROLLOUT:
+                    try {
+                        double percent = Double.parseDouble(value.endsWith("%") ? value.substring(0, value.length() - 1) : value);
+                        if (percent < 0 || percent > 100) {
+                            throw new NumberFormatException();
+                        }
+                        rollout = (int) Math.round(percent * BUCKETS / 100);
+                    } catch (NumberFormatException ex) {
+                        LOGGER.log(Level.WARNING, "Feature flag {0} has rollout {1}, not a percentage from 0 to 100, the flag is off",
+                                new Object[]{name, value});
+                        invalid = true;
+                    }
+                    break;
+                case ALLOW:
+                case DENY:
+                    break;
+                default:
+                    LOGGER.log(Level.WARNING, "Ignoring unknown feature flag property {0}{1}.{2}",
+                            new Object[]{PREFIX, name, attribute.getKey()});
+            }
+        }
+        return new Flag(name, enabled && !invalid, rollout, ids(attributes.get(ALLOW)), ids(attributes.get(DENY)));
+    }
+
+    private static Set<String> ids(String value) {
+        if (value == null) {
+            return Collections.emptySet();
+        }
+        Set<String> ids = new HashSet<>();
+        for (String id : value.split(",")) {
+            if (!id.trim().isEmpty()) {
+                ids.add(id.trim());
+            }
+        }
+        return ids.isEmpty() ? Collections.<String>emptySet() : ids;
+    }
+
+    /*
+     * MurmurHash3 (32 bit) of the key's chars, seeded with the flag, reduced
+     * to a bucket. Stable across JVMs, String.hashCode is specified.
+     */
+    static int bucket(int seed, String key) {
+        int h = seed;
+        for (int i = 0; i < key.length(); i++) {
+            int k = key.charAt(i) * 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15) * 0x1b873593;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        }
+        h ^= key.length();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h >>> 1) % BUCKETS;
+    }
+}
@@ -0,0 +1,289 @@
+package org.jbeans.config;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The resolved values of the properties of a snapshot that have ${key} or
+ * ${key:default} placeholders, e.g. db.url=jdbc:postgresql://${db.host}:${db.port:5432}/app.
+ *
+ * A placeholder is replaced by the value of the property, else the system
+ * property, else the environment variable of that name, else its default.
+ * A placeholder that resolves to nothing is kept as it is. Placeholders in
+ * the value of a referenced property are resolved first, a property that
+ * refers to itself through other properties is a cycle, reported when the
+ * snapshot is built, and its placeholders are not resolved.
+ *
+ * The references between properties are kept as a dependency graph. A new
+ * snapshot re-resolves the properties that changed and the properties that
+ * depend on them, directly or through others, and keeps the resolved values
+ * of the others. A change that touches no placeholder shares the previous
+ * interpolation, any other change copies its maps, a copy in the number of
+ * properties with placeholders and the names they refer to, while the sets
+ * of dependents are shared until changed. System properties and environment
+ * variables are read when a property that refers to them is resolved.
+ *
+ * @author jhogan
+ */
+final class Interpolation {
+
+    private static final Logger LOGGER = Logger.getLogger(Interpolation.class.getName());
+    private static final String START = "${";
+    private static final char END = '}';
+    private static final char DEFAULT = ':';
+
+    static final Interpolation NONE = new Interpolation(Collections.<String, String>emptyMap(),
+            Collections.<String, List<String>>emptyMap(), Collections.<String, Set<String>>emptyMap());
+
+    // resolved values of the properties with placeholders.
+    private final Map<String, String> resolved;
+    // the names each property with placeholders refers to.
+    private final Map<String, List<String>> references;
+    // the properties that refer to a name.
+    private final Map<String, Set<String>> dependents;
+
+    private Interpolation(Map<String, String> resolved, Map<String, List<String>> references, Map<String, Set<String>> dependents) {
+        this.resolved = resolved;
+        this.references = references;
+        this.dependents = dependents;
+    }
+
+    /**
+     * @param key a property.
+     * @return the resolved value of the property, or null if the property
+     * has no placeholders.
+     */
+    String get(String key) {
+        return resolved.get(key);
+    }
+
+    boolean isEmpty() {
+        return resolved.isEmpty();
+    }
+
+    /**
+     * @return the resolved values of the properties with placeholders.
+     */
+    Map<String, String> getResolved() {
+        return Collections.unmodifiableMap(resolved);
+    }
+
+    /**
+     * @param key a property.
+     * @return the properties whose value refers to the key, directly.
+     */
+    Set<String> getDependents(String key) {
+        Set<String> keys = dependents.get(key);
+        return keys == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(keys);
+    }
+
+    /**
+     * @param value a raw value.
+     * @return true if the value has a placeholder.
+     */
+    static boolean hasPlaceholders(String value) {
+        return value != null && value.contains(START);
+    }
+
+    /**
+     * Resolves the placeholders of a new snapshot.
+     *
+     * @param previous the interpolation of the previous snapshot.
+     * @param raw the raw values of the new snapshot.
+     * @param changed the keys whose raw value changed, added or removed.
+     * @param affected receives the changed keys and the keys re-resolved
+     * because they depend on them.
+     * @return the interpolation of the new snapshot, previous if no property
+     * with placeholders is affected.
+     */
+    static Interpolation update(Interpolation previous, Function<String, String> raw, Collection<String> changed, Set<String> affected) {
+        affected.addAll(changed);
+        boolean relevant = false;
+        for (String key : changed) {
+            if (previous.references.containsKey(key) || previous.dependents.containsKey(key) || hasPlaceholders(raw.apply(key))) {
+                relevant = true;
+                break;
+            }
+        }
+        if (!relevant) {
+            return previous;
+        }
+
+        // copied in full, an interpolation is immutable once published.
+        Map<String, String> resolved = new HashMap<>(previous.resolved);
+        Map<String, List<String>> references = new HashMap<>(previous.references);
+        Map<String, Set<String>> dependents = new HashMap<>(previous.dependents);
+        // dependents sets are shared with the previous snapshot until changed.
+        Set<String> copied = new HashSet<>();
+        for (String key : changed) {
+            List<String> old = references.remove(key);
+            resolved.remove(key);
+            if (old != null) {
+                for (String name : old) {
+                    Set<String> keys = mutable(dependents, copied, name);
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        dependents.remove(name);
+                    }
+                }
+            }
+            String value = raw.apply(key);
+            if (hasPlaceholders(value)) {
+                List<String> names = names(value);
+                references.put(key, names);
+                for (String name : names) {
+                    mutable(dependents, copied, name).add(key);
+                }
+            }
+        }
+
+        Deque<String> queue = new ArrayDeque<>(changed);
+        while (!queue.isEmpty()) {
+            Set<String> keys = dependents.get(queue.poll());
+            if (keys != null) {
+                for (String key : keys) {
+                    if (affected.add(key)) {
+                        queue.add(key);
+                    }
+                }
+            }
+        }
+
+        Resolver resolver = new Resolver(raw, resolved, references, affected);
+        for (String key : affected) {
+            if (references.containsKey(key)) {
+                resolver.resolve(key);
+            }
+        }
+        return new Interpolation(resolved, references, dependents);
+    }
+
+    private static Set<String> mutable(Map<String, Set<String>> dependents, Set<String> copied, String name) {
+        Set<String> keys = dependents.get(name);
+        if (keys == null) {
+            keys = new HashSet<>();
+            dependents.put(name, keys);
+            copied.add(name);
+        } else if (copied.add(name)) {
+            keys = new HashSet<>(keys);
+            dependents.put(name, keys);
+        }
+        return keys;
+    }
+
+    /*
+     * The names of the placeholders of a value, each once, in order.
+     */
+    static List<String> names(String value) {
+        Set<String> names = new LinkedHashSet<>();
+        for (int start = value.indexOf(START); start >= 0; start = value.indexOf(START, start)) {
+            int end = value.indexOf(END, start + START.length());
+            if (end < 0) {
+                break;
+            }
+            String placeholder = value.substring(start + START.length(), end);
+            int separator = placeholder.indexOf(DEFAULT);
+            names.add(separator < 0 ? placeholder : placeholder.substring(0, separator));
+            start = end + 1;
+        }
+        return new ArrayList<>(names);
+    }
+
+    /*
+     * Resolves the affected keys depth first, a key is resolved after the
+     * keys it refers to.
+     */
+    private static final class Resolver {
+
+        final Function<String, String> raw;
+        final Map<String, String> resolved;
+        final Map<String, List<String>> references;
+        final Set<String> pending;
+        final Set<String> done = new HashSet<>();
+        final List<String> path = new ArrayList<>();
+
+        Resolver(Function<String, String> raw, Map<String, String> resolved, Map<String, List<String>> references, Set<String> affected) {
+            this.raw = raw;
+            this.resolved = resolved;
+            this.references = references;
+            this.pending = affected;
+        }
+
+        String resolve(String key) {
+            if (!pending.contains(key) || done.contains(key)) {
+                return resolved.get(key);
+            }
+            int cycle = path.indexOf(key);
+            if (cycle >= 0) {
+                List<String> keys = new ArrayList<>(path.subList(cycle, path.size()));
+                keys.add(key);
+                LOGGER.log(Level.SEVERE, "Placeholder cycle {0}, the placeholders of these properties are not resolved",
+                        String.join(" -> ", keys));
+                for (String member : keys) {
+                    resolved.put(member, raw.apply(member));
+                    done.add(member);
+                }
+                return null;
+            }
+            path.add(key);
+            String value = substitute(key, raw.apply(key));
+            path.remove(path.size() - 1);
+            if (!done.contains(key)) {
+                resolved.put(key, value);
+                done.add(key);
+            }
+            return resolved.get(key);
+        }
+
+        private String substitute(String key, String value) {
+            StringBuilder out = new StringBuilder(value.length() + 16);
+            int copied = 0;
+            for (int start = value.indexOf(START); start >= 0; start = value.indexOf(START, start)) {
+                int end = value.indexOf(END, start + START.length());
+                if (end < 0) {
+                    break;
+                }
+                String placeholder = value.substring(start + START.length(), end);
+                int separator = placeholder.indexOf(DEFAULT);
+                String name = separator < 0 ? placeholder : placeholder.substring(0, separator);
+                String replacement = lookup(name);
+                if (replacement == null && separator >= 0) {
+                    replacement = placeholder.substring(separator + 1);
+                }
+                if (replacement == null) {
+                    if (!done.contains(key)) {
+                        LOGGER.log(Level.WARNING, "Unresolved placeholder ${{0}} in {1}", new Object[]{name, key});
+                    }
+                    replacement = value.substring(start, end + 1);
+                }
+                out.append(value, copied, start).append(replacement);
+                copied = end + 1;
+                start = end + 1;
+            }
+            return out.append(value, copied, value.length()).toString();
+        }
+
+        private String lookup(String name) {
+            String value = references.containsKey(name) ? resolve(name) : raw.apply(name);
+            if (value == null && !done.contains(name)) {
+                value = System.getProperty(name);
+                if (value == null) {
+                    value = System.getenv(name);
+                }
+            }
+            return value;
+        }
+    }
+}
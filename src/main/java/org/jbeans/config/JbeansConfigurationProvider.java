@@ -1,30 +1,49 @@
 package org.jbeans.config;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Date;
-import java.util.Enumeration;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Named;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.ws.rs.Produces;
+import org.jasypt.encryption.pbe.PooledPBEStringEncryptor;
 import org.jasypt.encryption.pbe.StandardPBEStringEncryptor;
-import org.jasypt.properties.EncryptableProperties;
 
 /**
  * Load properties from the ${artifactId}.properties file. If a system
  * environment variable called ${artifactId}.config.dir is not available, the
  * default properties packaged with deployment is used.
  *
+ * Profiles overlay the file: with -D${artifactId}.profiles=prod,eu and
+ * -D${artifactId}.node=node1, or the JNDI props PROFILES and NODE next to
+ * ENVIRONMENT_PROPERTIES_PATH, the properties of app-prod.properties,
+ * app-eu.properties and app-node1.properties override those of
+ * app.properties, in that order. The files are merged into one map when they
+ * are loaded, lookups never walk the overlays. A missing profile file is
+ * skipped. A change made through the REST api is written to the last file
+ * that sets the key, else to app.properties, and a delete removes the key
+ * from all of them.
+ *
  *
  * @author jhogan
  * @version 1.0
@@ -39,17 +58,33 @@ public class JbeansConfigurationProvider implements ConfigurationProvider {
     private static final Logger LOGGER = Logger.getLogger(JbeansConfigurationProvider.class.getName());
     private static final String JNDI_ROOT = "java:global/jbeans/";
     private static final String JNDI_SUFFIX = "/ENVIRONMENT_PROPERTIES_PATH";
-    private String JNDI_PROPERTIES_PATH;
+    private static final String JNDI_PROFILES_SUFFIX = "/PROFILES";
+    private static final String JNDI_NODE_SUFFIX = "/NODE";
+    private static String JNDI_PROPERTIES_PATH;
     static String APP_CONFIG_DIR;
     private static String APP_FQ_PROPS_FILE;
     private static String CONFIG_DIR_PROP;
     private static final String JASYPT_PW;
 
-    Map<String, String> configuration = new HashMap<>();
+    ConfigurationStore configuration = new ConfigurationStore();
     private static final String CONFIGURATION_FILE_MISSING = "Config file not found.  Check jbeans.config.dir OR JNDI prop";
     private static final String ERROR_MSG_ENCRYPTED_PROPS_MISSING_EKEY = "***** ERROR, app has encrypted properties, but -DeKey property is missing.";
-    StandardPBEStringEncryptor encryptor= new StandardPBEStringEncryptor();
+    StandardPBEStringEncryptor encryptor = newEncryptor();
+    final SecretResolver secrets;
+    private final SecretResolver.Mode decryptMode;
+    private final int decryptThreads;
     private static boolean hasEncryptedProps;
+    private final Map<Path, WriteBehindPersister> persisters = new HashMap<>();
+    // the profile files that set a key, for the keys set by any.
+    private volatile Map<String, List<Path>> overlaid = Collections.emptyMap();
+    private volatile Replicator replicator;
+    private volatile WriteBehindPersister.Listener writeListener;
+    // orders changes made in memory and reloads of the properties file.
+    private final Object updates = new Object();
+    private volatile ConfigurationMetrics metrics = new ConfigurationMetrics();
+    // decrypts in PARALLEL mode, null outside a container.
+    @Resource
+    ManagedExecutorService executor;
     
 
     static {
@@ -62,6 +97,20 @@ public class JbeansConfigurationProvider implements ConfigurationProvider {
         }
     }
 
+    public JbeansConfigurationProvider() {
+        decryptMode = SecretResolver.Mode.of(Configurator.DECRYPT_MODE);
+        decryptThreads = Configurator.DECRYPT_THREADS > 0 ? Configurator.DECRYPT_THREADS : Runtime.getRuntime().availableProcessors();
+        if (decryptMode == SecretResolver.Mode.PARALLEL) {
+            // a single StandardPBEStringEncryptor serializes decryption, use one per thread.
+            PooledPBEStringEncryptor pooledEncryptor = new PooledPBEStringEncryptor();
+            pooledEncryptor.setPoolSize(decryptThreads);
+            pooledEncryptor.setPassword(JASYPT_PW);
+            secrets = new SecretResolver(pooledEncryptor);
+        } else {
+            secrets = new SecretResolver(encryptor);
+        }
+    }
+
     /**
      * Initializes a JBeans related properties based on yourAppName.config.dir
      * absolute path to where yourAppName.properties is located.
@@ -74,13 +123,33 @@ public class JbeansConfigurationProvider implements ConfigurationProvider {
      */
     void initializeProps()
             throws ConfigurationException {
+        LOGGER.log(Level.INFO, "INITIALIZING APPLICATION CONFIGURATION FOR: {0}", Configurator.APPLICATION_NAME);
+        resolveConfigDir();
+        LOGGER.log(Level.INFO, "INTERNAL_PROPS_FILE= {0}", Configurator.INTERNAL_PROPS_FILE);
+        APP_FQ_PROPS_FILE = APP_CONFIG_DIR + File.separator + Configurator.EXTERNAL_PROPS_FILE;
+        LOGGER.log(Level.INFO, "FULLY qualified props file= {0}", APP_FQ_PROPS_FILE);
+
+        if (APP_CONFIG_DIR != null) {
+            loadPropertiesFile();
+        } else {
+            LOGGER.log(Level.SEVERE, "An system property called {0} must exist to start this application.", CONFIG_DIR_PROP);
+            throw new ConfigurationException("An system property called " + CONFIG_DIR_PROP + " must exist to start this application.");
+        }
+        Configurator.jbeansConfigProvider = this;
+    }
+
+    /**
+     * Looks up APP_CONFIG_DIR, from -D${artifactId}.config.dir or else JNDI.
+     * The directory is only looked up once, later calls return it.
+     *
+     * @return the configuration directory.
+     * @throws ConfigurationException if neither is defined.
+     */
+    static synchronized String resolveConfigDir() throws ConfigurationException {
         if (Configurator.APPLICATION_NAME == null) {
             throw new ConfigurationException("artifactId cannot be null");
         }
-
         CONFIG_DIR_PROP = Configurator.APPLICATION_NAME + ".config.dir";
-
-        LOGGER.log(Level.INFO, "INITIALIZING APPLICATION CONFIGURATION FOR: {0}", Configurator.APPLICATION_NAME);
         LOGGER.log(Level.INFO, "EXPECTED config dir property: {0}", CONFIG_DIR_PROP);
 
         if (APP_CONFIG_DIR == null) {
@@ -99,43 +168,201 @@ public class JbeansConfigurationProvider implements ConfigurationProvider {
             }
         }
         LOGGER.log(Level.INFO, "APP_CONFIG_DIR= {0}", APP_CONFIG_DIR);
-        LOGGER.log(Level.INFO, "INTERNAL_PROPS_FILE= {0}", Configurator.INTERNAL_PROPS_FILE);
-        APP_FQ_PROPS_FILE = APP_CONFIG_DIR + File.separator + Configurator.EXTERNAL_PROPS_FILE;
-        LOGGER.log(Level.INFO, "FULLY qualified props file= {0}", APP_FQ_PROPS_FILE);
+        return APP_CONFIG_DIR;
+    }
 
-        if (APP_CONFIG_DIR != null) {
+    /**
+     * Looks up the active profiles, from -D${artifactId}.profiles, a comma
+     * separated list, or else JNDI, followed by the node from
+     * -D${artifactId}.node or else JNDI. They are looked up when the
+     * properties are loaded, a change takes effect with the next reload.
+     *
+     * @return the active profiles, lowest priority first, may be empty.
+     */
+    static List<String> resolveProfiles() {
+        String app = Configurator.APPLICATION_NAME;
+        if (app == null) {
+            return Collections.emptyList();
+        }
+        Set<String> profiles = new LinkedHashSet<>();
+        for (String profile : lookup(app + ".profiles", app + JNDI_PROFILES_SUFFIX).split(",")) {
+            if (!profile.trim().isEmpty()) {
+                profiles.add(profile.trim());
+            }
+        }
+        String node = resolveNode();
+        if (!node.isEmpty()) {
+            profiles.remove(node);
+            profiles.add(node);
+        }
+        LOGGER.log(Level.FINE, "Active profiles= {0}", profiles);
+        return new ArrayList<>(profiles);
+    }
 
-            FileInputStream in = null;
-            try {
-                encryptor.setPassword(JASYPT_PW);
-                Properties jbeansEnvProps = new EncryptableProperties(encryptor);
+    /**
+     * @return the node from -D${artifactId}.node or else JNDI, "" if it has
+     * none.
+     */
+    static String resolveNode() {
+        String app = Configurator.APPLICATION_NAME;
+        return app == null ? "" : lookup(app + ".node", app + JNDI_NODE_SUFFIX).trim();
+    }
+
+    /*
+     * A system property, else a JNDI prop below java:global/jbeans/, else "".
+     */
+    private static String lookup(String property, String jndiName) {
+        String value = System.getProperty(property);
+        if (value != null) {
+            return value;
+        }
+        try {
+            Object bound = InitialContext.doLookup(JNDI_ROOT + jndiName);
+            return bound == null ? "" : bound.toString();
+        } catch (NamingException ex) {
+            LOGGER.log(Level.FINE, "No -D{0} property or JNDI prop {1}", new Object[]{property, JNDI_ROOT + jndiName});
+            return "";
+        }
+    }
+
+    /**
+     * @param file a properties file name, app.properties.
+     * @param profile a profile.
+     * @return the name of the profile's file, app-profile.properties.
+     */
+    static String profileFile(String file, String profile) {
+        int extension = file.lastIndexOf('.');
+        return extension > 0 ? file.substring(0, extension) + "-" + profile + file.substring(extension) : file + "-" + profile;
+    }
 
-                in = new FileInputStream(APP_FQ_PROPS_FILE);
-                jbeansEnvProps.load(in);
+    /**
+     * @return the external properties file followed by the files of the
+     * active profiles, whether they exist or not, or an empty list if the
+     * provider has not been initialized.
+     */
+    static List<Path> getPropertiesFiles() {
+        if (APP_FQ_PROPS_FILE == null) {
+            return Collections.emptyList();
+        }
+        Path file = Paths.get(APP_FQ_PROPS_FILE);
+        List<Path> files = new ArrayList<>();
+        files.add(file);
+        for (String profile : resolveProfiles()) {
+            files.add(file.resolveSibling(profileFile(file.getFileName().toString(), profile)));
+        }
+        return files;
+    }
 
-                populateConfigMap(jbeansEnvProps);
-                
-            } catch (FileNotFoundException ex) {
+    /**
+     * @return an encryptor for the application's Jasypt password.
+     */
+    static StandardPBEStringEncryptor newEncryptor() {
+        StandardPBEStringEncryptor standardEncryptor = new StandardPBEStringEncryptor();
+        standardEncryptor.setPassword(JASYPT_PW);
+        return standardEncryptor;
+    }
+
+    /*
+     * Reads APP_FQ_PROPS_FILE and the files of the active profiles, and
+     * publishes their merged properties as a new snapshot. Encrypted values
+     * are kept as ciphertext, they are decrypted when read.
+     *
+     * Changes not yet written to a file are applied on top of it, they are
+     * taken before the file is read: a change written meanwhile is in the
+     * file, and no change can be made until the snapshot is published.
+     */
+    private void loadPropertiesFile() throws ConfigurationException {
+        synchronized (updates) {
+            try {
+                Map<String, String> loaded = null;
+                Map<String, List<Path>> overlays = new HashMap<>();
+                for (Path file : getPropertiesFiles()) {
+                    Map<String, String> unwritten = getUnwritten(file);
+                    Map<String, String> values;
+                    if (loaded == null) {
+                        values = PropertiesFormat.load(file);
+                    } else if (Files.exists(file)) {
+                        values = PropertiesFormat.load(file);
+                        LOGGER.log(Level.INFO, "Profile file {0}, properties= {1}", new Object[]{file, values.size()});
+                    } else {
+                        LOGGER.log(Level.FINE, "No profile file {0}", file);
+                        continue;
+                    }
+                    for (Map.Entry<String, String> change : unwritten.entrySet()) {
+                        if (change.getValue() == null) {
+                            values.remove(change.getKey());
+                        } else {
+                            values.put(change.getKey(), change.getValue());
+                        }
+                    }
+                    if (loaded == null) {
+                        loaded = values;
+                    } else {
+                        loaded.putAll(values);
+                        for (String key : values.keySet()) {
+                            overlays.computeIfAbsent(key, k -> new ArrayList<>(2)).add(file);
+                        }
+                    }
+                }
+                overlaid = overlays;
+                boolean hasEncProps = hasEncryptedProperties(loaded);
+                if (hasEncProps && decryptMode != SecretResolver.Mode.LAZY) {
+                    decryptAll(loaded);
+                }
+                loaded.put(Configurator.APPLICATION_NAME + ".config.dir", APP_CONFIG_DIR);
+                ConfigurationSnapshot snapshot = configuration.replace(Configurator.STORE_OFF_HEAP.equalsIgnoreCase(Configurator.STORE_MODE)
+                        ? OffHeapMap.of(loaded) : loaded);
+                LOGGER.log(Level.INFO, "Published {0} properties, version= {1}", new Object[]{snapshot.size(), snapshot.getVersion()});
+
+            } catch (NoSuchFileException ex) {
                 Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
                 throw new ConfigurationException(CONFIGURATION_FILE_MISSING);
-            } catch (IOException ex) {
+            } catch (IOException | IllegalArgumentException ex) {
                 Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
                 throw new ConfigurationException(ex.getMessage());
-            } finally {
-                if (in != null) {
-                    try {
-                        in.close();
-                    } catch (IOException ex) {
-                        Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                }
             }
+        }
+    }
+
+    private synchronized Map<String, String> getUnwritten(Path file) {
+        WriteBehindPersister persister = persisters.get(file);
+        return persister == null ? Collections.<String, String>emptyMap() : persister.getUnwritten();
+    }
+
+    /*
+     * Decrypts all encrypted values before the snapshot is published, so a
+     * value that cannot be decrypted fails the load.
+     */
+    private void decryptAll(Map<String, String> loaded) throws ConfigurationException {
+        int threads = decryptMode == SecretResolver.Mode.PARALLEL ? decryptThreads : 1;
+        long start = System.nanoTime();
+        int count = secrets.decryptAll(loaded, threads, executor);
+        LOGGER.log(Level.INFO, "DECRYPTED {0} properties in {1} ms, mode= {2}, threads= {3}",
+                new Object[]{count, (System.nanoTime() - start) / 1000000, decryptMode, threads});
+    }
+
+    /**
+     * Re-read the external properties file. Unlike getConfiguration(), which
+     * only loads the file once, this always reads the file again and
+     * publishes its current content.
+     *
+     * @throws ConfigurationException if the file cannot be read.
+     */
+    @Override
+    public void refresh() throws ConfigurationException {
+        if (APP_FQ_PROPS_FILE == null) {
+            initializeProps();
         } else {
-            LOGGER.log(Level.SEVERE, "An system property called {0} must exist to start this application.", CONFIG_DIR_PROP);
-            throw new ConfigurationException("An system property called " + CONFIG_DIR_PROP + " must exist to start this application.");
+            loadPropertiesFile();
         }
-        configuration.put(Configurator.APPLICATION_NAME + ".config.dir", APP_CONFIG_DIR);
-        Configurator.jbeansConfigProvider = this;
+    }
+
+    /**
+     * @return the fully qualified external properties file, or null if the
+     * provider has not been initialized.
+     */
+    static String getPropertiesFile() {
+        return APP_FQ_PROPS_FILE;
     }
 
     /**
@@ -147,7 +374,7 @@ public class JbeansConfigurationProvider implements ConfigurationProvider {
      */
     public String getString(String key, String def) {
         String retval;
-        retval = configuration.get(key);
+        retval = secrets.resolve(key, configuration.current().get(key));
         if (retval == null) {
             retval = def;
         }
@@ -157,23 +384,63 @@ public class JbeansConfigurationProvider implements ConfigurationProvider {
     /**
      * Retrieve the JBeans configuration object.
      *
-     * @return Map<String, String> configuration.
+     * @return Map<String, String> configuration, a read only view of the
+     * current snapshot. Encrypted values are decrypted as they are read.
      */
     @Override
     public Map<String, String> getConfiguration() {
-        if (configuration.isEmpty()) {
+        return secrets.decryptingView(getRawConfiguration());
+    }
+
+    /**
+     * Retrieve the JBeans configuration with encrypted values as ciphertext
+     * and ${key} placeholders as they are in the file, the Configurator
+     * resolves them against the properties of all providers.
+     *
+     * @return Map<String, String> configuration, a read only view of the
+     * current snapshot.
+     */
+    @Override
+    public Map<String, String> getRawConfiguration() {
+        if (configuration.current().isEmpty()) {
             try {
                 initializeProps();
             } catch (ConfigurationException ex) {
                 Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
-        return configuration;
+        return configuration.current().asRawMap();
+    }
+
+    /**
+     * @param key the property key.
+     * @return the current value of the key with encrypted values as
+     * ciphertext and placeholders unresolved, or null if it is not
+     * configured.
+     */
+    String getRaw(String key) {
+        return configuration.current().getRaw(key);
+    }
+
+    /**
+     * @param metrics counts decryptions and times writes of the properties
+     * file.
+     */
+    void setMetrics(ConfigurationMetrics metrics) {
+        this.metrics = metrics;
+        secrets.setMetrics(metrics);
+    }
+
+    /**
+     * @return the resolver that decrypts this provider's encrypted values.
+     */
+    SecretResolver getSecretResolver() {
+        return secrets;
     }
 
     /**
      * This method adds or updates a property to the externally configured
-     * appName.properties file.
+     * appName.properties file. Waits until the change is on disk.
      *
      * @param propName the property to add or update.
      * @param prpValue the value to set the add or udpate property to.
@@ -182,49 +449,102 @@ public class JbeansConfigurationProvider implements ConfigurationProvider {
      * (FileNotFoundException, ...).
      */
     void saveOrUpdateProperties(String propName, String prpValue) throws ConfigurationException {
-        Properties jbeansEnvProps = new Properties();
-        FileInputStream in = null;
-        FileOutputStream out = null;
-
         if (APP_CONFIG_DIR != null) {
-            try {
-                LOGGER.log(Level.INFO, "{0} nPROPERTIES:", Configurator.INTERNAL_PROPS_FILE);
-                File file = new File(APP_FQ_PROPS_FILE);
-                in = new FileInputStream(file);
-                jbeansEnvProps.load(in);
-                jbeansEnvProps.setProperty(propName, prpValue);
-
-                out = new FileOutputStream(file);
-                jbeansEnvProps.store(out, " -- property: " + propName + " was added or updated at runtime on: " + new Date());
-                configuration.put(propName, prpValue);
-            } catch (FileNotFoundException ex) {
-                Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
-                throw new ConfigurationException(CONFIGURATION_FILE_MISSING);
-            } catch (IOException ex) {
-                Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
-                throw new ConfigurationException(ex.getMessage());
-            } finally {
-                try {
-                    if (in != null) {
-                        in.close();
-                    }
-                } catch (IOException ex) {
-                    Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
-                }
-                try {
-                    if (out != null) {
-                        out.close();
-                    }
-                } catch (IOException ex) {
-                    Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
+            awaitWrite(saveOrUpdatePropertiesAsync(propName, prpValue));
+        }
+    }
+
+    /**
+     * Adds or updates a property in memory right away and in the externally
+     * configured properties file shortly after, together with other changes
+     * made at about the same time.
+     *
+     * @param propName the property to add or update.
+     * @param prpValue the value to set the property to.
+     * @return a future completed when the change is on disk.
+     */
+    CompletableFuture<Void> saveOrUpdatePropertiesAsync(String propName, String prpValue) {
+        synchronized (updates) {
+            configuration.put(propName, prpValue);
+            publish(Collections.singletonMap(propName, prpValue));
+            return getPersister(fileOf(propName)).put(propName, prpValue);
+        }
+    }
+
+    /**
+     * Applies a batch of changes to the externally configured properties
+     * file with a single write, and in memory and to the other nodes only
+     * once they are on disk: a batch that cannot be written changes nothing.
+     * Waits until the changes are on disk.
+     *
+     * @param changes the properties to add or update, properties mapped to
+     * null are deleted.
+     * @throws ConfigurationException if the properties file could not be
+     * written, nothing was changed.
+     */
+    void saveChanges(Map<String, String> changes) throws ConfigurationException {
+        if (APP_CONFIG_DIR == null) {
+            return;
+        }
+        CompletableFuture<Void> write;
+        synchronized (updates) {
+            write = persist(changes);
+        }
+        awaitWrite(write);
+        synchronized (updates) {
+            applyInMemory(changes);
+            publish(changes);
+        }
+    }
+
+    /*
+     * Applies changes in memory and hands them to the persisters, the caller
+     * holds updates.
+     */
+    private CompletableFuture<Void> apply(final Map<String, String> changes) {
+        applyInMemory(changes);
+        return persist(changes);
+    }
+
+    private void applyInMemory(final Map<String, String> changes) {
+        configuration.update(draft -> {
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    draft.remove(change.getKey());
+                } else {
+                    draft.put(change.getKey(), change.getValue());
                 }
             }
+        });
+    }
+
+    /*
+     * Hands changes to the persisters of the files they belong in, the
+     * caller holds updates.
+     */
+    private CompletableFuture<Void> persist(final Map<String, String> changes) {
+        Map<Path, Map<String, String>> byFile = new LinkedHashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            Collection<Path> files = change.getValue() == null ? deleteFrom(change.getKey())
+                    : Collections.singletonList(fileOf(change.getKey()));
+            for (Path file : files) {
+                byFile.computeIfAbsent(file, f -> new HashMap<>()).put(change.getKey(), change.getValue());
+            }
         }
+        if (byFile.size() == 1) {
+            Map.Entry<Path, Map<String, String>> only = byFile.entrySet().iterator().next();
+            return getPersister(only.getKey()).submit(only.getValue());
+        }
+        List<CompletableFuture<Void>> writes = new ArrayList<>(byFile.size());
+        for (Map.Entry<Path, Map<String, String>> file : byFile.entrySet()) {
+            writes.add(getPersister(file.getKey()).submit(file.getValue()));
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()]));
     }
 
     /**
      * Delete a property from the overall configuration of an application using
-     * the jbeans-config component.
+     * the jbeans-config component. Waits until the change is on disk.
      *
      * @param propName the property to be deleted.
      * @throws ConfigurationException thrown for misconfiguration like
@@ -232,42 +552,164 @@ public class JbeansConfigurationProvider implements ConfigurationProvider {
      * has not bee provided in the environment.
      */
     void deleteProperty(String propName) throws ConfigurationException {
-        Properties jbeansEnvProps = new Properties();
-        FileInputStream in = null;
-        FileOutputStream out = null;
-
         if (APP_CONFIG_DIR != null) {
-            try {
-                LOGGER.log(Level.INFO, "{0} PROPERTIES:", Configurator.INTERNAL_PROPS_FILE);
-                File file = new File(APP_FQ_PROPS_FILE);
-                in = new FileInputStream(file);
-                jbeansEnvProps.load(in);
-                jbeansEnvProps.remove(propName);
-                configuration.remove(propName);
-                out = new FileOutputStream(file);
-                jbeansEnvProps.store(out, " -- property: " + propName + " was deleted at runtime on: " + new Date());
-            } catch (FileNotFoundException ex) {
-                Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
-                throw new ConfigurationException(CONFIGURATION_FILE_MISSING);
-            } catch (IOException ex) {
-                Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
-                throw new ConfigurationException(ex.getMessage());
-            } finally {
-                if (in != null) {
-                    try {
-                        in.close();
-                    } catch (IOException ex) {
-                        Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                }
-                if (out != null) {
-                    try {
-                        out.close();
-                    } catch (IOException ex) {
-                        Logger.getLogger(JbeansConfigurationProvider.class.getName()).log(Level.SEVERE, null, ex);
-                    }
+            awaitWrite(deletePropertyAsync(propName));
+        }
+    }
+
+    /**
+     * Deletes a property in memory right away and from the externally
+     * configured properties file shortly after.
+     *
+     * @param propName the property to be deleted.
+     * @return a future completed when the change is on disk.
+     */
+    CompletableFuture<Void> deletePropertyAsync(String propName) {
+        synchronized (updates) {
+            configuration.remove(propName);
+            publish(Collections.singletonMap(propName, (String) null));
+            List<Path> files = deleteFrom(propName);
+            if (files.size() == 1) {
+                return getPersister(files.get(0)).remove(propName);
+            }
+            List<CompletableFuture<Void>> writes = new ArrayList<>(files.size());
+            for (Path file : files) {
+                writes.add(getPersister(file).remove(propName));
+            }
+            return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()]));
+        }
+    }
+
+    /**
+     * Applies the changes of other nodes that win over the changes applied
+     * so far, in memory and in the properties files, see Replicator. Waits
+     * until the changes are on disk.
+     *
+     * @param mutations mutations received from the other nodes.
+     * @return the changes applied, deleted properties map to null.
+     * @throws ConfigurationException if the properties file could not be
+     * written.
+     */
+    Map<String, String> applyReplicated(List<ConfigurationMutation> mutations) throws ConfigurationException {
+        Map<String, String> changes;
+        CompletableFuture<Void> write;
+        synchronized (updates) {
+            changes = replicator.merge(mutations);
+            if (changes.isEmpty()) {
+                return changes;
+            }
+            write = apply(changes);
+        }
+        awaitWrite(write);
+        return changes;
+    }
+
+    /**
+     * @param replicator publishes the changes made through this provider to
+     * the other nodes, null to stop.
+     */
+    void setReplicator(Replicator replicator) {
+        this.replicator = replicator;
+    }
+
+    /**
+     * @param listener told about every write of a properties file before it
+     * replaces the file, null to stop.
+     */
+    void setWriteListener(WriteBehindPersister.Listener listener) {
+        this.writeListener = listener;
+    }
+
+    private void written(Path file, long before, long after) {
+        WriteBehindPersister.Listener current = writeListener;
+        if (current != null) {
+            current.written(file, before, after);
+        }
+    }
+
+    /*
+     * Stamps changes for the other nodes, in the order they are applied: the
+     * caller holds updates.
+     */
+    private void publish(Map<String, String> changes) {
+        Replicator current = replicator;
+        if (current != null) {
+            current.publish(changes);
+        }
+    }
+
+    /*
+     * The file a property is written to: the last profile file that sets it,
+     * else the properties file.
+     */
+    private Path fileOf(String propName) {
+        List<Path> files = overlaid.get(propName);
+        return files == null ? Paths.get(APP_CONFIG_DIR, Configurator.EXTERNAL_PROPS_FILE) : files.get(files.size() - 1);
+    }
+
+    /*
+     * The files a property is deleted from, the properties file and the
+     * profile files that set it. The property no longer overlays anything.
+     */
+    private List<Path> deleteFrom(String propName) {
+        List<Path> files = new ArrayList<>(2);
+        files.add(Paths.get(APP_CONFIG_DIR, Configurator.EXTERNAL_PROPS_FILE));
+        if (overlaid.containsKey(propName)) {
+            Map<String, List<Path>> overlays = new HashMap<>(overlaid);
+            files.addAll(overlays.remove(propName));
+            overlaid = overlays;
+        }
+        return files;
+    }
+
+    /*
+     * The persister of the current properties file, which changes when the
+     * configuration directory does.
+     */
+    WriteBehindPersister getPersister() {
+        return getPersister(Paths.get(APP_CONFIG_DIR, Configurator.EXTERNAL_PROPS_FILE));
+    }
+
+    /*
+     * One persister per file written to. Persisters of files that are no
+     * longer in the configuration directory are closed.
+     */
+    synchronized WriteBehindPersister getPersister(Path file) {
+        WriteBehindPersister persister = persisters.get(file);
+        if (persister == null) {
+            Path dir = file.getParent();
+            for (Iterator<WriteBehindPersister> it = persisters.values().iterator(); it.hasNext();) {
+                WriteBehindPersister stale = it.next();
+                if (dir != null && !dir.equals(stale.getFile().getParent())) {
+                    stale.close();
+                    it.remove();
                 }
             }
+            persister = new WriteBehindPersister(file, Configurator.WRITE_DELAY_MILLIS, metrics, this::written);
+            persisters.put(file, persister);
+        }
+        return persister;
+    }
+
+    /**
+     * Writes pending property changes and stops the writers.
+     */
+    synchronized void close() {
+        for (WriteBehindPersister persister : persisters.values()) {
+            persister.close();
+        }
+        persisters.clear();
+    }
+
+    private void awaitWrite(CompletableFuture<Void> write) throws ConfigurationException {
+        try {
+            WriteBehindPersister.await(write);
+        } catch (ConfigurationException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            if (ex.getCause() instanceof NoSuchFileException) {
+                throw new ConfigurationException(CONFIGURATION_FILE_MISSING);
+            }
+            throw ex;
         }
     }
 
@@ -282,30 +724,20 @@ public class JbeansConfigurationProvider implements ConfigurationProvider {
      * password has not been defined in the environment.
      *    
      */
-    private boolean populateConfigMap(Properties props) throws ConfigurationException {
+    private boolean hasEncryptedProperties(Map<String, String> loaded) throws ConfigurationException {
         boolean hasEncProps = false;
-        if (props != null) {
-
+        for (String value : loaded.values()) {
             // Are there any encrypted properties?
-            String propValues = props.toString();
-            int encPrefixIdx = propValues.indexOf("ENC(");
-            if (encPrefixIdx > -1) {
+            if (SecretResolver.isEncrypted(value)) {
                 hasEncProps = true;
+                break;
             }
+        }
 
-            Enumeration<String> propNames = (Enumeration<String>) props.propertyNames();
-            while (propNames.hasMoreElements()) {
-                String key = propNames.nextElement();
-                String value = props.getProperty(key);
-                configuration.put(key, value);
-            }
-
-            if (JASYPT_PW.equals("UNDEFINED") && hasEncProps) {
-                LOGGER.log(Level.SEVERE, "eKey PROPERTY NOT FOUND");
-                LOGGER.log(Level.SEVERE, "This application has encrypted properties, and no -DeKey was found.  Please add -eKey to the environment.");
-                throw new ConfigurationException(ERROR_MSG_ENCRYPTED_PROPS_MISSING_EKEY);
-            }
-
+        if (JASYPT_PW.equals("UNDEFINED") && hasEncProps) {
+            LOGGER.log(Level.SEVERE, "eKey PROPERTY NOT FOUND");
+            LOGGER.log(Level.SEVERE, "This application has encrypted properties, and no -DeKey was found.  Please add -eKey to the environment.");
+            throw new ConfigurationException(ERROR_MSG_ENCRYPTED_PROPS_MISSING_EKEY);
         }
 
         return hasEncProps;
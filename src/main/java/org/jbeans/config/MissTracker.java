@@ -0,0 +1,105 @@
+package org.jbeans.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records injections of properties that are not configured, which silently
+ * get null, 0 or false.
+ *
+ * Every missing key is counted with the time it was first and last missed
+ * and the injection point that last asked for it. Injection threads record
+ * misses concurrently without locking, a known key costs a map lookup and a
+ * LongAdder increment. About MAX_KEYS keys are tracked, racing first misses
+ * may add a few more, misses of further keys are only counted as dropped.
+ *
+ * @author jhogan
+ */
+final class MissTracker {
+
+    static final int MAX_KEYS = 1000;
+
+    private static final class Miss {
+
+        final String key;
+        final long firstSeen;
+        final LongAdder count = new LongAdder();
+        volatile long lastSeen;
+        volatile String injectionPoint;
+
+        Miss(String key, long firstSeen) {
+            this.key = key;
+            this.firstSeen = firstSeen;
+            this.lastSeen = firstSeen;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Miss> misses = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param key the missing property or namespace.
+     * @param injectionPoint the bean member that asked for it, may be null.
+     */
+    void record(String key, String injectionPoint) {
+        long now = System.currentTimeMillis();
+        Miss miss = misses.get(key);
+        if (miss == null) {
+            if (misses.size() >= MAX_KEYS) {
+                dropped.increment();
+                return;
+            }
+            miss = misses.computeIfAbsent(key, k -> new Miss(k, now));
+        }
+        miss.count.increment();
+        miss.lastSeen = now;
+        if (injectionPoint != null) {
+            miss.injectionPoint = injectionPoint;
+        }
+    }
+
+    /**
+     * @return the keys missed so far, a sorted copy.
+     */
+    Set<String> getKeys() {
+        return Collections.unmodifiableSet(new TreeSet<>(misses.keySet()));
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @param current the current configuration, tells which missed keys have
+     * been configured since.
+     * @return a read only report of the misses, the most missed key first.
+     */
+    Map<String, Object> report(ConfigurationSnapshot current) {
+        List<Map<String, Object>> entries = new ArrayList<>(misses.size());
+        for (Miss miss : misses.values()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("key", miss.key);
+            entry.put("count", miss.count.sum());
+            entry.put("firstSeen", miss.firstSeen);
+            entry.put("lastSeen", miss.lastSeen);
+            entry.put("injectionPoint", miss.injectionPoint);
+            entry.put("configured", current.containsKey(miss.key) || !current.getByPrefix(miss.key).isEmpty());
+            entries.add(Collections.unmodifiableMap(entry));
+        }
+        entries.sort(Comparator.<Map<String, Object>>comparingLong(entry -> -(Long) entry.get("count"))
+                .thenComparing(entry -> (String) entry.get("key")));
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("tracked", entries.size());
+        report.put("dropped", dropped.sum());
+        report.put("misses", Collections.unmodifiableList(entries));
+        return Collections.unmodifiableMap(report);
+    }
+}
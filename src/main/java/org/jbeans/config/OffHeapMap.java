@@ -0,0 +1,317 @@
+package org.jbeans.config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A read only map of properties kept outside the Java heap, in a memory
+ * mapped open addressing hash table. For applications with tens of thousands
+ * of properties, selected with jbeans.app.props.store=offheap in
+ * jbeans-app.properties.
+ *
+ * The table is a slot array followed by the entries:
+ * <pre>
+ *     slot:  int hash, int offset of the entry + 1, 0 for an empty slot
+ *     entry: int key length, key UTF-8 bytes, int value length, value UTF-8 bytes
+ * </pre>
+ * Slots are probed linearly from the key's String.hashCode(), which Strings
+ * cache, and keys are compared to the stored bytes char by char. A lookup
+ * allocates nothing but the value it returns.
+ *
+ * The table is mapped from a temporary file that is deleted once mapped, the
+ * memory is released when the map is garbage collected.
+ *
+ * @author jhogan
+ */
+final class OffHeapMap extends AbstractMap<String, String> {
+
+    private static final Logger LOGGER = Logger.getLogger(OffHeapMap.class.getName());
+    private static final int SLOT_SIZE = 8;
+
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
+
+    private final ByteBuffer table;
+    private final int mask;
+    private final int size;
+    private Set<Map.Entry<String, String>> entrySet;
+    private Set<String> keySet;
+
+    private OffHeapMap(ByteBuffer table, int capacity, int size) {
+        this.table = table;
+        this.mask = capacity - 1;
+        this.size = size;
+    }
+
+    /**
+     * Copies the properties into a new off heap table.
+     *
+     * @param values the properties, null keys and values are not supported.
+     * @return the off heap copy.
+     * @throws IOException if the table cannot be mapped.
+     */
+    static OffHeapMap of(Map<String, String> values) throws IOException {
+        int capacity = Integer.highestOneBit(Math.max(2, values.size() * 2 - 1)) << 1;
+        String[] names = new String[values.size()];
+        byte[][] keys = new byte[values.size()][];
+        byte[][] data = new byte[values.size()][];
+        long length = (long) capacity * SLOT_SIZE;
+        int n = 0;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            names[n] = entry.getKey();
+            keys[n] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            data[n] = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            length += 8 + keys[n].length + data[n].length;
+            n++;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Properties do not fit into an off heap table: " + length + " bytes");
+        }
+
+        ByteBuffer table = map((int) length);
+        int mask = capacity - 1;
+        int offset = capacity * SLOT_SIZE;
+        for (n = 0; n < names.length; n++) {
+            int hash = names[n].hashCode();
+            int slot = spread(hash) & mask;
+            while (table.getInt(slot * SLOT_SIZE + 4) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table.putInt(slot * SLOT_SIZE, hash);
+            table.putInt(slot * SLOT_SIZE + 4, offset + 1);
+            table.position(offset);
+            table.putInt(keys[n].length).put(keys[n]).putInt(data[n].length).put(data[n]);
+            offset = table.position();
+        }
+        table.clear();
+        return new OffHeapMap(table, capacity, values.size());
+    }
+
+    private static ByteBuffer map(int length) throws IOException {
+        Path file = Files.createTempFile("jbeans-config-", ".offheap");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(1, length));
+        } finally {
+            try {
+                Files.delete(file);
+            } catch (IOException ex) {
+                // Windows does not delete mapped files.
+                LOGGER.log(Level.FINE, "Deleting {0} on exit", file);
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public String get(Object key) {
+        int entry = find(key);
+        return entry < 0 ? null : value(entry);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        Set<Map.Entry<String, String>> entries = entrySet;
+        if (entries == null) {
+            entries = new EntrySet();
+            entrySet = entries;
+        }
+        return entries;
+    }
+
+    /*
+     * The keys without decoding the values.
+     */
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = keySet;
+        if (keys == null) {
+            keys = new AbstractSet<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return new Slots<String>() {
+                        @Override
+                        String at(int entry) {
+                            return key(entry);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public boolean contains(Object key) {
+                    return containsKey(key);
+                }
+            };
+            keySet = keys;
+        }
+        return keys;
+    }
+
+    /*
+     * @return the offset of the key's entry, -1 if the key is not in the table.
+     */
+    private int find(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        String name = (String) key;
+        int hash = name.hashCode();
+        for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask) {
+            int entry = table.getInt(slot * SLOT_SIZE + 4) - 1;
+            if (entry < 0) {
+                return -1;
+            }
+            if (table.getInt(slot * SLOT_SIZE) == hash && keyEquals(name, entry + 4, table.getInt(entry))) {
+                return entry;
+            }
+        }
+    }
+
+    /*
+     * Compares the key to length UTF-8 bytes at position, encoding the key as
+     * String.getBytes(UTF_8) does.
+     */
+    private boolean keyEquals(String key, int position, int length) {
+        int p = position;
+        int end = position + length;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                if (p >= end || table.get(p++) != c) {
+                    return false;
+                }
+            } else if (c < 0x800) {
+                if (end - p < 2 || table.get(p++) != (byte) (0xC0 | c >> 6) || table.get(p++) != (byte) (0x80 | c & 0x3F)) {
+                    return false;
+                }
+            } else if (Character.isHighSurrogate(c) && i + 1 < key.length() && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, key.charAt(++i));
+                if (end - p < 4 || table.get(p++) != (byte) (0xF0 | cp >> 18) || table.get(p++) != (byte) (0x80 | cp >> 12 & 0x3F)
+                        || table.get(p++) != (byte) (0x80 | cp >> 6 & 0x3F) || table.get(p++) != (byte) (0x80 | cp & 0x3F)) {
+                    return false;
+                }
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates are encoded as '?'.
+                if (p >= end || table.get(p++) != '?') {
+                    return false;
+                }
+            } else if (end - p < 3 || table.get(p++) != (byte) (0xE0 | c >> 12) || table.get(p++) != (byte) (0x80 | c >> 6 & 0x3F)
+                    || table.get(p++) != (byte) (0x80 | c & 0x3F)) {
+                return false;
+            }
+        }
+        return p == end;
+    }
+
+    private String key(int entry) {
+        return string(entry + 4, table.getInt(entry));
+    }
+
+    private String value(int entry) {
+        int valueAt = entry + 4 + table.getInt(entry);
+        return string(valueAt + 4, table.getInt(valueAt));
+    }
+
+    private String string(int position, int length) {
+        byte[] bytes = SCRATCH.get();
+        if (bytes.length < length) {
+            bytes = new byte[Integer.highestOneBit(length) << 1];
+            SCRATCH.set(bytes);
+        }
+        for (int i = 0; i < length; i++) {
+            bytes[i] = table.get(position + i);
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<String, String>> {
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            return new Slots<Map.Entry<String, String>>() {
+                @Override
+                Map.Entry<String, String> at(int entry) {
+                    return new SimpleImmutableEntry<>(key(entry), value(entry));
+                }
+            };
+        }
+    }
+
+    /*
+     * Iterates the used slots of the table.
+     */
+    private abstract class Slots<T> implements Iterator<T> {
+
+        private int slot = next(0);
+
+        abstract T at(int entry);
+
+        private int next(int from) {
+            int s = from;
+            while (s <= mask && table.getInt(s * SLOT_SIZE + 4) == 0) {
+                s++;
+            }
+            return s;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return slot <= mask;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int entry = table.getInt(slot * SLOT_SIZE + 4) - 1;
+            slot = next(slot + 1);
+            return at(entry);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package org.jbeans.config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and updates .properties files without java.util.Properties.
+ *
+ * The parser reads the ISO-8859-1 bytes of a file straight from a ByteBuffer,
+ * mapped for large files, into a map, with the syntax of Properties.load:
+ * comments, blank lines, line continuations, the key/value separators '=',
+ * ':' and whitespace, and backslash and \\uXXXX escapes. ENC(...) values are
+ * plain values to the parser.
+ *
+ * {@link #update(ByteBuffer, Map)} changes the entries of a file in place.
+ * Comments, blank lines, the order of the entries and the formatting of
+ * unchanged entries are kept, new entries are appended at the end.
+ *
+ * @author jhogan
+ */
+final class PropertiesFormat {
+
+    static final int MAP_THRESHOLD = 1 << 20;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Receives the entries of a file in file order.
+     */
+    interface Handler {
+
+        /**
+         * @param key the unescaped key.
+         * @param value the unescaped value.
+         * @param start the offset of the first byte of the entry.
+         * @param end the offset after the line terminator of the entry.
+         */
+        void entry(String key, String value, int start, int end);
+    }
+
+    private PropertiesFormat() {
+    }
+
+    /**
+     * @param file the properties file.
+     * @return the properties in file order.
+     */
+    static Map<String, String> load(Path file) throws IOException {
+        return parse(read(file));
+    }
+
+    /**
+     * Reads a file into a buffer with one read, files above MAP_THRESHOLD are
+     * memory mapped. Smaller files are not, a mapping keeps Windows from
+     * replacing the file until the buffer is garbage collected.
+     */
+    static ByteBuffer read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large");
+            }
+            if (size > MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer content = ByteBuffer.allocate((int) size);
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+            }
+            content.flip();
+            return content;
+        }
+    }
+
+    /**
+     * @param in a properties stream, not closed.
+     * @return the properties in file order.
+     */
+    static Map<String, String> load(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        byte[] chunk = new byte[8192];
+        for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+            bytes.write(chunk, 0, n);
+        }
+        return parse(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    static Map<String, String> parse(ByteBuffer in) {
+        Map<String, String> values = new LinkedHashMap<>();
+        parse(in, (key, value, start, end) -> values.put(key, value));
+        return values;
+    }
+
+    /**
+     * Parses the bytes between the buffer's position and limit, the
+     * buffer's position is not changed.
+     *
+     * @throws IllegalArgumentException for a malformed \\uXXXX escape, as
+     * Properties.load does.
+     */
+    static void parse(ByteBuffer in, Handler handler) {
+        int limit = in.limit();
+        char[] line = new char[256];
+        int p = in.position();
+        while (p < limit) {
+            int start = p;
+            // leading whitespace of the first natural line.
+            while (p < limit && isWhitespace(in.get(p))) {
+                p++;
+            }
+            if (p >= limit) {
+                break;
+            }
+            byte first = in.get(p);
+            if (first == '\n' || first == '\r') {
+                p = skipTerminator(in, p, limit);
+                continue;
+            }
+            if (first == '#' || first == '!') {
+                while (p < limit && in.get(p) != '\n' && in.get(p) != '\r') {
+                    p++;
+                }
+                p = skipTerminator(in, p, limit);
+                continue;
+            }
+            // the logical line, continuations joined, without the line terminators.
+            int length = 0;
+            boolean escaped = false;
+            while (true) {
+                if (p >= limit) {
+                    if (escaped) {
+                        length--;
+                    }
+                    break;
+                }
+                byte b = in.get(p);
+                if (b == '\n' || b == '\r') {
+                    p = skipTerminator(in, p, limit);
+                    if (!escaped) {
+                        break;
+                    }
+                    length--;
+                    escaped = false;
+                    while (p < limit && isWhitespace(in.get(p))) {
+                        p++;
+                    }
+                    continue;
+                }
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[length++] = (char) (b & 0xFF);
+                escaped = b == '\\' && !escaped;
+                p++;
+            }
+            split(line, length, start, p, handler);
+        }
+    }
+
+    private static void split(char[] line, int length, int start, int end, Handler handler) {
+        int keyLength = 0;
+        int valueStart = length;
+        boolean hasSeparator = false;
+        boolean escaped = false;
+        while (keyLength < length) {
+            char c = line[keyLength];
+            if ((c == '=' || c == ':') && !escaped) {
+                valueStart = keyLength + 1;
+                hasSeparator = true;
+                break;
+            } else if ((c == ' ' || c == '\t' || c == '\f') && !escaped) {
+                valueStart = keyLength + 1;
+                break;
+            }
+            escaped = c == '\\' && !escaped;
+            keyLength++;
+        }
+        while (valueStart < length) {
+            char c = line[valueStart];
+            if (c != ' ' && c != '\t' && c != '\f') {
+                if (!hasSeparator && (c == '=' || c == ':')) {
+                    hasSeparator = true;
+                } else {
+                    break;
+                }
+            }
+            valueStart++;
+        }
+        handler.entry(unescape(line, 0, keyLength), unescape(line, valueStart, length - valueStart), start, end);
+    }
+
+    private static String unescape(char[] chars, int offset, int length) {
+        int end = offset + length;
+        int escape = offset;
+        while (escape < end && chars[escape] != '\\') {
+            escape++;
+        }
+        if (escape == end) {
+            return new String(chars, offset, length);
+        }
+        StringBuilder out = new StringBuilder(length);
+        out.append(chars, offset, escape - offset);
+        for (int i = escape; i < end;) {
+            char c = chars[i++];
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            if (i >= end) {
+                break;
+            }
+            c = chars[i++];
+            if (c == 'u') {
+                int code = 0;
+                for (int digit = 0; digit < 4; digit++) {
+                    int value = i < end ? Character.digit(chars[i++], 16) : -1;
+                    if (value < 0) {
+                        throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+                    }
+                    code = (code << 4) + value;
+                }
+                out.append((char) code);
+            } else if (c == 't') {
+                out.append('\t');
+            } else if (c == 'r') {
+                out.append('\r');
+            } else if (c == 'n') {
+                out.append('\n');
+            } else if (c == 'f') {
+                out.append('\f');
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\f';
+    }
+
+    private static int skipTerminator(ByteBuffer in, int p, int limit) {
+        if (p < limit && in.get(p) == '\r') {
+            p++;
+        }
+        if (p < limit && in.get(p) == '\n') {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Applies changes to the content of a properties file. A changed key is
+     * rewritten where it is, a removed key is dropped with all its lines and
+     * new keys are appended in the order of the changes. Everything else is
+     * copied unchanged.
+     *
+     * @param in the current content of the file.
+     * @param changes the keys to set, keys mapped to null are removed.
+     * @return the new content of the file.
+     */
+    static byte[] update(ByteBuffer in, Map<String, String> changes) {
+        final List<int[]> ranges = new ArrayList<>();
+        final List<String> keys = new ArrayList<>();
+        parse(in, (key, value, start, end) -> {
+            if (changes.containsKey(key)) {
+                ranges.add(new int[]{start, end});
+                keys.add(key);
+            }
+        });
+        String newline = lineSeparator(in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(in.remaining() + 64 * changes.size());
+        Map<String, String> pending = new LinkedHashMap<>(changes);
+        int copied = in.position();
+        for (int i = 0; i < ranges.size(); i++) {
+            int[] range = ranges.get(i);
+            copy(in, copied, range[0], out);
+            copied = range[1];
+            String key = keys.get(i);
+            // the first line of a duplicated key gets the new value, the others are dropped.
+            if (pending.containsKey(key)) {
+                String value = pending.remove(key);
+                if (value != null) {
+                    writeEntry(out, key, value, newline);
+                }
+            }
+        }
+        boolean terminated = copied == in.limit() || isTerminator(in.get(in.limit() - 1));
+        copy(in, copied, in.limit(), out);
+        if (!terminated && pendingValues(pending)) {
+            write(out, newline);
+        }
+        for (Map.Entry<String, String> entry : pending.entrySet()) {
+            if (entry.getValue() != null) {
+                writeEntry(out, entry.getKey(), entry.getValue(), newline);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean pendingValues(Map<String, String> pending) {
+        for (String value : pending.values()) {
+            if (value != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTerminator(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    /*
+     * The line separator the file uses, the first one found.
+     */
+    private static String lineSeparator(ByteBuffer in) {
+        for (int p = in.position(); p < in.limit(); p++) {
+            byte b = in.get(p);
+            if (b == '\n') {
+                return "\n";
+            }
+            if (b == '\r') {
+                return p + 1 < in.limit() && in.get(p + 1) == '\n' ? "\r\n" : "\r";
+            }
+        }
+        return System.lineSeparator();
+    }
+
+    private static void copy(ByteBuffer in, int from, int to, ByteArrayOutputStream out) {
+        for (int p = from; p < to; p++) {
+            out.write(in.get(p));
+        }
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, String key, String value, String newline) {
+        StringBuilder line = new StringBuilder(key.length() + value.length() + 8);
+        escape(line, key, true);
+        line.append('=');
+        escape(line, value, false);
+        line.append(newline);
+        write(out, line.toString());
+    }
+
+    private static void write(ByteArrayOutputStream out, String ascii) {
+        byte[] bytes = ascii.getBytes(StandardCharsets.ISO_8859_1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /*
+     * Escapes as Properties.store does: separators and comment characters,
+     * spaces in keys and leading spaces in values, control characters and
+     * everything outside printable ASCII as \\uXXXX.
+     */
+    static void escape(StringBuilder out, String text, boolean isKey) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case ' ':
+                    if (isKey || i == 0) {
+                        out.append('\\');
+                    }
+                    out.append(' ');
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                case '=':
+                case ':':
+                case '#':
+                case '!':
+                case '\\':
+                    out.append('\\').append(c);
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        out.append("\\u").append(HEX[c >> 12 & 0xF]).append(HEX[c >> 8 & 0xF])
+                                .append(HEX[c >> 4 & 0xF]).append(HEX[c & 0xF]);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package org.jbeans.config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches the configuration of all providers at the same time, so startup
+ * and reloads take as long as the slowest provider instead of the sum of
+ * all of them.
+ *
+ * Every provider is fetched as its own task and the whole fetch gets a
+ * deadline. A provider that fails or misses the deadline is reported, and its
+ * last fetched configuration is used in its place, so a slow provider neither
+ * blocks the others nor makes its properties disappear on a reload.
+ *
+ * In a container the tasks run on the container's ManagedExecutorService, so
+ * providers keep the naming context of the application. Outside a container
+ * they run on a pool of daemon threads of the fetcher, created on the first
+ * fetch and reused by the following ones.
+ *
+ * @author jhogan
+ */
+final class ProviderFetcher {
+
+    private static final Logger LOGGER = Logger.getLogger(ProviderFetcher.class.getName());
+
+    /**
+     * Merge order, ascending ordinal then class name.
+     */
+    static final Comparator<Fetch> MERGE_ORDER = Comparator.<Fetch>comparingInt(fetch -> fetch.ordinal)
+            .thenComparing(fetch -> fetch.name);
+
+    static final class Fetch {
+
+        final ConfigurationProvider provider;
+        final String name;
+        final int ordinal;
+        Future<Map<String, String>> result;
+
+        Fetch(ConfigurationProvider provider) {
+            this.provider = provider;
+            this.name = nameOf(provider);
+            this.ordinal = provider.getOrdinal();
+        }
+    }
+
+    private final ConfigurationMetrics metrics;
+    private final Map<String, ConfigurationLayer> lastFetched = new ConcurrentHashMap<>();
+    private volatile ExecutorService executor;
+    // guarded by this, the pool used outside a container.
+    private ExecutorService threads;
+
+    ProviderFetcher(ConfigurationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param executor the container's managed executor, null outside a
+     * container.
+     */
+    void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    private ExecutorService executor() {
+        ExecutorService managed = executor;
+        if (managed != null) {
+            return managed;
+        }
+        synchronized (this) {
+            if (threads == null) {
+                threads = Executors.newCachedThreadPool(new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "jbeans-config-provider-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return threads;
+        }
+    }
+
+    /**
+     * Stops the threads used outside a container, the container's executor
+     * is left as it is.
+     */
+    synchronized void close() {
+        if (threads != null) {
+            threads.shutdownNow();
+            threads = null;
+        }
+    }
+
+    /**
+     * Use the layers in place of providers that fail or time out before they
+     * were fetched once, for example the layers of the last known good
+     * snapshot.
+     *
+     * @param layers layers named after their provider.
+     */
+    void remember(Collection<ConfigurationLayer> layers) {
+        for (ConfigurationLayer layer : layers) {
+            lastFetched.putIfAbsent(layer.getName(), layer);
+        }
+    }
+
+    /*
+     * The provider's class name, without the suffix of a CDI client proxy.
+     */
+    static String nameOf(ConfigurationProvider provider) {
+        String name = provider.getClass().getName();
+        int proxy = name.indexOf("$Proxy$");
+        if (proxy < 0) {
+            proxy = name.indexOf("$$");
+        }
+        return proxy > 0 ? name.substring(0, proxy) : name;
+    }
+
+    /**
+     * @param providers the providers to fetch.
+     * @param refresh true to re-read each provider's source first.
+     * @param timeoutMillis how long to wait for all providers.
+     * @return a layer per provider, named after the provider class, in merge
+     * order, lowest ordinal first.
+     */
+    List<ConfigurationLayer> fetch(Iterable<ConfigurationProvider> providers, final boolean refresh, long timeoutMillis) {
+        List<Fetch> fetches = new ArrayList<>();
+        for (ConfigurationProvider provider : providers) {
+            fetches.add(new Fetch(provider));
+        }
+        if (fetches.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Collections.sort(fetches, MERGE_ORDER);
+
+        ExecutorService pool = executor();
+        try {
+            for (final Fetch fetch : fetches) {
+                fetch.result = pool.submit(() -> {
+                    long start = System.nanoTime();
+                    if (refresh) {
+                        fetch.provider.refresh();
+                    }
+                    Map<String, String> values = ownedCopy(fetch.provider, fetch.provider.getRawConfiguration());
+                    metrics.timed(ConfigurationMetrics.PROVIDER_FETCH, System.nanoTime() - start);
+                    LOGGER.log(Level.INFO, "Configuration provider= {0}, ordinal= {1}, properties= {2}, {3} ms",
+                            new Object[]{fetch.name, fetch.ordinal, values.size(), (System.nanoTime() - start) / 1000000});
+                    return values;
+                });
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            List<ConfigurationLayer> layers = new ArrayList<>(fetches.size());
+            for (Fetch fetch : fetches) {
+                ConfigurationLayer layer = await(fetch, deadline, timeoutMillis);
+                if (layer != null) {
+                    layers.add(layer);
+                }
+            }
+            return layers;
+        } finally {
+            // interrupts providers that missed the deadline.
+            for (Fetch fetch : fetches) {
+                if (fetch.result != null) {
+                    fetch.result.cancel(true);
+                }
+            }
+        }
+    }
+
+    /*
+     * A copy of the map a provider returned, the layer owns it. A provider may
+     * keep one map and change it in place, a refresh then still publishes the
+     * changes. The JbeansConfigurationProvider returns a view of its own
+     * immutable snapshot, it is kept as it is, so an off heap table stays off
+     * the heap.
+     */
+    private static Map<String, String> ownedCopy(ConfigurationProvider provider, Map<String, String> values) {
+        if (values == null) {
+            return Collections.emptyMap();
+        }
+        return provider instanceof JbeansConfigurationProvider ? values : new HashMap<>(values);
+    }
+
+    private ConfigurationLayer await(Fetch fetch, long deadline, long timeoutMillis) {
+        try {
+            Map<String, String> values = fetch.result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            ConfigurationLayer layer = new ConfigurationLayer(fetch.name, values);
+            lastFetched.put(fetch.name, layer);
+            return layer;
+        } catch (TimeoutException ex) {
+            metrics.providerTimedOut();
+            LOGGER.log(Level.WARNING, "Configuration provider {0} did not answer within {1} ms, using its last configuration",
+                    new Object[]{fetch.name, timeoutMillis});
+        } catch (ExecutionException ex) {
+            metrics.providerFailed();
+            LOGGER.log(Level.SEVERE, "Configuration provider " + fetch.name + " failed, using its last configuration", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.WARNING, "Interrupted waiting for configuration provider {0}", fetch.name);
+        }
+        return lastFetched.get(fetch.name);
+    }
+}
@@ -0,0 +1,40 @@
+package org.jbeans.config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Carries admin changes between the nodes of a cluster, see Replicator. The
+ * jbeans-config component ships a transport over a shared directory,
+ * SharedDirectoryTransport, others (a message broker, a database table) can
+ * be plugged in with jbeans.app.props.replication.transport.
+ *
+ * A transport delivers at least once: a mutation may be received again, by
+ * the node that published it too, and in any order. Nodes resolve
+ * conflicts by the clocks of the mutations, not by their order.
+ *
+ * @author jhogan
+ */
+public interface ReplicationTransport extends Closeable {
+
+    /**
+     * Sends a mutation of this node to the other nodes.
+     *
+     * @param mutation the mutation.
+     * @throws IOException if it could not be sent, it is sent again later.
+     */
+    void publish(ConfigurationMutation mutation) throws IOException;
+
+    /**
+     * The first call returns what a node joining the cluster needs to catch
+     * up: the latest change of every property changed so far, or the
+     * mutations that carry them. Later calls return the mutations published
+     * since.
+     *
+     * @return the mutations not received before, may be empty.
+     * @throws IOException if the mutations could not be received, they are
+     * received with a later call.
+     */
+    List<ConfigurationMutation> receive() throws IOException;
+}
@@ -0,0 +1,261 @@
+package org.jbeans.config;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Propagates admin changes between the nodes of a cluster, so a PUT, DELETE
+ * or PATCH against one node reaches the configuration and the properties
+ * file of every node.
+ *
+ * Every change made through the REST api is stamped with the node's Lamport
+ * clock and published through a ReplicationTransport. A node polls the
+ * transport and applies the changes of other nodes that are newer than the
+ * change it last applied to the same property, see
+ * ConfigurationMutation.isNewerThan. Every node keeps the same winner of
+ * concurrent changes of a property, whatever order it receives them in, so
+ * the nodes converge. A node advances its clock past every clock it
+ * receives, a later change always wins over the changes it has seen.
+ *
+ * A node starts with a catch up: the first poll applies the latest change
+ * of every replicated property before the node takes changes of its own.
+ * Mutations that could not be published are kept and published again with
+ * the next poll.
+ *
+ * Changes made by editing the properties file or by other configuration
+ * providers are not replicated.
+ *
+ * @author jhogan
+ */
+final class Replicator {
+
+    /**
+     * Applies the changes of other nodes, see Configurator.applyReplicated.
+     */
+    interface Receiver {
+
+        void received(List<ConfigurationMutation> mutations);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Replicator.class.getName());
+
+    private static final class Stamp {
+
+        final long clock;
+        final String node;
+
+        Stamp(long clock, String node) {
+            this.clock = clock;
+            this.node = node;
+        }
+    }
+
+    private final String node;
+    private final ReplicationTransport transport;
+    private final long pollMillis;
+    private final Receiver receiver;
+    private final ScheduledExecutorService poller;
+
+    // guarded by this.
+    private long clock;
+    private final Map<String, Stamp> stamps = new HashMap<>();
+    private final Deque<ConfigurationMutation> outbox = new ArrayDeque<>();
+    private long published;
+    private long received;
+    private long applied;
+    private long stale;
+
+    /**
+     * @param node the id of this node, unique in the cluster.
+     * @param transport carries the mutations.
+     * @param pollMillis how often the transport is polled.
+     * @param receiver applies the changes of the other nodes.
+     */
+    Replicator(String node, ReplicationTransport transport, long pollMillis, Receiver receiver) {
+        this.node = node;
+        this.transport = transport;
+        this.pollMillis = Math.max(10, pollMillis);
+        this.receiver = receiver;
+        this.poller = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "jbeans-config-replication");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    String getNode() {
+        return node;
+    }
+
+    /**
+     * Catches up with the other nodes, then polls the transport in the
+     * background.
+     */
+    void start() {
+        try {
+            pollNow();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            LOGGER.log(Level.WARNING, "Unable to catch up with the other nodes", ex.getCause());
+        }
+        poller.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+        LOGGER.log(Level.INFO, "Replicating configuration changes as node {0}, clock= {1}", new Object[]{node, getClock()});
+    }
+
+    /**
+     * Stamps changes made on this node and publishes them in the background.
+     * Called in the order the changes are applied.
+     *
+     * @param changes the properties added or updated, properties mapped to
+     * null are deleted.
+     * @return the stamped mutation.
+     */
+    synchronized ConfigurationMutation publish(Map<String, String> changes) {
+        ConfigurationMutation mutation = new ConfigurationMutation(node, ++clock, changes);
+        Stamp stamp = new Stamp(mutation.getClock(), node);
+        for (String key : changes.keySet()) {
+            stamps.put(key, stamp);
+        }
+        outbox.add(mutation);
+        try {
+            poller.execute(this::send);
+        } catch (RejectedExecutionException ex) {
+            LOGGER.log(Level.WARNING, "Replication stopped, {0} is not published", mutation);
+        }
+        return mutation;
+    }
+
+    /**
+     * Selects the changes that win over the changes applied so far, and
+     * takes them as applied. Called in the order changes are applied, with
+     * publish.
+     *
+     * @param mutations mutations received from the transport.
+     * @return the changes to apply, deleted properties map to null, empty if
+     * every change is stale.
+     */
+    synchronized Map<String, String> merge(List<ConfigurationMutation> mutations) {
+        Map<String, String> changes = new LinkedHashMap<>();
+        for (ConfigurationMutation mutation : mutations) {
+            clock = Math.max(clock, mutation.getClock());
+            received++;
+            for (Map.Entry<String, String> change : mutation.getChanges().entrySet()) {
+                Stamp current = stamps.get(change.getKey());
+                if (current == null || mutation.isNewerThan(current.clock, current.node)) {
+                    stamps.put(change.getKey(), new Stamp(mutation.getClock(), mutation.getNode()));
+                    changes.put(change.getKey(), change.getValue());
+                } else if (!(current.clock == mutation.getClock() && current.node.equals(mutation.getNode()))) {
+                    stale++;
+                }
+            }
+        }
+        applied += changes.size();
+        return changes;
+    }
+
+    /**
+     * Polls the transport right away and waits for the changes received to
+     * be applied.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws ExecutionException if the poll failed.
+     */
+    void pollNow() throws InterruptedException, ExecutionException {
+        poller.submit(this::poll).get();
+    }
+
+    synchronized long getClock() {
+        return clock;
+    }
+
+    /*
+     * Publishes the outbox, on the poller thread only.
+     */
+    private void send() {
+        while (true) {
+            ConfigurationMutation mutation;
+            synchronized (this) {
+                mutation = outbox.peek();
+            }
+            if (mutation == null) {
+                return;
+            }
+            try {
+                transport.publish(mutation);
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Unable to publish " + mutation + ", publishing it with the next poll", ex);
+                return;
+            }
+            synchronized (this) {
+                outbox.poll();
+                published++;
+            }
+        }
+    }
+
+    /*
+     * Publishes what could not be published before and applies what the
+     * other nodes published, on the poller thread only.
+     */
+    private void poll() {
+        send();
+        try {
+            List<ConfigurationMutation> mutations = transport.receive();
+            if (!mutations.isEmpty()) {
+                receiver.received(mutations);
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Unable to receive replicated configuration changes", ex);
+        }
+    }
+
+    /**
+     * @return the state of replication in a read only report, for the REST
+     * api.
+     */
+    synchronized Map<String, Object> report() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("node", node);
+        report.put("clock", clock);
+        report.put("published", published);
+        report.put("unpublished", outbox.size());
+        report.put("received", received);
+        report.put("applied", applied);
+        report.put("stale", stale);
+        return Collections.unmodifiableMap(report);
+    }
+
+    /**
+     * Publishes what is left in the outbox and stops polling.
+     */
+    void close() {
+        try {
+            poller.submit(this::send).get(pollMillis + 5000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | RejectedExecutionException ex) {
+            LOGGER.log(Level.WARNING, "Unable to publish the last configuration changes", ex);
+        }
+        poller.shutdownNow();
+        try {
+            transport.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, "Unable to close the replication transport", ex);
+        }
+    }
+}
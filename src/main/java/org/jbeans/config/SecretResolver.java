@@ -0,0 +1,272 @@
+package org.jbeans.config;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jasypt.encryption.StringEncryptor;
+import org.jasypt.properties.PropertyValueEncryptionUtils;
+
+/**
+ * Decrypts Jasypt encrypted property values, ENC(...), when they are first
+ * read instead of when the properties file is loaded.
+ *
+ * Configuration snapshots keep encrypted values as ciphertext. A value is
+ * decrypted on its first access and the plaintext is cached per key together
+ * with the ciphertext it came from, so it is only decrypted again when the
+ * key's ciphertext changes.
+ *
+ * Applications that want to fail fast on undecryptable values can decrypt
+ * everything at load time instead, one by one (EAGER) or a bounded number at
+ * a time with a pooled encryptor (PARALLEL), selected with
+ * jbeans.app.props.decrypt.mode in jbeans-app.properties. PARALLEL runs on
+ * the container's ManagedExecutorService, outside a container on the common
+ * fork join pool, it never starts threads of its own.
+ *
+ * @author jhogan
+ */
+final class SecretResolver {
+
+    enum Mode {
+        LAZY, EAGER, PARALLEL;
+
+        static Mode of(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return LAZY;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                LOGGER.log(Level.WARNING, "Unknown decrypt mode {0}, using lazy decryption", value);
+                return LAZY;
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SecretResolver.class.getName());
+
+    private static final class Decrypted {
+
+        final String ciphertext;
+        final String plaintext;
+
+        Decrypted(String ciphertext, String plaintext) {
+            this.ciphertext = ciphertext;
+            this.plaintext = plaintext;
+        }
+    }
+
+    private final StringEncryptor encryptor;
+    private final Map<String, Decrypted> decrypted = new ConcurrentHashMap<>();
+    private volatile ConfigurationMetrics metrics;
+
+    /**
+     * @param encryptor the encryptor used to decrypt values, null if the
+     * application has no encryption password. Values are then returned
+     * undecrypted.
+     */
+    SecretResolver(StringEncryptor encryptor) {
+        this.encryptor = encryptor;
+    }
+
+    /**
+     * @param metrics counts the decryptions of this resolver.
+     */
+    void setMetrics(ConfigurationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    static boolean isEncrypted(String value) {
+        return value != null && PropertyValueEncryptionUtils.isEncryptedValue(value);
+    }
+
+    /**
+     * @param key the property key the value belongs to.
+     * @param value the configured value, encrypted or not, may be null.
+     * @return the plaintext for an encrypted value, otherwise value.
+     */
+    String resolve(String key, String value) {
+        if (encryptor == null || !isEncrypted(value)) {
+            return value;
+        }
+        Decrypted cached = decrypted.get(key);
+        if (cached != null && cached.ciphertext.equals(value)) {
+            return cached.plaintext;
+        }
+        String plaintext = PropertyValueEncryptionUtils.decrypt(value, encryptor);
+        ConfigurationMetrics counter = metrics;
+        if (counter != null) {
+            counter.decrypted();
+        }
+        decrypted.put(key, new Decrypted(value, plaintext));
+        return plaintext;
+    }
+
+    /**
+     * Decrypts every encrypted value of a configuration now and caches the
+     * plaintext. Failures are collected per key and reported together.
+     *
+     * @param raw a configuration with encrypted values.
+     * @param threads the number of threads to decrypt on, 1 decrypts on the
+     * calling thread.
+     * @return the number of values decrypted.
+     * @throws ConfigurationException naming every key that could not be
+     * decrypted.
+     */
+    int decryptAll(final Map<String, String> raw, int threads) throws ConfigurationException {
+        return decryptAll(raw, threads, null);
+    }
+
+    /**
+     * @param raw a configuration with encrypted values.
+     * @param threads how many values to decrypt at a time, 1 decrypts on the
+     * calling thread.
+     * @param executor the container's managed executor, null for the common
+     * fork join pool.
+     * @return the number of values decrypted.
+     * @throws ConfigurationException naming every key that could not be
+     * decrypted.
+     */
+    int decryptAll(final Map<String, String> raw, int threads, ExecutorService executor) throws ConfigurationException {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, String> entry : raw.entrySet()) {
+            if (isEncrypted(entry.getValue())) {
+                keys.add(entry.getKey());
+            }
+        }
+        final Map<String, String> failures = new ConcurrentSkipListMap<>();
+        if (threads <= 1 || keys.size() <= 1) {
+            for (String key : keys) {
+                decrypt(key, raw.get(key), failures);
+            }
+        } else {
+            decryptOnPool(raw, keys, Math.min(threads, keys.size()), failures,
+                    executor != null ? executor : ForkJoinPool.commonPool());
+        }
+        if (!failures.isEmpty()) {
+            throw new ConfigurationException("Unable to decrypt " + failures.size() + " of " + keys.size()
+                    + " encrypted properties: " + failures);
+        }
+        return keys.size();
+    }
+
+    /*
+     * One task per thread, the tasks take the keys one after the other, so a
+     * shared executor runs no more than threads decryptions of this load.
+     */
+    private void decryptOnPool(final Map<String, String> raw, final List<String> keys, int threads,
+            final Map<String, String> failures, ExecutorService executor) throws ConfigurationException {
+        final AtomicInteger next = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            tasks.add(() -> {
+                for (int k = next.getAndIncrement(); k < keys.size(); k = next.getAndIncrement()) {
+                    String key = keys.get(k);
+                    decrypt(key, raw.get(key), failures);
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ConfigurationException("Interrupted while decrypting properties", ex);
+        } catch (ExecutionException ex) {
+            throw new ConfigurationException("Unable to decrypt properties", ex.getCause());
+        }
+    }
+
+    private void decrypt(String key, String value, Map<String, String> failures) {
+        try {
+            resolve(key, value);
+        } catch (RuntimeException ex) {
+            failures.put(key, ex.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * @return the number of cached plaintext values.
+     */
+    int size() {
+        return decrypted.size();
+    }
+
+    /**
+     * @param raw a configuration with encrypted values.
+     * @return a read only view of raw that decrypts values as they are read.
+     */
+    Map<String, String> decryptingView(Map<String, String> raw) {
+        return new DecryptingMap(raw, this);
+    }
+
+    private static final class DecryptingMap extends AbstractMap<String, String> {
+
+        private final Map<String, String> raw;
+        private final SecretResolver resolver;
+
+        DecryptingMap(Map<String, String> raw, SecretResolver resolver) {
+            this.raw = raw;
+            this.resolver = resolver;
+        }
+
+        @Override
+        public String get(Object key) {
+            String value = raw.get(key);
+            return key instanceof String ? resolver.resolve((String) key, value) : value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return raw.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return raw.size();
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    final Iterator<Map.Entry<String, String>> entries = raw.entrySet().iterator();
+                    return new Iterator<Map.Entry<String, String>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            Map.Entry<String, String> entry = entries.next();
+                            return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(),
+                                    resolver.resolve(entry.getKey(), entry.getValue()));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return raw.size();
+                }
+            };
+        }
+    }
+}
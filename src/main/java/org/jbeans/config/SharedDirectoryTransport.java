@@ -0,0 +1,374 @@
+package org.jbeans.config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Replicates admin changes through a directory all nodes share, a network
+ * file system in a cluster or any local directory on one machine.
+ *
+ * Every mutation is a file of its own, ${clock}-${node}.mutation, written to a
+ * temporary file and renamed into place, so nodes never read a torn one.
+ * Nodes list the directory when they poll and read the files they have not
+ * read before. A file that cannot be read is renamed to .corrupt and
+ * skipped.
+ *
+ * Once the directory holds COMPACT_THRESHOLD mutations a node compacts them:
+ * the latest change of every property, deletes included, is merged into
+ * state.snapshot and the mutation files it now holds are deleted. A node
+ * that joins or rejoins the cluster reads the snapshot and the mutations
+ * published since, not every mutation ever made. Only one node compacts at
+ * a time, it holds compact.lock while it does, a lock older than
+ * STALE_LOCK_MILLIS is left by a node that died and is removed.
+ *
+ * Files are a 16 byte header followed by the mutations:
+ * <pre>
+ *     int magic, int format, int length, int crc32
+ *     int mutations, per mutation: string node, long clock, int changes,
+ *     per change: string key, boolean deleted, string value unless deleted
+ * </pre>
+ * Strings are an int length followed by UTF-8 bytes, as in SnapshotFile.
+ *
+ * @author jhogan
+ */
+final class SharedDirectoryTransport implements ReplicationTransport {
+
+    static final int MAGIC = 0x4A42524D;
+    static final int FORMAT = 1;
+    static final int HEADER_SIZE = 16;
+    static final String SUFFIX = ".mutation";
+    static final String SNAPSHOT = "state.snapshot";
+    static final String LOCK = "compact.lock";
+    static final String CORRUPT = ".corrupt";
+    static final int COMPACT_THRESHOLD = 256;
+    static final long STALE_LOCK_MILLIS = 60000;
+
+    private static final Logger LOGGER = Logger.getLogger(SharedDirectoryTransport.class.getName());
+
+    private final Path dir;
+    private final int compactThreshold;
+    // only used by the replication thread.
+    private final Set<String> seen = new HashSet<>();
+    private String snapshotStamp;
+
+    SharedDirectoryTransport(Path dir) throws IOException {
+        this(dir, COMPACT_THRESHOLD);
+    }
+
+    SharedDirectoryTransport(Path dir, int compactThreshold) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.compactThreshold = Math.max(1, compactThreshold);
+    }
+
+    Path getDirectory() {
+        return dir;
+    }
+
+    @Override
+    public void publish(ConfigurationMutation mutation) throws IOException {
+        String name = String.format("%019d-%s%s", mutation.getClock(), mutation.getNode().replaceAll("[^A-Za-z0-9_.-]", "_"), SUFFIX);
+        write(dir.resolve(name), Collections.singletonList(mutation));
+        seen.add(name);
+    }
+
+    /*
+     * The directory is listed before the snapshot is checked: a node that
+     * compacts writes the snapshot before it deletes mutation files, so a
+     * file missing from the listing is in the snapshot read after it. A file
+     * deleted between the listing and reading it is too, the snapshot is read
+     * again.
+     */
+    @Override
+    public List<ConfigurationMutation> receive() throws IOException {
+        List<Path> files = list();
+        List<ConfigurationMutation> received = new ArrayList<>();
+        String stamp = stamp(dir.resolve(SNAPSHOT));
+        if (stamp != null && !stamp.equals(snapshotStamp)) {
+            List<ConfigurationMutation> snapshot = read(dir.resolve(SNAPSHOT));
+            if (snapshot != null) {
+                received.addAll(snapshot);
+            }
+            snapshotStamp = stamp;
+        }
+        Set<String> names = new HashSet<>();
+        List<Path> readable = new ArrayList<>(files.size());
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            names.add(name);
+            if (seen.contains(name)) {
+                readable.add(file);
+                continue;
+            }
+            List<ConfigurationMutation> mutations;
+            try {
+                mutations = read(file);
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, "Skipping unreadable replicated mutation, renamed to " + name + CORRUPT, ex);
+                Files.move(file, file.resolveSibling(name + CORRUPT), StandardCopyOption.REPLACE_EXISTING);
+                continue;
+            }
+            if (mutations == null) {
+                snapshotStamp = null;
+            } else {
+                received.addAll(mutations);
+                seen.add(name);
+                readable.add(file);
+            }
+        }
+        seen.retainAll(names);
+        if (readable.size() >= compactThreshold) {
+            compact(readable);
+        }
+        return received;
+    }
+
+    /**
+     * Merges the mutation files into the snapshot and deletes them, unless
+     * another node is compacting.
+     *
+     * @param files the mutation files to merge.
+     * @return true if the files were compacted.
+     * @throws IOException if the snapshot could not be written.
+     */
+    boolean compact(List<Path> files) throws IOException {
+        Path lock = dir.resolve(LOCK);
+        try {
+            Files.createFile(lock);
+        } catch (FileAlreadyExistsException ex) {
+            try {
+                if (System.currentTimeMillis() - Files.getLastModifiedTime(lock).toMillis() > STALE_LOCK_MILLIS) {
+                    LOGGER.log(Level.WARNING, "Removing stale replication lock {0}", lock);
+                    Files.deleteIfExists(lock);
+                }
+            } catch (NoSuchFileException gone) {
+                LOGGER.log(Level.FINE, "Replication lock {0} released meanwhile", lock);
+            }
+            return false;
+        }
+        try {
+            Map<String, ConfigurationMutation> latest = new HashMap<>();
+            List<ConfigurationMutation> snapshot = read(dir.resolve(SNAPSHOT));
+            if (snapshot != null) {
+                merge(latest, snapshot);
+            }
+            for (Path file : files) {
+                List<ConfigurationMutation> mutations = read(file);
+                if (mutations == null) {
+                    // compacted by a node that took over a lock it thought stale.
+                    return false;
+                }
+                merge(latest, mutations);
+            }
+            // the snapshot is read again with the next receive, it may hold
+            // mutations of a compaction this node has not read.
+            write(dir.resolve(SNAPSHOT), group(latest));
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            LOGGER.log(Level.INFO, "Compacted {0} replicated mutations into {1}, properties= {2}",
+                    new Object[]{files.size(), SNAPSHOT, latest.size()});
+            return true;
+        } finally {
+            Files.deleteIfExists(lock);
+        }
+    }
+
+    /*
+     * Keeps the latest change of every key, as a mutation of that key alone.
+     */
+    private static void merge(Map<String, ConfigurationMutation> latest, List<ConfigurationMutation> mutations) {
+        for (ConfigurationMutation mutation : mutations) {
+            for (Map.Entry<String, String> change : mutation.getChanges().entrySet()) {
+                ConfigurationMutation current = latest.get(change.getKey());
+                if (current == null || mutation.isNewerThan(current.getClock(), current.getNode())) {
+                    latest.put(change.getKey(), new ConfigurationMutation(mutation.getNode(), mutation.getClock(),
+                            Collections.singletonMap(change.getKey(), change.getValue())));
+                }
+            }
+        }
+    }
+
+    /*
+     * Groups the latest changes by the mutation they were made with again.
+     */
+    private static List<ConfigurationMutation> group(Map<String, ConfigurationMutation> latest) {
+        Map<String, Map<String, String>> changes = new LinkedHashMap<>();
+        Map<String, ConfigurationMutation> stamps = new HashMap<>();
+        for (ConfigurationMutation mutation : latest.values()) {
+            String stamp = mutation.getClock() + "-" + mutation.getNode();
+            stamps.put(stamp, mutation);
+            changes.computeIfAbsent(stamp, s -> new HashMap<>()).putAll(mutation.getChanges());
+        }
+        List<ConfigurationMutation> grouped = new ArrayList<>(changes.size());
+        for (Map.Entry<String, Map<String, String>> stamp : changes.entrySet()) {
+            ConfigurationMutation mutation = stamps.get(stamp.getKey());
+            grouped.add(new ConfigurationMutation(mutation.getNode(), mutation.getClock(), stamp.getValue()));
+        }
+        return grouped;
+    }
+
+    private List<Path> list() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /*
+     * Identifies a version of the snapshot, a rename gives it a new file key.
+     */
+    private static String stamp(Path file) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.fileKey() + ":" + attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    static void write(Path file, List<ConfigurationMutation> mutations) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(mutations.size());
+        for (ConfigurationMutation mutation : mutations) {
+            writeString(out, mutation.getNode());
+            out.writeLong(mutation.getClock());
+            out.writeInt(mutation.getChanges().size());
+            for (Map.Entry<String, String> change : mutation.getChanges().entrySet()) {
+                writeString(out, change.getKey());
+                out.writeBoolean(change.getValue() == null);
+                if (change.getValue() != null) {
+                    writeString(out, change.getValue());
+                }
+            }
+        }
+        out.flush();
+        ByteBuffer payload = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT).putInt(payload.remaining()).putInt((int) crc.getValue());
+        header.flip();
+
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (payload.hasRemaining()) {
+                    channel.write(payload);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @param file a mutation or snapshot file.
+     * @return the mutations of the file, null if there is no such file.
+     * @throws IOException if the file cannot be read, is of an unknown format
+     * or fails its checksum.
+     */
+    static List<ConfigurationMutation> read(Path file) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a replicated mutation: " + file);
+        }
+        int format = buffer.getInt();
+        if (format != FORMAT) {
+            throw new IOException("Unsupported mutation format " + format + ": " + file);
+        }
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length != buffer.remaining()) {
+            throw new IOException("Mutation " + file + " is truncated, expected " + length + " bytes, found " + buffer.remaining());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Mutation " + file + " fails its checksum");
+        }
+        try {
+            int count = buffer.getInt();
+            List<ConfigurationMutation> mutations = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String node = readString(buffer);
+                long clock = buffer.getLong();
+                int entries = buffer.getInt();
+                Map<String, String> changes = new LinkedHashMap<>();
+                for (int j = 0; j < entries; j++) {
+                    String key = readString(buffer);
+                    changes.put(key, buffer.get() != 0 ? null : readString(buffer));
+                }
+                mutations.add(new ConfigurationMutation(node, clock, changes));
+            }
+            return mutations;
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw new IOException("Mutation " + file + " is corrupt", ex);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("invalid string length " + length);
+        }
+        ByteBuffer bytes = buffer.slice();
+        bytes.limit(length);
+        buffer.position(buffer.position() + length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    @Override
+    public void close() {
+        seen.clear();
+    }
+}
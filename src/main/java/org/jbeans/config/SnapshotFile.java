@@ -0,0 +1,180 @@
+package org.jbeans.config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The last known good configuration of the providers, in a compact binary
+ * file next to the external properties file. The Configurator writes it
+ * after every successful merge and starts from it on the next boot, so the
+ * application does not wait for the providers, or start without their
+ * properties when one of them is down.
+ *
+ * Values are written as the providers returned them, encrypted values stay
+ * encrypted. The file is a 32 byte header followed by the layers:
+ * <pre>
+ *     int magic, int format, long version, long saved, int length, int crc32
+ *     int layers, per layer: string name, int entries, per entry: string key, string value
+ * </pre>
+ * Strings are an int length followed by UTF-8 bytes. The checksum covers the
+ * layers, a torn or corrupt file is rejected as a whole.
+ *
+ * @author jhogan
+ */
+final class SnapshotFile {
+
+    static final int MAGIC = 0x4A42434E;
+    static final int FORMAT = 1;
+    static final int HEADER_SIZE = 32;
+
+    private final Path file;
+
+    SnapshotFile(Path file) {
+        this.file = file;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the layers to a temporary file and renames it over the snapshot
+     * file, readers see either the old or the new snapshot.
+     *
+     * @param version the version of the configuration the layers belong to.
+     * @param layers the provider layers, in merge order.
+     * @throws IOException if the file cannot be written.
+     */
+    void write(long version, List<ConfigurationLayer> layers) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(layers.size());
+        for (ConfigurationLayer layer : layers) {
+            writeString(out, layer.getName());
+            out.writeInt(layer.size());
+            for (Map.Entry<String, String> entry : layer.asMap().entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+        out.flush();
+        ByteBuffer payload = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT).putLong(version).putLong(System.currentTimeMillis())
+                .putInt(payload.remaining()).putInt((int) crc.getValue());
+        header.flip();
+
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (payload.hasRemaining()) {
+                    channel.write(payload);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Reads the snapshot through a memory mapping of the file.
+     *
+     * @return the provider layers in merge order, null if there is no
+     * snapshot file.
+     * @throws IOException if the file cannot be read, is of an unknown format
+     * or fails its checksum.
+     */
+    List<ConfigurationLayer> read() throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " has an invalid size " + channel.size());
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a configuration snapshot: " + file);
+        }
+        int format = buffer.getInt();
+        if (format != FORMAT) {
+            throw new IOException("Unsupported snapshot format " + format + ": " + file);
+        }
+        buffer.getLong(); // version
+        buffer.getLong(); // saved
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length != buffer.remaining()) {
+            throw new IOException("Snapshot " + file + " is truncated, expected " + length + " bytes, found " + buffer.remaining());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Snapshot " + file + " fails its checksum");
+        }
+        try {
+            int count = buffer.getInt();
+            List<ConfigurationLayer> layers = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = readString(buffer);
+                int entries = buffer.getInt();
+                Map<String, String> values = new HashMap<>(Math.max(16, entries * 4 / 3 + 1));
+                for (int j = 0; j < entries; j++) {
+                    values.put(readString(buffer), readString(buffer));
+                }
+                layers.add(new ConfigurationLayer(name, values));
+            }
+            return layers;
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw new IOException("Snapshot " + file + " is corrupt", ex);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("invalid string length " + length);
+        }
+        ByteBuffer bytes = buffer.slice();
+        bytes.limit(length);
+        buffer.position(buffer.position() + length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+}
@@ -0,0 +1,71 @@
+package org.jbeans.config;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches converted property values per (key, value type) so the Configurator
+ * producer methods parse and box a value once, not every time a dependent or
+ * request scoped bean is created.
+ *
+ * Every entry remembers the raw string it was converted from. An entry is
+ * only replaced when the key's current raw value is different, so changes to
+ * other keys never invalidate it.
+ *
+ * @author jhogan
+ */
+final class TypedValueCache {
+
+    private static final class Entry {
+
+        final String raw;
+        final Object value;
+
+        Entry(String raw, Object value) {
+            this.raw = raw;
+            this.value = value;
+        }
+    }
+
+    private final Map<ValueType, Map<String, Entry>> caches = new EnumMap<>(ValueType.class);
+
+    TypedValueCache() {
+        for (ValueType type : ValueType.values()) {
+            caches.put(type, new ConcurrentHashMap<String, Entry>());
+        }
+    }
+
+    /**
+     * @param key the property key.
+     * @param raw the key's value in the current configuration, may be null.
+     * @param type the type to convert to.
+     * @return the converted value, or the type's default if raw is null.
+     * @throws ConfigurationException if raw cannot be converted to type.
+     */
+    Object get(String key, String raw, ValueType type) throws ConfigurationException {
+        if (raw == null) {
+            return type.convert(null);
+        }
+        Map<String, Entry> cache = caches.get(type);
+        Entry entry = cache.get(key);
+        if (entry != null && (entry.raw == raw || entry.raw.equals(raw))) {
+            return entry.value;
+        }
+        Object value = type.convert(key, raw);
+        cache.put(key, new Entry(raw, value));
+        return value;
+    }
+
+    void invalidate(String key) {
+        for (Map<String, Entry> cache : caches.values()) {
+            cache.remove(key);
+        }
+    }
+
+    void clear() {
+        for (Map<String, Entry> cache : caches.values()) {
+            cache.clear();
+        }
+    }
+}
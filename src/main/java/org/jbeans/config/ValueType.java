@@ -0,0 +1,97 @@
+package org.jbeans.config;
+
+/**
+ * The value types the Configurator knows how to convert configuration
+ * strings to. The defaults match what the producer methods inject for a
+ * property that is not configured.
+ *
+ * @author jhogan
+ */
+enum ValueType {
+
+    STRING(String.class, null) {
+        @Override
+        Object parse(String value) {
+            return value;
+        }
+    },
+    LONG(Long.class, 0L) {
+        @Override
+        Object parse(String value) {
+            return Long.parseLong(value.trim());
+        }
+    },
+    INTEGER(Integer.class, 0) {
+        @Override
+        Object parse(String value) {
+            return Integer.parseInt(value.trim());
+        }
+    },
+    FLOAT(Float.class, 0.0f) {
+        @Override
+        Object parse(String value) {
+            return Float.parseFloat(value);
+        }
+    },
+    DOUBLE(Double.class, 0.0d) {
+        @Override
+        Object parse(String value) {
+            return Double.parseDouble(value);
+        }
+    },
+    BOOLEAN(Boolean.class, Boolean.FALSE) {
+        @Override
+        Object parse(String value) {
+            return Boolean.parseBoolean(value.trim());
+        }
+    };
+
+    private final Class<?> javaType;
+    private final Object defaultValue;
+
+    ValueType(Class<?> javaType, Object defaultValue) {
+        this.javaType = javaType;
+        this.defaultValue = defaultValue;
+    }
+
+    abstract Object parse(String value);
+
+    /**
+     * @param value the configured string, may be null.
+     * @return the converted value, or the type's default if value is null.
+     */
+    Object convert(String value) {
+        return value == null ? defaultValue : parse(value);
+    }
+
+    /**
+     * Converts a property value, reporting malformed values with the key they
+     * belong to.
+     *
+     * @param key the property key, used in the error message.
+     * @param value the configured string, may be null.
+     * @return the converted value, or the type's default if value is null.
+     * @throws ConfigurationException if the value cannot be converted.
+     */
+    Object convert(String key, String value) throws ConfigurationException {
+        try {
+            return convert(value);
+        } catch (NumberFormatException ex) {
+            throw new ConfigurationException("Property " + key + " has value '" + value
+                    + "' which is not a valid " + javaType.getSimpleName(), ex);
+        }
+    }
+
+    Class<?> getJavaType() {
+        return javaType;
+    }
+
+    static ValueType of(Class<?> type) {
+        for (ValueType valueType : values()) {
+            if (valueType.javaType.equals(type)) {
+                return valueType;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported configuration value type: " + type.getName());
+    }
+}
@@ -0,0 +1,269 @@
+package org.jbeans.config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes property changes to the external properties file behind the
+ * callers' backs.
+ *
+ * Changes submitted within a short window are coalesced, the last change of a
+ * key wins, and written with one read of the file and one write. Comments and
+ * the order of the entries are kept, see PropertiesFormat.update. The write
+ * goes to a temporary file in the same directory, with the permissions of
+ * the properties file, is forced to disk and then renamed over the
+ * properties file, and the rename is forced to disk with the directory. A
+ * crash leaves either the old or the new file, never a torn one.
+ *
+ * All writes happen on a single thread, so concurrent callers never overwrite
+ * each other's changes. Every caller gets a future that completes when its
+ * change is durable, or exceptionally when the write failed.
+ *
+ * A Listener is told the checksums of the content read and written before
+ * the rename, so a ConfigurationFileWatcher does not take the application's
+ * own write for an edit and reload the file.
+ *
+ * @author jhogan
+ */
+final class WriteBehindPersister {
+
+    /**
+     * Told about every write before it replaces the file.
+     */
+    interface Listener {
+
+        /**
+         * @param file the file written.
+         * @param before the checksum of the content the changes were applied
+         * to, see ConfigurationFileWatcher.checksum.
+         * @param after the checksum of the content written.
+         */
+        void written(Path file, long before, long after);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(WriteBehindPersister.class.getName());
+
+    private final Path file;
+    private final long delayMillis;
+    private final ScheduledExecutorService writer;
+    private final ConfigurationMetrics metrics;
+    private final Listener listener;
+
+    // changes not yet written, a null value removes the key.
+    private Map<String, String> pending = new LinkedHashMap<>();
+    private CompletableFuture<Void> pendingWrite;
+    // changes being written, until they are on disk.
+    private Map<String, String> writing = Collections.emptyMap();
+
+    /**
+     * @param file the properties file to write.
+     * @param delayMillis how long to collect changes before writing them.
+     */
+    WriteBehindPersister(Path file, long delayMillis) {
+        this(file, delayMillis, new ConfigurationMetrics(), null);
+    }
+
+    /**
+     * @param metrics times every write.
+     * @param listener told about every write, may be null.
+     */
+    WriteBehindPersister(Path file, long delayMillis, ConfigurationMetrics metrics, Listener listener) {
+        this.file = file;
+        this.metrics = metrics;
+        this.listener = listener;
+        this.delayMillis = Math.max(0, delayMillis);
+        this.writer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "jbeans-config-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    CompletableFuture<Void> put(String key, String value) {
+        return submit(Collections.singletonMap(key, value));
+    }
+
+    CompletableFuture<Void> remove(String key) {
+        return submit(Collections.<String, String>singletonMap(key, null));
+    }
+
+    /**
+     * @param changes the keys to set, keys mapped to null are removed.
+     * @return a future completed when the changes are on disk.
+     */
+    synchronized CompletableFuture<Void> submit(Map<String, String> changes) {
+        if (writer.isShutdown()) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("Persister for " + file + " is closed"));
+            return failed;
+        }
+        pending.putAll(changes);
+        if (pendingWrite == null) {
+            pendingWrite = new CompletableFuture<>();
+            writer.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        return pendingWrite;
+    }
+
+    /**
+     * @return the changes submitted but not yet on disk, later changes of a
+     * key win, a copy.
+     */
+    synchronized Map<String, String> getUnwritten() {
+        Map<String, String> unwritten = new LinkedHashMap<>(writing);
+        unwritten.putAll(pending);
+        return unwritten;
+    }
+
+    /**
+     * Waits for a write to complete.
+     *
+     * @throws ConfigurationException if the write failed.
+     */
+    static void await(CompletableFuture<Void> write) throws ConfigurationException {
+        try {
+            write.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ConfigurationException("Interrupted while saving properties", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof ConfigurationException) {
+                throw (ConfigurationException) cause;
+            }
+            throw new ConfigurationException(String.valueOf(cause.getMessage()), cause);
+        }
+    }
+
+    /**
+     * Writes outstanding changes and stops the writer thread.
+     */
+    void close() {
+        synchronized (this) {
+            if (writer.isShutdown()) {
+                return;
+            }
+            writer.shutdown();
+        }
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOGGER.log(Level.WARNING, "Timed out writing pending changes to {0}", file);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush() {
+        Map<String, String> changes;
+        CompletableFuture<Void> write;
+        synchronized (this) {
+            changes = pending;
+            write = pendingWrite;
+            pending = new LinkedHashMap<>();
+            pendingWrite = null;
+            writing = changes;
+        }
+        long start = System.nanoTime();
+        try {
+            write(changes);
+            metrics.timed(ConfigurationMetrics.PERSIST, System.nanoTime() - start);
+            write.complete(null);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.SEVERE, "Unable to write " + changes.size() + " changes to " + file, ex);
+            write.completeExceptionally(ex);
+        } finally {
+            synchronized (this) {
+                writing = Collections.emptyMap();
+            }
+        }
+    }
+
+    private void write(Map<String, String> changes) throws IOException {
+        ByteBuffer content = PropertiesFormat.read(file);
+        ByteBuffer updated = ByteBuffer.wrap(PropertiesFormat.update(content, changes));
+
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (updated.hasRemaining()) {
+                    channel.write(updated);
+                }
+                channel.force(true);
+            }
+            copyPermissions(file, temp);
+            if (listener != null) {
+                listener.written(file, ConfigurationFileWatcher.checksum(content), ConfigurationFileWatcher.checksum(updated));
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        forceDirectory(dir);
+        LOGGER.log(Level.FINE, "Wrote {0} changes to {1}", new Object[]{changes.size(), file});
+    }
+
+    /*
+     * createTempFile creates the file readable by its owner only, the file it
+     * replaces keeps its permissions, owner and group. Owner and group can
+     * only be kept by a privileged user, a failure to keep them is logged.
+     */
+    private static void copyPermissions(Path from, Path to) throws IOException {
+        PosixFileAttributeView source = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+        PosixFileAttributeView target = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+        if (source == null || target == null) {
+            return;
+        }
+        PosixFileAttributes attributes = source.readAttributes();
+        target.setPermissions(attributes.permissions());
+        try {
+            if (!attributes.group().equals(target.readAttributes().group())) {
+                target.setGroup(attributes.group());
+            }
+            if (!attributes.owner().equals(target.readAttributes().owner())) {
+                target.setOwner(attributes.owner());
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Unable to keep the owner and group of {0}: {1}", new Object[]{from, ex.getMessage()});
+        }
+    }
+
+    /*
+     * Forces the rename to disk. Directories cannot be opened on every
+     * platform, Windows for one, there the rename is as durable as it gets.
+     */
+    private static void forceDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, "Unable to force directory {0} to disk: {1}", new Object[]{dir, ex.getMessage()});
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.jbeans.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class ConfigValueTest {
+
+    ConfigurationStore store;
+
+    @Before
+    public void setUp() {
+        store = new ConfigurationStore();
+        store.put("jbeans.config.demo.int", "1");
+    }
+
+    /**
+     * Test of get method, of class ConfigValue.
+     */
+    @Test
+    public void testGetFollowsPublishedChanges() {
+        ConfigValue<Integer> value = new ConfigValue<>("jbeans.config.demo.int", ValueType.INTEGER, store);
+        assertEquals(Integer.valueOf(1), value.get());
+
+        store.put("jbeans.config.demo.int", "2");
+        assertEquals(Integer.valueOf(2), value.get());
+
+        store.remove("jbeans.config.demo.int");
+        assertEquals(Integer.valueOf(0), value.get());
+        assertFalse(value.isConfigured());
+        assertEquals(Integer.valueOf(7), value.orElse(7));
+    }
+
+    /**
+     * Unrelated changes must not cause the value to be converted again.
+     */
+    @Test
+    public void testGetReusesValueForUnrelatedChanges() {
+        ConfigValue<Integer> value = new ConfigValue<>("jbeans.config.demo.int", ValueType.INTEGER, store);
+        Integer first = value.get();
+
+        store.put("some.other.key", "x");
+        assertSame(first, value.get());
+    }
+
+    /**
+     * Test of onChange method, of class ConfigValue.
+     */
+    @Test
+    public void testOnChange() {
+        final List<String> changes = new ArrayList<>();
+        ConfigValue<Integer> value = new ConfigValue<Integer>("jbeans.config.demo.int", ValueType.INTEGER, store)
+                .onChange((key, oldValue, newValue) -> changes.add(key + ":" + oldValue + "->" + newValue));
+
+        store.put("some.other.key", "x");
+        store.put("jbeans.config.demo.int", "5");
+        value.close();
+        store.put("jbeans.config.demo.int", "6");
+
+        assertEquals(1, changes.size());
+        assertEquals("jbeans.config.demo.int:1->5", changes.get(0));
+    }
+}
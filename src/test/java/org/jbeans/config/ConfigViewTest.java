@@ -0,0 +1,63 @@
+package org.jbeans.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class ConfigViewTest {
+
+    ConfigurationStore store;
+
+    @Before
+    public void setUp() {
+        store = new ConfigurationStore();
+        store.put("db.primary.url", "jdbc:h2:mem:a");
+        store.put("db.primary.user", "sa");
+        store.put("db.primary.pool.size", "10");
+        store.put("db.primaryx.url", "jdbc:h2:mem:x");
+        store.put("db.replica.url", "jdbc:h2:mem:b");
+        store.put("db.primary", "not below itself");
+    }
+
+    /**
+     * Test of getByPrefix method, of class ConfigurationSnapshot.
+     */
+    @Test
+    public void testGetByPrefix() {
+        SortedMap<String, String> primary = store.current().getByPrefix("db.primary");
+        assertEquals(Arrays.asList("db.primary.pool.size", "db.primary.url", "db.primary.user"),
+                new ArrayList<>(primary.keySet()));
+        assertEquals(6, store.current().getByPrefix("db.").size());
+        assertEquals(1, store.current().getByPrefix("db.replica").size());
+        assertEquals(6, store.current().getByPrefix("").size());
+        assertTrue(store.current().getByPrefix("feature").isEmpty());
+    }
+
+    /**
+     * A view has relative keys and follows the current configuration.
+     */
+    @Test
+    public void testViewIsLive() {
+        final SecretResolver secrets = new SecretResolver(null);
+        ConfigView view = new ConfigView("db.primary", store, () -> secrets);
+        Map<String, String> values = view.asMap();
+        assertEquals(3, values.size());
+        assertEquals("sa", values.get("user"));
+        assertSame(values, view.asMap());
+        assertEquals("10", view.view("pool").get("size"));
+
+        store.put("db.primary.user", "admin");
+        assertEquals("admin", view.get("user"));
+        assertEquals("admin", view.asMap().get("user"));
+        assertEquals("none", view.get("password", "none"));
+    }
+}
@@ -0,0 +1,129 @@
+package org.jbeans.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class ConfigurationFileWatcherTest {
+
+    Path dir;
+    Path file;
+    ConfigurationMetrics metrics;
+    AtomicInteger reloads;
+    ConfigurationFileWatcher watcher;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("jbeans-watch");
+        file = dir.resolve("environment.properties");
+        write("jbeans.demo.key=1\n");
+        metrics = new ConfigurationMetrics();
+        reloads = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (watcher != null) {
+            watcher.stop();
+        }
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * Test of checkForChange method, of class ConfigurationFileWatcher.
+     */
+    @Test
+    public void testUnchangedContentIsSkipped() throws IOException {
+        watcher = new ConfigurationFileWatcher(file, ConfigurationFileWatcher.Mode.POLL, 10, 60000, reloads::incrementAndGet, metrics);
+        watcher.start();
+
+        write("jbeans.demo.key=1\n");
+        watcher.checkForChange();
+        assertEquals(0, reloads.get());
+        assertEquals(1, metrics.getSkippedReloadCount());
+
+        write("jbeans.demo.key=2\n");
+        watcher.checkForChange();
+        assertEquals(1, reloads.get());
+        assertEquals(1, metrics.getReloadCount());
+    }
+
+    /**
+     * A write of the persister is not reloaded, unless the file had changed
+     * before it.
+     */
+    @Test
+    public void testPersisterWriteIsSkipped() throws Exception {
+        watcher = new ConfigurationFileWatcher(file, ConfigurationFileWatcher.Mode.POLL, 10, 60000, reloads::incrementAndGet, metrics);
+        watcher.start();
+        WriteBehindPersister persister = new WriteBehindPersister(file, 0, metrics, watcher::written);
+        try {
+            WriteBehindPersister.await(persister.put("jbeans.demo.other", "1"));
+            watcher.checkForChange();
+            assertEquals(0, reloads.get());
+
+            write("jbeans.demo.key=2\n");
+            WriteBehindPersister.await(persister.put("jbeans.demo.other", "2"));
+            watcher.checkForChange();
+            assertEquals(1, reloads.get());
+        } finally {
+            persister.close();
+        }
+    }
+
+    /**
+     * A burst of writes results in a single reload.
+     */
+    @Test
+    public void testWatchDebouncesBurst() throws Exception {
+        watcher = new ConfigurationFileWatcher(file, ConfigurationFileWatcher.Mode.WATCH, 300, 50, reloads::incrementAndGet, metrics);
+        watcher.start();
+
+        for (int i = 0; i < 5; i++) {
+            write("jbeans.demo.key=" + (10 + i) + "\n");
+            Thread.sleep(20);
+        }
+        awaitReloads(1);
+        Thread.sleep(600);
+        assertEquals(1, reloads.get());
+    }
+
+    /**
+     * Polling mode picks up changes without a WatchService.
+     */
+    @Test
+    public void testPollDetectsChange() throws Exception {
+        watcher = new ConfigurationFileWatcher(file, ConfigurationFileWatcher.Mode.POLL, 50, 50, reloads::incrementAndGet, metrics);
+        watcher.start();
+
+        write("jbeans.demo.key=changed-and-longer\n");
+        awaitReloads(1);
+    }
+
+    private void awaitReloads(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (reloads.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(25);
+        }
+        assertEquals(expected, reloads.get());
+    }
+
+    private void write(String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.ISO_8859_1));
+        File f = file.toFile();
+        f.setLastModified(f.lastModified() + 1000);
+    }
+}
@@ -0,0 +1,68 @@
+package org.jbeans.config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class ConfigurationJsonCacheTest {
+
+    ConfigurationStore store;
+    ConfigurationJsonCache cache;
+
+    @Before
+    public void setUp() {
+        store = new ConfigurationStore();
+        store.put("db.url", "jdbc:h2:mem:a");
+        store.put("db.password", "ENC(c2VjcmV0)");
+        store.put("dbx.url", "jdbc:h2:mem:b");
+        store.put("feature.x", "say \"hi\"\n");
+        cache = new ConfigurationJsonCache();
+    }
+
+    /**
+     * The JSON of a snapshot is serialized once and reused until a new
+     * snapshot is published.
+     */
+    @Test
+    public void testJsonIsReusedPerSnapshot() {
+        byte[] first = cache.get(store.current(), null, null);
+        assertSame(first, cache.get(store.current(), null, null));
+
+        store.put("feature.y", "true");
+        byte[] second = cache.get(store.current(), null, null);
+        assertNotSame(first, second);
+        assertTrue(new String(second, StandardCharsets.UTF_8).contains("\"feature.y\":\"true\""));
+    }
+
+    /**
+     * Test of filter method, of class ConfigurationJsonCache.
+     */
+    @Test
+    public void testFilters() {
+        Map<String, String> db = ConfigurationJsonCache.filter(store.current(), "db", null);
+        assertEquals(2, db.size());
+        assertFalse(db.containsKey("dbx.url"));
+
+        Map<String, String> keys = ConfigurationJsonCache.filter(store.current(), null, "db.url, feature.x,unknown");
+        assertEquals(2, keys.size());
+        assertEquals(1, ConfigurationJsonCache.filter(store.current(), "db", "db.url,feature.x").size());
+    }
+
+    /**
+     * Test of toJson method, of class ConfigurationJsonCache. Values are
+     * escaped and encrypted values stay ciphertext.
+     */
+    @Test
+    public void testJson() {
+        String json = new String(cache.get(store.current(), "", null), StandardCharsets.UTF_8);
+        assertEquals("{\"db.password\":\"ENC(c2VjcmV0)\",\"db.url\":\"jdbc:h2:mem:a\",\"dbx.url\":\"jdbc:h2:mem:b\","
+                + "\"feature.x\":\"say \\\"hi\\\"\\n\"}", json);
+    }
+}
@@ -0,0 +1,60 @@
+package org.jbeans.config;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class ConfigurationMetricsTest {
+
+    /**
+     * Reads are only counted when metrics are enabled.
+     */
+    @Test
+    public void testKeyCounters() {
+        ConfigurationMetrics metrics = new ConfigurationMetrics();
+        metrics.read("jbeans.demo.key", true);
+        assertEquals(0, metrics.getReadCount());
+
+        metrics.setEnabled(true);
+        metrics.read("jbeans.demo.key", true);
+        metrics.read("jbeans.demo.key", true);
+        metrics.read("jbeans.demo.other", true);
+        metrics.read("jbeans.demo.missing", false);
+        metrics.conversionFailed("jbeans.demo.key");
+
+        assertEquals(4, metrics.getReadCount());
+        assertEquals(1, metrics.getMissCount());
+        assertEquals(1, metrics.getConversionFailureCount());
+        assertEquals(2, metrics.getReadCount("jbeans.demo.key"));
+        Map<String, Long> top = metrics.getTopReads(1);
+        assertEquals(1, top.size());
+        assertEquals(Long.valueOf(2), top.get("jbeans.demo.key"));
+        assertEquals(Long.valueOf(1), metrics.getKeyCounters().get("jbeans.demo.missing").get("misses"));
+    }
+
+    /**
+     * Percentiles are within a bucket of the recorded durations.
+     */
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), histogram.getMax());
+        assertEquals(50.0, LatencyHistogram.toMillis(histogram.getPercentile(50)), 50 * 0.125);
+        assertEquals(99.0, LatencyHistogram.toMillis(histogram.getPercentile(99)), 99 * 0.125);
+        for (long value : new long[]{0, 7, 8, 1000, 123456789L}) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(value <= LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.upperBound(bucket - 1));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.jbeans.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class ConfigurationPatchTest {
+
+    /**
+     * A patch is applied as one new version.
+     */
+    @Test
+    public void testPatchIsOneVersion() throws ConfigurationException {
+        ConfigurationStore store = new ConfigurationStore();
+        store.put("jbeans.demo.a", "1");
+        store.put("jbeans.demo.b", "2");
+        final List<ConfigurationDelta> deltas = new ArrayList<>();
+        store.addListener((previous, current, delta) -> deltas.add(delta));
+
+        Map<String, String> set = new HashMap<>();
+        set.put("jbeans.demo.a", "10");
+        set.put("jbeans.demo.c", "3");
+        ConfigurationPatch patch = new ConfigurationPatch(set, Collections.singleton("jbeans.demo.b"));
+        ConfigurationSnapshot snapshot = store.update(2, patch::apply);
+
+        assertEquals(3, snapshot.getVersion());
+        assertEquals(1, deltas.size());
+        assertEquals(3, deltas.get(0).size());
+        assertEquals("10", snapshot.get("jbeans.demo.a"));
+        assertNull(snapshot.get("jbeans.demo.b"));
+        assertTrue(patch.toChanges().containsKey("jbeans.demo.b"));
+        assertNull(patch.toChanges().get("jbeans.demo.b"));
+    }
+
+    /**
+     * Test of update method, of class ConfigurationStore. A stale expected
+     * version changes nothing.
+     */
+    @Test
+    public void testStaleVersionIsRejected() throws ConfigurationException {
+        ConfigurationStore store = new ConfigurationStore();
+        store.put("jbeans.demo.a", "1");
+        ConfigurationPatch patch = new ConfigurationPatch(Collections.singletonMap("jbeans.demo.a", "2"),
+                Collections.<String>emptySet());
+
+        assertNull(store.update(0, patch::apply));
+        assertEquals(1, store.getVersion());
+        assertEquals("1", store.current().get("jbeans.demo.a"));
+    }
+
+    /**
+     * A key that is both set and removed invalidates the whole patch.
+     */
+    @Test(expected = ConfigurationException.class)
+    public void testConflictingPatchIsRejected() throws ConfigurationException {
+        new ConfigurationPatch(Collections.singletonMap("jbeans.demo.a", "1"), Arrays.asList("jbeans.demo.a"));
+    }
+
+    /**
+     * Test of parseVersion method, of class Configurator.
+     */
+    @Test
+    public void testParseVersion() throws ConfigurationException {
+        assertEquals(-1, Configurator.parseVersion(null));
+        assertEquals(-1, Configurator.parseVersion("*"));
+        assertEquals(12, Configurator.parseVersion("12"));
+        assertEquals(12, Configurator.parseVersion("\"12\""));
+        assertEquals(12, Configurator.parseVersion("\"12-k3x9\""));
+        assertEquals("k3x9", Configurator.parseInstance("\"12-k3x9\""));
+        assertNull(Configurator.parseInstance("\"12\""));
+        assertTrue(Configurator.isWeak("W/\"12\""));
+        assertFalse(Configurator.isWeak("\"12\""));
+        assertFalse(Configurator.isWeak(null));
+        try {
+            Configurator.parseVersion("\"abc\"");
+            fail("Expected ConfigurationException");
+        } catch (ConfigurationException ex) {
+            assertTrue(ex.getMessage().contains("abc"));
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.jbeans.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class ConfigurationStoreTest {
+
+    ConfigurationStore store;
+
+    @Before
+    public void setUp() {
+        store = new ConfigurationStore();
+    }
+
+    /**
+     * Test of put method, of class ConfigurationStore.
+     */
+    @Test
+    public void testPutPublishesNewVersion() {
+        ConfigurationSnapshot before = store.current();
+        ConfigurationSnapshot after = store.put("jbeans.demo.key", "value");
+
+        assertEquals(before.getVersion() + 1, after.getVersion());
+        assertSame(after, store.current());
+        assertNull(before.get("jbeans.demo.key"));
+        assertEquals("value", after.get("jbeans.demo.key"));
+    }
+
+    /**
+     * Test of current method, of class ConfigurationStore.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotIsImmutable() {
+        store.put("jbeans.demo.key", "value");
+        store.current().asMap().put("jbeans.demo.key", "changed");
+    }
+
+    /**
+     * Test of replace method, of class ConfigurationStore.
+     */
+    @Test
+    public void testReplaceDoesNotShareCallerMap() {
+        Map<String, String> values = new HashMap<>();
+        values.put("a", "1");
+        store.replace(values);
+        values.put("a", "2");
+
+        assertEquals("1", store.current().get("a"));
+    }
+
+    /**
+     * Concurrent writers must never lose an update and versions must be
+     * unique and increasing.
+     */
+    @Test
+    public void testConcurrentUpdatesAreNotLost() throws Exception {
+        final int threads = 8;
+        final int updates = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final String prefix = "writer" + t + ".";
+            writers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int i = 0; i < updates; i++) {
+                    store.put(prefix + i, Integer.toString(i));
+                }
+            });
+            writers[t].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(threads * updates, store.current().size());
+        assertEquals(threads * updates, store.getVersion());
+    }
+
+    /**
+     * Test of replace method, of class ConfigurationStore. A reload with
+     * unchanged content publishes nothing.
+     */
+    @Test
+    public void testUnchangedReplaceIsNotPublished() {
+        final List<ConfigurationDelta> deltas = new ArrayList<>();
+        Map<String, String> values = new HashMap<>();
+        values.put("db.primary.url", "jdbc:h2:mem:a");
+        values.put("db.primary.user", "sa");
+        values.put("feature.x", "true");
+        store.replace(values);
+        store.addListener((previous, current, delta) -> deltas.add(delta));
+
+        ConfigurationSnapshot before = store.current();
+        assertSame(before, store.replace(new HashMap<>(values)));
+        assertSame(before, store.put("feature.x", "true"));
+        assertTrue(deltas.isEmpty());
+
+        values.put("db.primary.url", "jdbc:h2:mem:b");
+        values.remove("feature.x");
+        values.put("feature.y", "false");
+        store.replace(values);
+
+        assertEquals(1, deltas.size());
+        ConfigurationDelta delta = deltas.get(0);
+        assertEquals(before.getVersion() + 1, store.getVersion());
+        assertEquals(Collections.singleton("db.primary.url"), delta.getChanged());
+        assertEquals(Collections.singleton("feature.x"), delta.getRemoved());
+        assertEquals(Collections.singleton("feature.y"), delta.getAdded());
+    }
+
+    /**
+     * Test of forNamespace method, of class ConfigurationDelta.
+     */
+    @Test
+    public void testDeltaForNamespace() {
+        store.put("db.primary.url", "a");
+        final List<ConfigurationDelta> deltas = new ArrayList<>();
+        store.addListener((previous, current, delta) -> deltas.add(delta));
+        store.update(draft -> {
+            draft.put("db.primary.url", "b");
+            draft.put("db.replica.url", "c");
+        });
+
+        ConfigurationDelta delta = deltas.get(0);
+        assertSame(delta, delta.forNamespace(""));
+        assertEquals(2, delta.forNamespace("db").size());
+        assertEquals(Collections.singleton("db.primary.url"), delta.forNamespace("db.primary").getChanged());
+        assertEquals(Collections.singleton("db.replica.url"), delta.forNamespace("db.replica.url").getAdded());
+        assertTrue(delta.forNamespace("db.prim").isEmpty());
+        assertTrue(delta.forNamespace("feature").isEmpty());
+    }
+
+    /**
+     * Test of replaceLayers method, of class ConfigurationStore. Lookups walk
+     * the layers in priority order and unchanged layers are shared.
+     */
+    @Test
+    public void testLayeredLookup() {
+        Map<String, String> app = new HashMap<>();
+        app.put("db.url", "jdbc:h2:mem:app");
+        app.put("db.user", "sa");
+        Map<String, String> file = new HashMap<>();
+        file.put("db.url", "jdbc:h2:mem:file");
+        ConfigurationLayer appLayer = new ConfigurationLayer("app", app);
+        store.replaceLayers(Arrays.asList(new ConfigurationLayer("file", file), appLayer));
+
+        ConfigurationSnapshot snapshot = store.current();
+        assertEquals("jdbc:h2:mem:file", snapshot.get("db.url"));
+        assertEquals("file", snapshot.getSource("db.url"));
+        assertEquals("app", snapshot.getSource("db.user"));
+        assertNull(snapshot.getSource("db.password"));
+        assertEquals(2, snapshot.size());
+
+        final List<ConfigurationDelta> deltas = new ArrayList<>();
+        store.addListener((previous, current, delta) -> deltas.add(delta));
+        Map<String, String> changed = new HashMap<>(file);
+        changed.put("db.password", "secret");
+        store.replaceLayers(Arrays.asList(new ConfigurationLayer("file", changed), new ConfigurationLayer("app", app)));
+
+        assertSame(appLayer, store.current().getLayers().get(1));
+        assertEquals(1, deltas.size());
+        assertEquals(Collections.singleton("db.password"), deltas.get(0).getAdded());
+    }
+
+    /**
+     * Updates go to the overrides layer, a removed key hides the layers
+     * below it.
+     */
+    @Test
+    public void testUpdatesOverrideLayers() {
+        Map<String, String> app = new HashMap<>();
+        app.put("db.url", "jdbc:h2:mem:app");
+        app.put("db.user", "sa");
+        store.replaceLayers(Collections.singletonList(new ConfigurationLayer("app", app)));
+        store.put("db.url", "jdbc:h2:mem:admin");
+        store.remove("db.user");
+
+        ConfigurationSnapshot snapshot = store.current();
+        assertEquals(2, snapshot.getLayers().size());
+        assertEquals("jdbc:h2:mem:admin", snapshot.get("db.url"));
+        assertEquals(ConfigurationLayer.OVERRIDES, snapshot.getSource("db.url"));
+        assertNull(snapshot.get("db.user"));
+        assertFalse(snapshot.asMap().containsKey("db.user"));
+        assertEquals(1, snapshot.size());
+
+        long version = store.getVersion();
+        store.replaceLayers(Collections.singletonList(new ConfigurationLayer("app", app)));
+        assertEquals(version + 1, store.getVersion());
+        assertEquals("sa", store.current().get("db.user"));
+        assertEquals(1, store.current().getLayers().size());
+    }
+
+    /**
+     * Namespace queries and views read the layers, a change of the overrides
+     * layer keeps the index of the layers below.
+     */
+    @Test
+    public void testPrefixIndexIsKeptAcrossOverrides() {
+        Map<String, String> app = new HashMap<>();
+        app.put("db.url", "jdbc:h2:mem:app");
+        app.put("db.user", "sa");
+        app.put("mail.host", "smtp");
+        ConfigurationLayer appLayer = new ConfigurationLayer("app", app);
+        store.replaceLayers(Collections.singletonList(appLayer));
+        store.put("db.pool", "10");
+        assertEquals(3, store.current().getByPrefix("db").size());
+        String[] index = appLayer.sortedKeys();
+
+        store.put("db.url", "jdbc:h2:mem:admin");
+        store.remove("db.user");
+        ConfigurationSnapshot snapshot = store.current();
+        assertSame(appLayer, snapshot.getLayers().get(1));
+        assertSame(index, appLayer.sortedKeys());
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("db.pool", "10");
+        expected.put("db.url", "jdbc:h2:mem:admin");
+        assertEquals(expected, snapshot.getByPrefix("db"));
+        expected.put("mail.host", "smtp");
+        assertEquals(expected, snapshot.asMap());
+        assertEquals(3, snapshot.size());
+    }
+}
@@ -0,0 +1,328 @@
+package org.jbeans.config;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.enterprise.inject.Instance;
+import javax.enterprise.inject.spi.AnnotatedField;
+import javax.enterprise.inject.spi.InjectionPoint;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Reads through the producers and the REST api while PUT, DELETE and PATCH
+ * requests and reloads of the properties file change the configuration,
+ * without an app server: the CDI Instance of providers, the injection points
+ * and UriInfo are stubbed here.
+ *
+ * Run longer with -Djbeans.stress.millis=60000.
+ *
+ * @author jhogan
+ *
+ */
+public class ConfigurationStressTest {
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigurationStressTest.class.getName());
+    private static final long DURATION_MILLIS = Long.getLong("jbeans.stress.millis", 2000);
+    private static final int READERS = 4;
+    private static final int PUTTERS = 2;
+    private static final int FILLER = 200;
+    private static final String FIXED = "stress.fixed";
+    private static final String PAIR_A = "stress.pair.a";
+    private static final String PAIR_B = "stress.pair.b";
+    private static final String DELETED = "stress.deleted";
+    private static final String PUT = "stress.put.";
+
+    /*
+     * Fields to take injection points from.
+     */
+    static final class Beans {
+
+        @Configurable(FIXED)
+        String fixed;
+        @Configurable(PAIR_A)
+        long pair;
+    }
+
+    Path dir;
+    Path file;
+    JbeansConfigurationProvider provider;
+    Configurator configurator;
+
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+    final LatencyHistogram readLatency = new LatencyHistogram();
+    final LongAdder writes = new LongAdder();
+    final LongAdder reloads = new LongAdder();
+
+    @Before
+    public void setUp() throws IOException, ConfigurationException {
+        dir = Files.createTempDirectory("jbeans-stress");
+        file = dir.resolve("stress.properties");
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.ISO_8859_1)) {
+            out.write("# stress test\n" + FIXED + "=fixed\n" + PAIR_A + "=0\n" + PAIR_B + "=0\n");
+            for (int i = 0; i < FILLER; i++) {
+                out.write("stress.filler" + i + "=" + i + "\n");
+            }
+        }
+        System.setProperty("someKey", "MYPAS_WORD");
+        Configurator.JASYPT_PW_ENV_PROPERTY_VALUE = "someKey";
+        Configurator.APPLICATION_NAME = "jbeans-stress";
+        Configurator.EXTERNAL_PROPS_FILE = "stress.properties";
+        Configurator.APP_CONFIG_ADMIN_ENABLED = true;
+        Configurator.WRITE_DELAY_MILLIS = 2;
+        JbeansConfigurationProvider.APP_CONFIG_DIR = dir.toString();
+
+        provider = new JbeansConfigurationProvider();
+        provider.initializeProps();
+        configurator = new Configurator();
+        configurator.configuration = new ConfigurationStore();
+        configurator.configurationProvider = instanceOf(provider);
+        configurator.configuration.addListener(configurator::invalidateTypedValues);
+        configurator.mergeWithCustomConfiguration();
+        configurator.configuration.addListener(configurator::configurationPublished);
+        configurator.markReady();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (provider != null) {
+            provider.close();
+        }
+        Configurator.APP_CONFIG_ADMIN_ENABLED = false;
+        Configurator.WRITE_DELAY_MILLIS = 50;
+        Configurator.jbeansConfigProvider = null;
+        JbeansConfigurationProvider.APP_CONFIG_DIR = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                Files.delete(f);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Readers never see a torn snapshot, a missing property that was never
+     * changed or an older version than they saw before, and no update is
+     * lost, in memory or in the properties file.
+     */
+    @Test
+    public void testReadsAndWritesStayConsistent() throws Exception {
+        final InjectionPoint fixed = injectionPoint("fixed");
+        final InjectionPoint pair = injectionPoint("pair");
+        final UriInfo uriInfo = uriInfo();
+        final AtomicLongArray lastPut = new AtomicLongArray(PUTTERS);
+        final long[] lastPair = new long[1];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int r = 0; r < READERS; r++) {
+            threads.add(worker("reader-" + r, start, () -> {
+                long lastVersion = 0;
+                for (int n = 0; running.get(); n++) {
+                    long begin = System.nanoTime();
+                    String value = configurator.getString(fixed);
+                    long pairValue = configurator.getLong(pair);
+                    String filler = configurator.getEntry("stress.filler" + (n % FILLER));
+                    ConfigurationSnapshot snapshot = configurator.getSnapshot();
+                    readLatency.record(System.nanoTime() - begin);
+
+                    check("fixed".equals(value), FIXED + " was " + value);
+                    check(pairValue >= 0, PAIR_A + " was " + pairValue);
+                    check(filler != null, "stress.filler" + (n % FILLER) + " was missing");
+                    check(Objects.equals(snapshot.get(PAIR_A), snapshot.get(PAIR_B)),
+                            "torn snapshot " + snapshot.getVersion() + ": " + snapshot.get(PAIR_A) + " / " + snapshot.get(PAIR_B));
+                    check(snapshot.getVersion() >= lastVersion, "version " + snapshot.getVersion() + " after " + lastVersion);
+                    lastVersion = snapshot.getVersion();
+                    if (n % 64 == 0) {
+                        int size = 0;
+                        for (Map.Entry<String, String> entry : provider.getConfiguration().entrySet()) {
+                            size += entry.getValue().length();
+                        }
+                        check(size > 0, "empty configuration");
+                    }
+                }
+            }));
+        }
+        for (int p = 0; p < PUTTERS; p++) {
+            final int putter = p;
+            threads.add(worker("put-" + p, start, () -> {
+                for (long i = 1; running.get(); i++) {
+                    Response response = configurator.addEntry(PUT + putter, Long.toString(i), uriInfo);
+                    check(response.getStatus() == 201 || response.getStatus() == 204, "PUT answered " + response.getStatus());
+                    lastPut.set(putter, i);
+                    writes.increment();
+                }
+            }));
+        }
+        threads.add(worker("delete", start, () -> {
+            while (running.get()) {
+                configurator.addEntry(DELETED, "soon", uriInfo);
+                Response response = configurator.deleteEntry(DELETED);
+                check(response.getStatus() == 204, "DELETE answered " + response.getStatus());
+                writes.add(2);
+            }
+        }));
+        threads.add(worker("patch", start, () -> {
+            for (long i = 1; running.get(); i++) {
+                JsonObject patch = Json.createObjectBuilder()
+                        .add("set", Json.createObjectBuilder().add(PAIR_A, Long.toString(i)).add(PAIR_B, Long.toString(i)))
+                        .build();
+                Response response = configurator.patchEntries(patch, null);
+                check(response.getStatus() == 200, "PATCH answered " + response.getStatus());
+                lastPair[0] = i;
+                writes.increment();
+            }
+        }));
+        threads.add(worker("reload", start, () -> {
+            for (int n = 0; running.get(); n++) {
+                if (n % 2 == 0) {
+                    // the file watcher's reload
+                    provider.refresh();
+                    configurator.mergeWithCustomConfiguration();
+                } else {
+                    configurator.refreshConfiguration();
+                }
+                reloads.increment();
+            }
+        }));
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(DURATION_MILLIS);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join(30000);
+            assertFalse(thread.getName() + " did not stop", thread.isAlive());
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        Map<String, Object> latency = readLatency.toMap();
+        LOGGER.info(String.format("reads/s= %.0f, writes/s= %.0f, reloads/s= %.0f, read latency= %s",
+                readLatency.getCount() / seconds, writes.sum() / seconds, reloads.sum() / seconds, latency));
+
+        if (!failures.isEmpty()) {
+            AssertionError error = new AssertionError(failures.size() + " failures, the first: " + failures.peek());
+            error.initCause(failures.peek());
+            throw error;
+        }
+
+        provider.close();
+        Map<String, String> written = PropertiesFormat.load(file);
+        ConfigurationSnapshot current = configurator.getSnapshot();
+        for (int p = 0; p < PUTTERS; p++) {
+            assertEquals("file", Long.toString(lastPut.get(p)), written.get(PUT + p));
+            assertEquals("memory", Long.toString(lastPut.get(p)), current.get(PUT + p));
+        }
+        assertEquals("file", Long.toString(lastPair[0]), written.get(PAIR_A));
+        assertEquals("file", Long.toString(lastPair[0]), written.get(PAIR_B));
+        assertEquals("memory", Long.toString(lastPair[0]), current.get(PAIR_A));
+        assertNull("file", written.get(DELETED));
+        assertNull("memory", current.get(DELETED));
+        assertEquals(FILLER + 3 + PUTTERS, written.size());
+    }
+
+    interface Task {
+
+        void run() throws Exception;
+    }
+
+    private Thread worker(String name, final CountDownLatch start, final Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                start.await();
+                task.run();
+            } catch (Throwable ex) {
+                failures.add(ex);
+                running.set(false);
+            }
+        }, "jbeans-stress-" + name);
+        thread.start();
+        return thread;
+    }
+
+    private void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Instance<ConfigurationProvider> instanceOf(final ConfigurationProvider provider) {
+        return (Instance<ConfigurationProvider>) Proxy.newProxyInstance(ConfigurationStressTest.class.getClassLoader(),
+                new Class<?>[]{Instance.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "iterator":
+                            return Collections.singletonList(provider).iterator();
+                        case "get":
+                            return provider;
+                        case "isUnsatisfied":
+                        case "isAmbiguous":
+                            return false;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static InjectionPoint injectionPoint(String name) throws NoSuchFieldException {
+        final Field field = Beans.class.getDeclaredField(name);
+        final AnnotatedField<?> annotated = (AnnotatedField<?>) Proxy.newProxyInstance(ConfigurationStressTest.class.getClassLoader(),
+                new Class<?>[]{AnnotatedField.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAnnotation":
+                            return field.getAnnotation(((Class<?>) args[0]).asSubclass(Annotation.class));
+                        case "getJavaMember":
+                            return field;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        return (InjectionPoint) Proxy.newProxyInstance(ConfigurationStressTest.class.getClassLoader(),
+                new Class<?>[]{InjectionPoint.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAnnotated":
+                            return annotated;
+                        case "getMember":
+                            return field;
+                        case "getType":
+                            return field.getGenericType();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static UriInfo uriInfo() {
+        return (UriInfo) Proxy.newProxyInstance(ConfigurationStressTest.class.getClassLoader(),
+                new Class<?>[]{UriInfo.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getAbsolutePathBuilder")) {
+                        return UriBuilder.fromPath("/configuration/{key}");
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,281 @@
+package org.jbeans.config;
+
+import java.io.File;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.enterprise.event.Event;
+import javax.enterprise.event.NotificationOptions;
+import javax.enterprise.event.Reception;
+import javax.enterprise.event.TransactionPhase;
+import javax.enterprise.inject.spi.ObserverMethod;
+import javax.enterprise.util.TypeLiteral;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class ConfiguratorTest {
+
+    Configurator configurator;
+
+    /*
+     * Records the events fired and the qualifiers they were fired with.
+     */
+    static class RecordingEvent implements Event<ConfigChangedEvent> {
+
+        final List<ConfigChangedEvent> fired = new CopyOnWriteArrayList<>();
+        final List<Annotation> qualifiers = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void fire(ConfigChangedEvent event) {
+            fired.add(event);
+        }
+
+        @Override
+        public <U extends ConfigChangedEvent> CompletionStage<U> fireAsync(U event) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <U extends ConfigChangedEvent> CompletionStage<U> fireAsync(U event, NotificationOptions options) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Event<ConfigChangedEvent> select(Annotation... selected) {
+            qualifiers.addAll(Arrays.asList(selected));
+            return this;
+        }
+
+        @Override
+        public <U extends ConfigChangedEvent> Event<U> select(Class<U> subtype, Annotation... selected) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <U extends ConfigChangedEvent> Event<U> select(TypeLiteral<U> subtype, Annotation... selected) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /*
+     * An observer of one namespace, as the container would find it.
+     */
+    static class NamespaceObserver implements ObserverMethod<ConfigChangedEvent> {
+
+        final List<ConfigChangedEvent> notified = new CopyOnWriteArrayList<>();
+        final String namespace;
+
+        NamespaceObserver(String namespace) {
+            this.namespace = namespace;
+        }
+
+        @Override
+        public Class<?> getBeanClass() {
+            return ConfiguratorTest.class;
+        }
+
+        @Override
+        public Type getObservedType() {
+            return ConfigChangedEvent.class;
+        }
+
+        @Override
+        public Set<Annotation> getObservedQualifiers() {
+            return Collections.<Annotation>singleton(new ConfigPrefix.Literal(namespace));
+        }
+
+        @Override
+        public Reception getReception() {
+            return Reception.ALWAYS;
+        }
+
+        @Override
+        public TransactionPhase getTransactionPhase() {
+            return TransactionPhase.IN_PROGRESS;
+        }
+
+        @Override
+        public void notify(ConfigChangedEvent event) {
+            notified.add(event);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        configurator = new Configurator();
+        configurator.configuration = new ConfigurationStore();
+    }
+
+    @After
+    public void tearDown() {
+        Configurator.STARTUP_MODE = "sync";
+        Configurator.APP_CONFIG_ADMIN_ENABLED = false;
+        Configurator.jbeansConfigProvider = null;
+        JbeansConfigurationProvider.APP_CONFIG_DIR = null;
+    }
+
+    /**
+     * The readiness gate opens when the providers are loaded.
+     */
+    @Test
+    public void testAwaitReady() throws InterruptedException {
+        assertFalse(configurator.isReady());
+        assertFalse(configurator.awaitReady(50));
+
+        Thread loader = new Thread(() -> {
+            configurator.configuration.put("jbeans.demo.key", "loaded");
+            configurator.markReady();
+        });
+        loader.start();
+
+        assertTrue(configurator.awaitReady(5000));
+        assertTrue(configurator.isReady());
+        assertEquals("loaded", configurator.configuration.current().get("jbeans.demo.key"));
+        loader.join();
+    }
+
+    /**
+     * Handles created before an async startup has loaded the providers
+     * decrypt the values the providers load.
+     */
+    @Test
+    public void testHandlesCreatedBeforeAsyncStartupDecrypt() throws Exception {
+        System.setProperty("someKey", "MYPAS_WORD");
+        JbeansConfigurationProvider.APP_CONFIG_DIR = System.getProperty("user.dir") + File.separator + "src"
+                + File.separator + "test" + File.separator + "resources";
+        final JbeansConfigurationProvider provider = new JbeansConfigurationProvider();
+        final CountDownLatch loaded = new CountDownLatch(1);
+        configurator.configurationProvider = ConfigurationStressTest.instanceOf(() -> {
+            try {
+                loaded.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return provider.getRawConfiguration();
+        });
+        Configurator.STARTUP_MODE = "async";
+        configurator.fetchConfiguration();
+        try {
+            provider.initializeProps();
+            String key = "jbeans.config.demo.test.db.password";
+            ConfigValue<String> password = configurator.getConfigValue(key, String.class);
+            ConfigView demo = configurator.getConfigView("jbeans.config.demo.test");
+            assertNull(password.get());
+            assertFalse(configurator.isReady());
+
+            RecordingEvent events = new RecordingEvent();
+            configurator.configChanged = events;
+            loaded.countDown();
+            assertTrue(configurator.awaitReady(5000));
+            assertEquals("mySecretPassword", password.get());
+            assertEquals("mySecretPassword", demo.get("db.password"));
+            assertEquals("mySecretPassword", demo.asMap().get("db.password"));
+            assertTrue(events.fired.isEmpty());
+
+            configurator.configuration.put("jbeans.demo.key", "changed");
+            assertEquals(1, events.fired.size());
+        } finally {
+            loaded.countDown();
+            configurator.stopFileWatcher();
+        }
+    }
+
+    /**
+     * A change fires one event with all its keys, and namespace observers
+     * are told about the keys of their namespace only.
+     */
+    @Test
+    public void testOneEventPerChange() {
+        RecordingEvent events = new RecordingEvent();
+        NamespaceObserver db = new NamespaceObserver("a.b");
+        NamespaceObserver other = new NamespaceObserver("x");
+        configurator.configChanged = events;
+        configurator.prefixObservers = new ConfigPrefixObservers();
+        configurator.prefixObservers.add(db.namespace, db);
+        configurator.prefixObservers.add(other.namespace, other);
+        configurator.configuration.addListener(configurator::configurationPublished);
+
+        configurator.configuration.update(draft -> {
+            draft.put("a.b.c", "1");
+            draft.put("y", "2");
+        });
+
+        assertEquals(1, events.fired.size());
+        assertEquals("", events.fired.get(0).getPrefix());
+        assertEquals(2, events.fired.get(0).getKeys().size());
+        assertEquals(Collections.singletonList(new ConfigPrefix.Literal("")), events.qualifiers);
+        assertEquals(1, db.notified.size());
+        assertEquals(Collections.singleton("a.b.c"), db.notified.get(0).getKeys());
+        assertEquals("a.b", db.notified.get(0).getPrefix());
+        assertTrue(other.notified.isEmpty());
+    }
+
+    /**
+     * A patch that cannot be written to the properties file changes nothing.
+     */
+    @Test
+    public void testPatchIsNotPublishedIfTheWriteFails() throws Exception {
+        Path dir = Files.createTempDirectory("jbeans-patch");
+        Path file = dir.resolve("environment.properties");
+        Files.write(file, Arrays.asList("db.host=db1", "db.port=5432"), StandardCharsets.ISO_8859_1);
+        Configurator.APPLICATION_NAME = "jee-config-demo";
+        Configurator.EXTERNAL_PROPS_FILE = "environment.properties";
+        Configurator.APP_CONFIG_ADMIN_ENABLED = true;
+        JbeansConfigurationProvider.APP_CONFIG_DIR = dir.toString();
+        JbeansConfigurationProvider provider = new JbeansConfigurationProvider();
+        try {
+            provider.initializeProps();
+            configurator.configurationProvider = ConfigurationStressTest.instanceOf(provider);
+            configurator.mergeWithCustomConfiguration();
+            final List<ConfigurationDelta> published = new ArrayList<>();
+            configurator.configuration.addListener((previous, current, delta) -> published.add(delta));
+            long version = configurator.configuration.getVersion();
+            JsonObject patch = Json.createObjectBuilder()
+                    .add("set", Json.createObjectBuilder().add("db.host", "db2"))
+                    .add("remove", Json.createArrayBuilder().add("db.port"))
+                    .build();
+
+            assertEquals(412, configurator.patchEntries(patch, "W/\"" + version + "\"").getStatus());
+            assertEquals(version, configurator.configuration.getVersion());
+
+            Files.delete(file);
+            assertEquals(500, configurator.patchEntries(patch, Long.toString(version)).getStatus());
+            assertEquals(version, configurator.configuration.getVersion());
+            assertTrue(published.isEmpty());
+            assertEquals("db1", configurator.configuration.current().get("db.host"));
+            assertEquals("5432", provider.getConfiguration().get("db.port"));
+
+            Files.write(file, Arrays.asList("db.host=db1", "db.port=5432"), StandardCharsets.ISO_8859_1);
+            assertEquals(200, configurator.patchEntries(patch, Long.toString(version)).getStatus());
+            assertEquals(version + 1, configurator.configuration.getVersion());
+            assertEquals(1, published.size());
+            assertEquals("db2", configurator.configuration.current().get("db.host"));
+            assertNull(provider.getConfiguration().get("db.port"));
+            assertEquals("db2", PropertiesFormat.load(file).get("db.host"));
+        } finally {
+            provider.close();
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.jbeans.config;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class FeatureFlagsTest {
+
+    ConfigurationStore store;
+    FeatureFlags features;
+
+    @Before
+    public void setUp() {
+        store = new ConfigurationStore();
+        Map<String, String> values = new HashMap<>();
+        values.put("feature.new-checkout.rollout", "25");
+        values.put("feature.new-checkout.allow", "tenant-a, tenant-b");
+        values.put("feature.new-checkout.deny", "tenant-c");
+        values.put("feature.dark-mode.enabled", "true");
+        values.put("jbeans.demo.int", "1");
+        store.replace(values);
+        features = new FeatureFlags(store);
+    }
+
+    /**
+     * A rollout turns the flag on for about its percentage of keys, the same
+     * keys every time, and raising it only adds keys.
+     */
+    @Test
+    public void testRolloutIsStable() {
+        int on = 0;
+        boolean[] enabled = new boolean[20000];
+        for (int i = 0; i < enabled.length; i++) {
+            enabled[i] = features.isEnabled("new-checkout", "user-" + i);
+            if (enabled[i]) {
+                on++;
+            }
+        }
+        assertEquals(0.25, on / (double) enabled.length, 0.02);
+        assertFalse(features.isEnabled("new-checkout"));
+
+        store.put("feature.new-checkout.rollout", "50");
+        int kept = 0;
+        on = 0;
+        for (int i = 0; i < enabled.length; i++) {
+            boolean now = features.isEnabled("new-checkout", "user-" + i);
+            if (now) {
+                on++;
+            }
+            if (enabled[i]) {
+                assertTrue(now);
+                kept++;
+            }
+        }
+        assertTrue(kept > 0);
+        assertEquals(0.5, on / (double) enabled.length, 0.02);
+        assertEquals(FeatureFlags.bucket("new-checkout".hashCode(), "user-1"), FeatureFlags.bucket("new-checkout".hashCode(), "user-1"));
+    }
+
+    /**
+     * Deny beats allow, allow beats the rollout, kill switches beat both.
+     */
+    @Test
+    public void testListsAndKillSwitches() {
+        store.put("feature.new-checkout.rollout", "0");
+        assertTrue(features.isEnabled("new-checkout", "tenant-a"));
+        assertFalse(features.isEnabled("new-checkout", "tenant-c"));
+        assertFalse(features.isEnabled("new-checkout", "tenant-d"));
+        assertTrue(features.isEnabled("dark-mode"));
+        assertTrue(features.isEnabled("dark-mode", "tenant-c"));
+        assertFalse(features.isEnabled("unknown", "tenant-a"));
+
+        store.put("feature.new-checkout.enabled", "false");
+        assertFalse(features.isEnabled("new-checkout", "tenant-a"));
+
+        store.put("feature.enabled", "false");
+        assertFalse(features.isEnabled("dark-mode"));
+        store.remove("feature.enabled");
+        assertTrue(features.isEnabled("dark-mode"));
+
+        store.put("feature.dark-mode.rollout", "lots");
+        assertFalse(features.isEnabled("dark-mode", "tenant-a"));
+    }
+
+    /**
+     * Rules are only compiled again when a feature property changes, and an
+     * evaluation allocates nothing.
+     */
+    @Test
+    public void testRulesAreSharedAndEvaluationDoesNotAllocate() {
+        FeatureFlags.Rules rules = features.current();
+        store.put("jbeans.demo.int", "2");
+        assertSame(rules, features.current());
+        store.put("feature.dark-mode.rollout", "10");
+        assertNotSame(rules, features.current());
+        assertEquals(store.getVersion(), features.current().version);
+
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        String[] keys = new String[64];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "user-" + i;
+            keys[i].hashCode();
+        }
+        int on = 0;
+        for (int i = 0; i < 200000; i++) {
+            on += features.isEnabled("new-checkout", keys[i & 63]) ? 1 : 0;
+        }
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 200000; i++) {
+            on += features.isEnabled("new-checkout", keys[i & 63]) ? 1 : 0;
+        }
+        long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+        assertTrue(on > 0);
+        assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+    }
+}
@@ -0,0 +1,101 @@
+package org.jbeans.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class InterpolationTest {
+
+    ConfigurationStore store;
+    final List<ConfigurationDelta> deltas = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        System.setProperty("jbeans.test.schema", "app");
+        store = new ConfigurationStore();
+        Map<String, String> values = new HashMap<>();
+        values.put("db.host", "db1");
+        values.put("db.url", "jdbc:postgresql://${db.host}:${db.port:5432}/${jbeans.test.schema}");
+        values.put("db.pool.url", "${db.url}?pool=true");
+        values.put("app.home", "/opt/app");
+        values.put("app.logs", "${app.home}/logs");
+        store.replace(values);
+        store.addListener((previous, current, delta) -> deltas.add(delta));
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("jbeans.test.schema");
+    }
+
+    /**
+     * Placeholders are replaced by properties, system properties and
+     * defaults, also through other properties.
+     */
+    @Test
+    public void testPlaceholdersAreResolved() {
+        ConfigurationSnapshot snapshot = store.current();
+        assertEquals("jdbc:postgresql://db1:5432/app", snapshot.get("db.url"));
+        assertEquals("jdbc:postgresql://db1:5432/app?pool=true", snapshot.get("db.pool.url"));
+        assertEquals("/opt/app/logs", snapshot.asMap().get("app.logs"));
+        assertEquals("jdbc:postgresql://db1:5432/app?pool=true", snapshot.getByPrefix("db.pool").get("db.pool.url"));
+        assertEquals("${db.url}?pool=true", snapshot.getRaw("db.pool.url"));
+        assertEquals("${db.url}?pool=true", snapshot.asRawMap().get("db.pool.url"));
+    }
+
+    /**
+     * A change resolves the keys that depend on the changed key again, and
+     * only those.
+     */
+    @Test
+    public void testOnlyDependentsAreResolvedAgain() {
+        ConfigurationSnapshot before = store.current();
+        store.put("db.host", "db2");
+
+        assertEquals(1, deltas.size());
+        assertEquals(new HashSet<>(Arrays.asList("db.host", "db.url", "db.pool.url")), deltas.get(0).getKeys());
+        assertEquals("jdbc:postgresql://db2:5432/app?pool=true", store.current().get("db.pool.url"));
+        assertEquals("/opt/app/logs", store.current().get("app.logs"));
+
+        store.put("db.port", "6432");
+        assertEquals("jdbc:postgresql://db2:6432/app", store.current().get("db.url"));
+
+        ConfigurationSnapshot resolved = store.current();
+        store.put("app.name", "demo");
+        assertSame(resolved.getInterpolation(), store.current().getInterpolation());
+        assertNotSame(before.getInterpolation(), resolved.getInterpolation());
+    }
+
+    /**
+     * Keys that refer to each other are left unresolved.
+     */
+    @Test
+    public void testCycleIsNotResolved() {
+        Map<String, String> changes = new HashMap<>();
+        changes.put("cycle.a", "${cycle.b}");
+        changes.put("cycle.b", "${cycle.a}");
+        changes.put("cycle.c", "${cycle.a}-c");
+        store.putAll(changes);
+
+        ConfigurationSnapshot snapshot = store.current();
+        assertEquals("${cycle.b}", snapshot.get("cycle.a"));
+        assertEquals("${cycle.a}", snapshot.get("cycle.b"));
+        assertEquals("${cycle.b}-c", snapshot.get("cycle.c"));
+
+        store.put("cycle.b", "b");
+        assertEquals("b", store.current().get("cycle.a"));
+        assertEquals("b-c", store.current().get("cycle.c"));
+    }
+}
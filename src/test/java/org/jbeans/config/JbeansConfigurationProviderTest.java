@@ -1,6 +1,17 @@
 package org.jbeans.config;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
@@ -61,7 +72,7 @@ public class JbeansConfigurationProviderTest {
 
         configurator.APPLICATION_NAME = "jee-config-demo";
         configurator.EXTERNAL_PROPS_FILE = "environment.properties";
-        configurator.configuration = new HashMap<>();
+        configurator.configuration = new ConfigurationStore();
 
         configurator.initializeAppProperties();
         jbeansConfigProvider = new JbeansConfigurationProvider();
@@ -71,6 +82,8 @@ public class JbeansConfigurationProviderTest {
 
     @After
     public void tearDown() {
+        Configurator.DECRYPT_MODE = "lazy";
+        Configurator.STORE_MODE = "heap";
     }
 
     /**
@@ -87,6 +100,75 @@ public class JbeansConfigurationProviderTest {
         assertTrue(unEncryptedPassword.equals("mySecretPassword"));
     }
 
+    /**
+     * Encrypted properties are kept as ciphertext and decrypted on first read.
+     */
+    @Test
+    public void testEncryptedPropertyIsDecryptedLazily() throws Exception {
+        jbeansConfigProvider.initializeProps();
+        String key = "jbeans.config.demo.test.db.password";
+        assertTrue(jbeansConfigProvider.getRawConfiguration().get(key).startsWith("ENC("));
+        assertEquals(0, jbeansConfigProvider.getSecretResolver().size());
+
+        assertEquals("mySecretPassword", jbeansConfigProvider.getString(key, null));
+        assertEquals(1, jbeansConfigProvider.getSecretResolver().size());
+    }
+
+    /**
+     * In parallel mode every encrypted property is decrypted when loaded.
+     */
+    @Test
+    public void testParallelDecryptOnLoad() throws Exception {
+        Configurator.DECRYPT_MODE = "parallel";
+        jbeansConfigProvider = new JbeansConfigurationProvider();
+        jbeansConfigProvider.initializeProps();
+        assertEquals(1, jbeansConfigProvider.getSecretResolver().size());
+        assertEquals("mySecretPassword", jbeansConfigProvider.getString("jbeans.config.demo.test.db.password", null));
+    }
+
+    /**
+     * Test of decryptAll method, of class SecretResolver. Every key that
+     * cannot be decrypted is reported.
+     */
+    @Test
+    public void testDecryptAllReportsEveryFailure() throws Exception {
+        jbeansConfigProvider.initializeProps();
+        HashMap<String, String> values = new HashMap<>(jbeansConfigProvider.getRawConfiguration());
+        values.put("jbeans.bad.one", "ENC(bm90LWNpcGhlcnRleHQ=)");
+        values.put("jbeans.bad.two", "ENC(YWxzby1ub3QtY2lwaGVydGV4dA==)");
+        try {
+            jbeansConfigProvider.getSecretResolver().decryptAll(values, 4);
+            fail("Expected ConfigurationException");
+        } catch (ConfigurationException ex) {
+            assertTrue(ex.getMessage().contains("jbeans.bad.one"));
+            assertTrue(ex.getMessage().contains("jbeans.bad.two"));
+        }
+        assertEquals("mySecretPassword", jbeansConfigProvider.getString("jbeans.config.demo.test.db.password", null));
+    }
+
+    /**
+     * Test of decryptAll method, of class SecretResolver. The values are
+     * decrypted on the given executor, a task per thread, and the executor is
+     * left running.
+     */
+    @Test
+    public void testDecryptAllOnTheGivenExecutor() throws Exception {
+        jbeansConfigProvider.initializeProps();
+        HashMap<String, String> values = new HashMap<>(jbeansConfigProvider.getRawConfiguration());
+        String ciphertext = values.get("jbeans.config.demo.test.db.password");
+        values.put("jbeans.copy.one", ciphertext);
+        values.put("jbeans.copy.two", ciphertext);
+        ThreadPoolExecutor managed = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        try {
+            assertEquals(3, jbeansConfigProvider.getSecretResolver().decryptAll(values, 2, managed));
+            assertEquals(2, managed.getTaskCount());
+            assertFalse(managed.isShutdown());
+            assertEquals("mySecretPassword", jbeansConfigProvider.getSecretResolver().resolve("jbeans.copy.two", ciphertext));
+        } finally {
+            managed.shutdownNow();
+        }
+    }
+
     /**
      * Test of getString method, of class JbeansConfigurationProvider.
      */
@@ -130,6 +212,158 @@ public class JbeansConfigurationProviderTest {
         assertTrue(jbeansConfigProvider.getConfiguration().get(propName).equals(prpValue1));
     }
 
+    /**
+     * Profile files override the properties file in order, writes go to the
+     * file that sets the property and deletes remove it from all of them.
+     */
+    @Test
+    public void testProfileOverlays() throws Exception {
+        Path dir = Files.createTempDirectory("jbeans-profiles");
+        System.setProperty(APP_NAME + ".profiles", "dev, missing");
+        System.setProperty(APP_NAME + ".node", "node1");
+        try {
+            Files.write(dir.resolve("environment.properties"), Arrays.asList(
+                    "db.host=prod-db", "db.port=5432", "mail.from=ops@jbeans.org"), StandardCharsets.ISO_8859_1);
+            Files.write(dir.resolve("environment-dev.properties"), Arrays.asList(
+                    "db.host=dev-db", "mail.from=dev@jbeans.org"), StandardCharsets.ISO_8859_1);
+            Files.write(dir.resolve("environment-node1.properties"), Arrays.asList(
+                    "db.host=node1-db"), StandardCharsets.ISO_8859_1);
+            JbeansConfigurationProvider.APP_CONFIG_DIR = dir.toString();
+            jbeansConfigProvider.initializeProps();
+            assertEquals(4, JbeansConfigurationProvider.getPropertiesFiles().size());
+
+            Map<String, String> config = jbeansConfigProvider.getConfiguration();
+            assertEquals("node1-db", config.get("db.host"));
+            assertEquals("5432", config.get("db.port"));
+            assertEquals("dev@jbeans.org", config.get("mail.from"));
+
+            jbeansConfigProvider.saveOrUpdateProperties("db.host", "node1-db2");
+            jbeansConfigProvider.saveOrUpdateProperties("db.user", "app");
+            jbeansConfigProvider.deleteProperty("mail.from");
+            assertEquals("node1-db2", PropertiesFormat.load(dir.resolve("environment-node1.properties")).get("db.host"));
+            assertEquals("dev-db", PropertiesFormat.load(dir.resolve("environment-dev.properties")).get("db.host"));
+            assertFalse(PropertiesFormat.load(dir.resolve("environment-dev.properties")).containsKey("mail.from"));
+            Map<String, String> base = PropertiesFormat.load(dir.resolve("environment.properties"));
+            assertEquals("app", base.get("db.user"));
+            assertEquals("prod-db", base.get("db.host"));
+            assertFalse(base.containsKey("mail.from"));
+
+            jbeansConfigProvider.refresh();
+            assertEquals("node1-db2", jbeansConfigProvider.getConfiguration().get("db.host"));
+            assertNull(jbeansConfigProvider.getConfiguration().get("mail.from"));
+        } finally {
+            jbeansConfigProvider.close();
+            System.clearProperty(APP_NAME + ".profiles");
+            System.clearProperty(APP_NAME + ".node");
+            JbeansConfigurationProvider.APP_CONFIG_DIR = CONFIG_DIR;
+            delete(dir);
+        }
+    }
+
+    /**
+     * Changes made through the provider are published to the other nodes,
+     * and theirs are applied to the properties file.
+     */
+    @Test
+    public void testReplicatedChanges() throws Exception {
+        Path dir = Files.createTempDirectory("jbeans-replicated");
+        Path shared = Files.createDirectory(dir.resolve("shared"));
+        ReplicatorTest.Node peer = null;
+        Replicator replicator = null;
+        try {
+            Files.write(dir.resolve("environment.properties"), Arrays.asList("db.host=db1", "db.port=5432"),
+                    StandardCharsets.ISO_8859_1);
+            JbeansConfigurationProvider.APP_CONFIG_DIR = dir.toString();
+            jbeansConfigProvider.initializeProps();
+            final Replicator local = new Replicator("node-a", new SharedDirectoryTransport(shared), 60000,
+                    mutations -> {
+                        try {
+                            jbeansConfigProvider.applyReplicated(mutations);
+                        } catch (ConfigurationException ex) {
+                            throw new IllegalStateException(ex);
+                        }
+                    });
+            replicator = local;
+            jbeansConfigProvider.setReplicator(local);
+            local.start();
+            peer = new ReplicatorTest.Node("node-b", shared, 1000);
+
+            jbeansConfigProvider.saveOrUpdateProperties("db.host", "db2");
+            local.pollNow();
+            peer.replicator.pollNow();
+            assertEquals("db2", peer.values.get("db.host"));
+
+            peer.put("db.port", "6432");
+            peer.remove("db.host");
+            peer.replicator.pollNow();
+            local.pollNow();
+            assertEquals("6432", jbeansConfigProvider.getConfiguration().get("db.port"));
+            Map<String, String> file = PropertiesFormat.load(dir.resolve("environment.properties"));
+            assertEquals("6432", file.get("db.port"));
+            assertFalse(file.containsKey("db.host"));
+        } finally {
+            jbeansConfigProvider.setReplicator(null);
+            if (replicator != null) {
+                replicator.close();
+            }
+            if (peer != null) {
+                peer.replicator.close();
+            }
+            jbeansConfigProvider.close();
+            JbeansConfigurationProvider.APP_CONFIG_DIR = CONFIG_DIR;
+            delete(dir);
+        }
+    }
+
+    /**
+     * In offheap mode changes are folded into a new off heap table, the
+     * provider never keeps its properties on the heap.
+     */
+    @Test
+    public void testOffHeapStoreAfterUpdates() throws Exception {
+        Path dir = Files.createTempDirectory("jbeans-offheap");
+        try {
+            Files.write(dir.resolve("environment.properties"), Arrays.asList("db.host=db1", "db.port=5432", "db.user=sa"),
+                    StandardCharsets.ISO_8859_1);
+            JbeansConfigurationProvider.APP_CONFIG_DIR = dir.toString();
+            Configurator.STORE_MODE = Configurator.STORE_OFF_HEAP;
+            jbeansConfigProvider.initializeProps();
+            ConfigurationLayer table = jbeansConfigProvider.configuration.current().getLayers().get(0);
+
+            jbeansConfigProvider.saveOrUpdateProperties("db.host", "db2");
+            jbeansConfigProvider.deleteProperty("db.user");
+            ConfigurationSnapshot snapshot = jbeansConfigProvider.configuration.current();
+            assertEquals(2, snapshot.getLayers().size());
+            assertEquals(ConfigurationLayer.OVERRIDES, snapshot.getLayers().get(0).getName());
+            assertSame(table, snapshot.getLayers().get(1));
+            assertEquals(3, snapshot.size());
+            assertEquals(Arrays.asList("db.host", "db.port"), new ArrayList<>(snapshot.getByPrefix("db").keySet()));
+            Map<String, String> raw = new HashMap<>(jbeansConfigProvider.getRawConfiguration());
+            assertEquals("db2", raw.get("db.host"));
+            assertFalse(raw.containsKey("db.user"));
+            assertEquals(3, raw.size());
+            assertEquals("db2", jbeansConfigProvider.getConfiguration().get("db.host"));
+            assertFalse(jbeansConfigProvider.getConfiguration().containsKey("db.user"));
+        } finally {
+            jbeansConfigProvider.close();
+            JbeansConfigurationProvider.APP_CONFIG_DIR = CONFIG_DIR;
+            delete(dir);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (Files.isDirectory(file)) {
+                    delete(file);
+                } else {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.delete(dir);
+    }
+
     /**
      * Test of deleteProperty method, of class JbeansConfigurationProvider.
      */
@@ -141,7 +375,7 @@ public class JbeansConfigurationProviderTest {
         JbeansConfigurationProvider.APP_CONFIG_DIR = "some/broken/path/dir";
         configurator.APPLICATION_NAME = "jee-config-demo";
         configurator.EXTERNAL_PROPS_FILE = "environment.properties";
-        configurator.configuration = new HashMap<>();
+        configurator.configuration = new ConfigurationStore();
         // non ConfigurationProvider init, bypassing fetchConfiguration for unit testing without app server container and CDI.
         configurator.initializeAppProperties();
         jbeansConfigProvider.initializeProps();
@@ -0,0 +1,71 @@
+package org.jbeans.config;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class MissTrackerTest {
+
+    /**
+     * Concurrent misses are all counted.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testConcurrentMisses() throws InterruptedException {
+        final MissTracker tracker = new MissTracker();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int i = 0; i < 1000; i++) {
+                    tracker.record("jbeans.demo.hot", "org.example.Service.hot");
+                    tracker.record("jbeans.demo.cold" + (i % 10), null);
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Map<String, Object> report = tracker.report(new ConfigurationSnapshot(1, Collections.singletonMap("jbeans.demo.cold0", "configured")));
+        assertEquals(11, report.get("tracked"));
+        List<Map<String, Object>> misses = (List<Map<String, Object>>) report.get("misses");
+        Map<String, Object> hot = misses.get(0);
+        assertEquals("jbeans.demo.hot", hot.get("key"));
+        assertEquals(8000L, hot.get("count"));
+        assertEquals("org.example.Service.hot", hot.get("injectionPoint"));
+        assertEquals(Boolean.FALSE, hot.get("configured"));
+        assertEquals("jbeans.demo.cold0", misses.get(1).get("key"));
+        assertEquals(800L, misses.get(1).get("count"));
+        assertEquals(Boolean.TRUE, misses.get(1).get("configured"));
+    }
+
+    /**
+     * Only MAX_KEYS keys are tracked.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testBounded() {
+        MissTracker tracker = new MissTracker();
+        for (int i = 0; i < MissTracker.MAX_KEYS + 5; i++) {
+            tracker.record("jbeans.demo.key" + i, null);
+        }
+        assertEquals(MissTracker.MAX_KEYS, tracker.getKeys().size());
+        assertEquals(5, tracker.getDroppedCount());
+        tracker.getKeys().add("jbeans.demo.other");
+    }
+}
@@ -0,0 +1,48 @@
+package org.jbeans.config;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class OffHeapMapTest {
+
+    /**
+     * The off heap table answers like the map it was built from.
+     */
+    @Test
+    public void testLookup() throws IOException {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            values.put("jbeans.flag." + i, Integer.toString(i));
+        }
+        values.put("jbeans.demo.größe", "groß");
+        values.put("jbeans.demo.emoji😀", "😀");
+        values.put("jbeans.demo.empty", "");
+        OffHeapMap offHeap = OffHeapMap.of(values);
+
+        assertEquals(values.size(), offHeap.size());
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), offHeap.get(entry.getKey()));
+        }
+        assertNull(offHeap.get("jbeans.flag.10000"));
+        assertNull(offHeap.get("jbeans.demo.gröss"));
+        assertNull(offHeap.get(42));
+        assertFalse(offHeap.containsKey("jbeans.flag"));
+        assertEquals(values, offHeap);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        OffHeapMap offHeap = OffHeapMap.of(new HashMap<String, String>());
+        assertTrue(offHeap.isEmpty());
+        assertNull(offHeap.get("jbeans.demo.key"));
+        assertFalse(offHeap.entrySet().iterator().hasNext());
+    }
+}
@@ -0,0 +1,98 @@
+package org.jbeans.config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class PropertiesFormatTest {
+
+    static final String CONTENT = "# comment\r\n"
+            + "   ! another comment \\\n"
+            + "jbeans.demo.plain=value\n"
+            + "jbeans.demo.colon : with colon\n"
+            + "jbeans.demo.space   spaced value  \n"
+            + "jbeans.demo.continued = first, \\\n"
+            + "      second, \\\r\n"
+            + "  third\n"
+            + "\n"
+            + "jbeans.demo.escaped\\ key\\=x = tab\\there\\nnewline \\\\ backslash\n"
+            + "jbeans.demo.unicode=caf\\u00e9 über\n"
+            + "jbeans.demo.secret=ENC(G6N718UuyPE5bHyWKyuLQSm02auQPUtm)\n"
+            + "jbeans.demo.empty\n"
+            + "jbeans.demo.plain=duplicate wins\n"
+            + "jbeans.demo.last=no newline\\";
+
+    /**
+     * The parser reads what Properties.load reads.
+     */
+    @Test
+    public void testCompatibleWithProperties() throws IOException {
+        byte[] bytes = CONTENT.getBytes(StandardCharsets.ISO_8859_1);
+        Properties expected = new Properties();
+        expected.load(new ByteArrayInputStream(bytes));
+
+        Map<String, String> parsed = PropertiesFormat.parse(ByteBuffer.wrap(bytes));
+        Map<String, String> properties = new HashMap<>();
+        for (String key : expected.stringPropertyNames()) {
+            properties.put(key, expected.getProperty(key));
+        }
+        assertEquals(properties, parsed);
+        assertEquals("first, second, third", parsed.get("jbeans.demo.continued"));
+        assertEquals("ENC(G6N718UuyPE5bHyWKyuLQSm02auQPUtm)", parsed.get("jbeans.demo.secret"));
+    }
+
+    /**
+     * Updates keep comments and the order of the entries.
+     */
+    @Test
+    public void testUpdateKeepsLayout() {
+        String content = "# settings\n"
+                + "jbeans.demo.a=1\n"
+                + "\n"
+                + "# the b setting\n"
+                + "jbeans.demo.b = 2, \\\n"
+                + "    3\n"
+                + "jbeans.demo.c=3\n";
+        Map<String, String> changes = new LinkedHashMap<>();
+        changes.put("jbeans.demo.b", "two");
+        changes.put("jbeans.demo.c", null);
+        changes.put("jbeans.demo.d", "new");
+        byte[] updated = PropertiesFormat.update(ByteBuffer.wrap(content.getBytes(StandardCharsets.ISO_8859_1)), changes);
+
+        assertEquals("# settings\n"
+                + "jbeans.demo.a=1\n"
+                + "\n"
+                + "# the b setting\n"
+                + "jbeans.demo.b=two\n"
+                + "jbeans.demo.d=new\n", new String(updated, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Written values read back unchanged, with Properties and the parser.
+     */
+    @Test
+    public void testUpdateEscapes() throws IOException {
+        Map<String, String> changes = new LinkedHashMap<>();
+        changes.put("jbeans.demo.key with:separators=", " leading space\ttab\n#!\\ é€");
+        byte[] updated = PropertiesFormat.update(ByteBuffer.wrap("jbeans.demo.a=1".getBytes(StandardCharsets.ISO_8859_1)), changes);
+
+        Properties props = new Properties();
+        props.load(new ByteArrayInputStream(updated));
+        assertEquals("1", props.getProperty("jbeans.demo.a"));
+        assertEquals(changes.get("jbeans.demo.key with:separators="), props.getProperty("jbeans.demo.key with:separators="));
+        assertEquals(changes.get("jbeans.demo.key with:separators="),
+                PropertiesFormat.parse(ByteBuffer.wrap(updated)).get("jbeans.demo.key with:separators="));
+    }
+}
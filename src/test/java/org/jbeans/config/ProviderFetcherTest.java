@@ -0,0 +1,191 @@
+package org.jbeans.config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Priority;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class ProviderFetcherTest {
+
+    ConfigurationMetrics metrics;
+    ProviderFetcher fetcher;
+
+    @Priority(200)
+    static class OverridingProvider implements ConfigurationProvider {
+
+        @Override
+        public Map<String, String> getConfiguration() {
+            return Collections.singletonMap("jbeans.demo.key", "overridden");
+        }
+    }
+
+    static class DefaultProvider implements ConfigurationProvider {
+
+        @Override
+        public Map<String, String> getConfiguration() {
+            return Collections.singletonMap("jbeans.demo.key", "default");
+        }
+    }
+
+    static class SlowProvider implements ConfigurationProvider {
+
+        @Override
+        public Map<String, String> getConfiguration() {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return Collections.singletonMap("jbeans.demo.slow", "late");
+        }
+    }
+
+    static class FlakyProvider implements ConfigurationProvider {
+
+        final AtomicBoolean broken = new AtomicBoolean();
+
+        @Override
+        public Map<String, String> getConfiguration() {
+            return Collections.singletonMap("jbeans.demo.flaky", "ok");
+        }
+
+        @Override
+        public void refresh() throws ConfigurationException {
+            if (broken.get()) {
+                throw new ConfigurationException("source unavailable");
+            }
+        }
+    }
+
+    static class InPlaceProvider implements ConfigurationProvider {
+
+        final Map<String, String> values = new HashMap<>();
+
+        @Override
+        public Map<String, String> getConfiguration() {
+            return values;
+        }
+    }
+
+    static class ThreadRecordingProvider implements ConfigurationProvider {
+
+        volatile String thread;
+
+        @Override
+        public Map<String, String> getConfiguration() {
+            thread = Thread.currentThread().getName();
+            return Collections.singletonMap("jbeans.demo.key", "recorded");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        metrics = new ConfigurationMetrics();
+        fetcher = new ProviderFetcher(metrics);
+    }
+
+    @After
+    public void tearDown() {
+        fetcher.close();
+    }
+
+    /**
+     * Providers are merged by ordinal, whatever order CDI returns them in.
+     */
+    @Test
+    public void testMergeOrderIsByOrdinal() {
+        List<ConfigurationProvider> providers = Arrays.<ConfigurationProvider>asList(new OverridingProvider(), new DefaultProvider());
+        List<ConfigurationLayer> layers = fetcher.fetch(providers, false, 5000);
+
+        assertEquals(2, layers.size());
+        assertEquals("default", layers.get(0).asMap().get("jbeans.demo.key"));
+        assertEquals("overridden", layers.get(1).asMap().get("jbeans.demo.key"));
+        assertEquals(OverridingProvider.class.getName(), layers.get(1).getName());
+    }
+
+    /**
+     * A slow provider is reported and does not hold up the others.
+     */
+    @Test
+    public void testSlowProviderTimesOut() {
+        List<ConfigurationProvider> providers = Arrays.<ConfigurationProvider>asList(new SlowProvider(), new DefaultProvider());
+        long start = System.currentTimeMillis();
+        List<ConfigurationLayer> layers = fetcher.fetch(providers, false, 200);
+
+        assertTrue(System.currentTimeMillis() - start < 4000);
+        assertEquals(1, layers.size());
+        assertEquals("default", layers.get(0).asMap().get("jbeans.demo.key"));
+        assertEquals(1, metrics.getProviderTimeoutCount());
+    }
+
+    /**
+     * A provider that fails to refresh keeps its last configuration.
+     */
+    @Test
+    public void testFailedProviderKeepsLastConfiguration() {
+        FlakyProvider flaky = new FlakyProvider();
+        List<ConfigurationProvider> providers = Collections.<ConfigurationProvider>singletonList(flaky);
+        fetcher.fetch(providers, true, 5000);
+
+        flaky.broken.set(true);
+        List<ConfigurationLayer> layers = fetcher.fetch(providers, true, 5000);
+        assertEquals(1, layers.size());
+        assertEquals("ok", layers.get(0).asMap().get("jbeans.demo.flaky"));
+        assertEquals(1, metrics.getProviderFailureCount());
+    }
+
+    /**
+     * A provider that changes its map in place publishes the change on the
+     * next fetch, and the earlier snapshot keeps the earlier value.
+     */
+    @Test
+    public void testProviderChangingItsMapInPlace() {
+        InPlaceProvider provider = new InPlaceProvider();
+        provider.values.put("jbeans.demo.key", "one");
+        List<ConfigurationProvider> providers = Collections.<ConfigurationProvider>singletonList(provider);
+        ConfigurationStore store = new ConfigurationStore();
+        ConfigurationSnapshot first = store.replaceLayers(fetcher.fetch(providers, true, 5000));
+
+        provider.values.put("jbeans.demo.key", "two");
+        ConfigurationSnapshot second = store.replaceLayers(fetcher.fetch(providers, true, 5000));
+
+        assertEquals(first.getVersion() + 1, second.getVersion());
+        assertEquals("two", second.get("jbeans.demo.key"));
+        assertEquals("one", first.get("jbeans.demo.key"));
+    }
+
+    /**
+     * Providers run on the executor of the container, the fetcher does not
+     * start threads of its own.
+     */
+    @Test
+    public void testFetchRunsOnTheGivenExecutor() {
+        ExecutorService managed = Executors.newSingleThreadExecutor(task -> new Thread(task, "managed"));
+        try {
+            fetcher.setExecutor(managed);
+            ThreadRecordingProvider provider = new ThreadRecordingProvider();
+            List<ConfigurationLayer> layers = fetcher.fetch(Collections.<ConfigurationProvider>singletonList(provider), false, 5000);
+
+            assertEquals("recorded", layers.get(0).asMap().get("jbeans.demo.key"));
+            assertEquals("managed", provider.thread);
+            fetcher.close();
+            assertFalse(managed.isShutdown());
+        } finally {
+            managed.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.jbeans.config;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class ReplicatorTest {
+
+    /*
+     * A node: the properties it applied, kept up to date by its replicator.
+     */
+    static final class Node {
+
+        final Map<String, String> values = new ConcurrentHashMap<>();
+        final Replicator replicator;
+
+        Node(String name, Path dir, int compactThreshold) throws IOException {
+            replicator = new Replicator(name, new SharedDirectoryTransport(dir, compactThreshold), 60000, mutations -> {
+                for (Map.Entry<String, String> change : merge(mutations).entrySet()) {
+                    if (change.getValue() == null) {
+                        values.remove(change.getKey());
+                    } else {
+                        values.put(change.getKey(), change.getValue());
+                    }
+                }
+            });
+            replicator.start();
+        }
+
+        private Map<String, String> merge(List<ConfigurationMutation> mutations) {
+            return replicator.merge(mutations);
+        }
+
+        void put(String key, String value) {
+            values.put(key, value);
+            replicator.publish(Collections.singletonMap(key, value));
+        }
+
+        void remove(String key) {
+            values.remove(key);
+            replicator.publish(Collections.singletonMap(key, (String) null));
+        }
+    }
+
+    Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("jbeans-replication");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Changes reach the other node, and concurrent changes of a property end
+     * with the same winner on both nodes.
+     */
+    @Test
+    public void testNodesConverge() throws Exception {
+        Node a = new Node("node-a", dir, 1000);
+        Node b = new Node("node-b", dir, 1000);
+        a.put("db.host", "db1");
+        a.replicator.pollNow();
+        b.replicator.pollNow();
+        assertEquals("db1", b.values.get("db.host"));
+
+        // both at clock 2, node-b wins the tie.
+        a.put("db.port", "5432");
+        b.put("db.port", "6432");
+        a.replicator.pollNow();
+        b.replicator.pollNow();
+        a.replicator.pollNow();
+        assertEquals("6432", a.values.get("db.port"));
+        assertEquals("6432", b.values.get("db.port"));
+
+        // a change made after seeing the other node's wins.
+        a.put("db.port", "7432");
+        a.replicator.pollNow();
+        b.replicator.pollNow();
+        assertEquals("7432", b.values.get("db.port"));
+
+        b.remove("db.host");
+        b.replicator.pollNow();
+        a.replicator.pollNow();
+        assertNull(a.values.get("db.host"));
+        assertEquals(a.values, b.values);
+        assertTrue((Long) a.replicator.report().get("stale") + (Long) b.replicator.report().get("stale") > 0);
+        a.replicator.close();
+        b.replicator.close();
+    }
+
+    /**
+     * A node that joins late catches up from the compacted snapshot and the
+     * mutations published since.
+     */
+    @Test
+    public void testLateNodeCatchesUpFromSnapshot() throws Exception {
+        Node a = new Node("node-a", dir, 8);
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 40; i++) {
+            a.put("key" + (i % 5), "value" + i);
+            expected.put("key" + (i % 5), "value" + i);
+            a.replicator.pollNow();
+        }
+        a.remove("key0");
+        expected.remove("key0");
+        a.replicator.pollNow();
+        assertTrue(Files.exists(dir.resolve(SharedDirectoryTransport.SNAPSHOT)));
+        int files = 0;
+        try (DirectoryStream<Path> mutations = Files.newDirectoryStream(dir, "*" + SharedDirectoryTransport.SUFFIX)) {
+            for (Path mutation : mutations) {
+                files++;
+            }
+        }
+        assertTrue(files < 8);
+
+        Node c = new Node("node-c", dir, 8);
+        assertEquals(expected, c.values);
+        assertTrue((Long) c.replicator.report().get("received") < 20);
+        assertTrue(c.replicator.getClock() >= a.replicator.getClock());
+        a.replicator.close();
+        c.replicator.close();
+    }
+}
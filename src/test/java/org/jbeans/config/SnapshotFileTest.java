@@ -0,0 +1,80 @@
+package org.jbeans.config;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class SnapshotFileTest {
+
+    Path dir;
+    SnapshotFile snapshot;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("jbeans-snapshot");
+        snapshot = new SnapshotFile(dir.resolve("environment.properties.snapshot"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                Files.delete(f);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Layers are read back in order, encrypted values stay encrypted.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        Map<String, String> defaults = new HashMap<>();
+        defaults.put("jbeans.demo.key", "default");
+        defaults.put("jbeans.demo.secret", "ENC(G6N718UuyPE5bHyWKyuLQSm02auQPUtm)");
+        Map<String, String> overriding = new HashMap<>();
+        overriding.put("jbeans.demo.key", "überschrieben");
+        snapshot.write(7, Arrays.asList(new ConfigurationLayer("DefaultProvider", defaults),
+                new ConfigurationLayer("OverridingProvider", overriding)));
+
+        List<ConfigurationLayer> layers = snapshot.read();
+        assertEquals(2, layers.size());
+        assertEquals("DefaultProvider", layers.get(0).getName());
+        assertEquals(defaults, layers.get(0).asMap());
+        assertEquals("OverridingProvider", layers.get(1).getName());
+        assertEquals(overriding, layers.get(1).asMap());
+    }
+
+    @Test
+    public void testMissingSnapshot() throws IOException {
+        assertNull(snapshot.read());
+    }
+
+    /**
+     * A snapshot that fails its checksum is rejected.
+     */
+    @Test(expected = IOException.class)
+    public void testCorruptSnapshotIsRejected() throws IOException {
+        snapshot.write(1, Arrays.asList(new ConfigurationLayer("DefaultProvider", Collections.singletonMap("jbeans.demo.key", "value"))));
+        byte[] bytes = Files.readAllBytes(snapshot.getFile());
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(snapshot.getFile(), bytes);
+        snapshot.read();
+    }
+}
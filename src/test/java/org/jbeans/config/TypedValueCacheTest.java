@@ -0,0 +1,63 @@
+package org.jbeans.config;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class TypedValueCacheTest {
+
+    TypedValueCache cache = new TypedValueCache();
+
+    /**
+     * Test of get method, of class TypedValueCache.
+     */
+    @Test
+    public void testValueIsParsedOncePerRawValue() throws ConfigurationException {
+        Object first = cache.get("jbeans.config.demo.int", new String("1000"), ValueType.LONG);
+        Object second = cache.get("jbeans.config.demo.int", new String("1000"), ValueType.LONG);
+        assertEquals(1000L, first);
+        assertSame(first, second);
+
+        Object changed = cache.get("jbeans.config.demo.int", "2000", ValueType.LONG);
+        assertEquals(2000L, changed);
+    }
+
+    /**
+     * The same key converted to different types is cached per type.
+     */
+    @Test
+    public void testKeyIsCachedPerType() throws ConfigurationException {
+        assertEquals(1, cache.get("jbeans.config.demo.int", "1", ValueType.INTEGER));
+        assertEquals(1L, cache.get("jbeans.config.demo.int", "1", ValueType.LONG));
+        assertEquals(1.0f, cache.get("jbeans.config.demo.int", "1", ValueType.FLOAT));
+    }
+
+    /**
+     * Unconfigured keys convert to the producer defaults.
+     */
+    @Test
+    public void testDefaults() throws ConfigurationException {
+        assertEquals(0L, cache.get("missing", null, ValueType.LONG));
+        assertEquals(0, cache.get("missing", null, ValueType.INTEGER));
+        assertEquals(0.0f, cache.get("missing", null, ValueType.FLOAT));
+        assertEquals(Boolean.FALSE, cache.get("missing", null, ValueType.BOOLEAN));
+    }
+
+    /**
+     * Malformed values are reported with the key they belong to.
+     */
+    @Test
+    public void testMalformedValueNamesKey() {
+        try {
+            cache.get("jbeans.config.demo.int", "one", ValueType.INTEGER);
+            fail("expected ConfigurationException");
+        } catch (ConfigurationException ex) {
+            assertTrue(ex.getMessage().contains("jbeans.config.demo.int"));
+            assertTrue(ex.getCause() instanceof NumberFormatException);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.jbeans.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jhogan
+ *
+ */
+public class WriteBehindPersisterTest {
+
+    Path dir;
+    Path file;
+    WriteBehindPersister persister;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("jbeans-write");
+        file = dir.resolve("environment.properties");
+        Files.write(file, "jbeans.demo.keep=1\njbeans.demo.drop=2\n".getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (persister != null) {
+            persister.close();
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                Files.delete(f);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Changes submitted within the delay are written together, the last
+     * change of a key wins.
+     */
+    @Test
+    public void testChangesAreCoalesced() throws Exception {
+        persister = new WriteBehindPersister(file, 200);
+        CompletableFuture<Void> first = persister.put("jbeans.demo.a", "1");
+        CompletableFuture<Void> second = persister.put("jbeans.demo.a", "2");
+        CompletableFuture<Void> third = persister.remove("jbeans.demo.drop");
+        assertSame(first, second);
+        assertSame(first, third);
+
+        WriteBehindPersister.await(third);
+        Properties props = load();
+        assertEquals("2", props.getProperty("jbeans.demo.a"));
+        assertEquals("1", props.getProperty("jbeans.demo.keep"));
+        assertNull(props.getProperty("jbeans.demo.drop"));
+        assertOnlyPropertiesFileLeft();
+    }
+
+    /**
+     * Concurrent callers never lose each other's changes.
+     */
+    @Test
+    public void testConcurrentChangesAreNotLost() throws Exception {
+        persister = new WriteBehindPersister(file, 1);
+        final int threads = 8;
+        final int updates = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<CompletableFuture<Void>> writes = new ArrayList<>();
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final String prefix = "writer" + t + ".";
+            writers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int i = 0; i < updates; i++) {
+                    CompletableFuture<Void> write = persister.put(prefix + i, Integer.toString(i));
+                    synchronized (writes) {
+                        writes.add(write);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        for (CompletableFuture<Void> write : writes) {
+            WriteBehindPersister.await(write);
+        }
+
+        assertEquals(threads * updates + 2, load().size());
+        assertOnlyPropertiesFileLeft();
+    }
+
+    /**
+     * A failed write completes the future exceptionally.
+     */
+    @Test(expected = ConfigurationException.class)
+    public void testMissingFileFailsWrite() throws Exception {
+        Files.delete(file);
+        persister = new WriteBehindPersister(file, 0);
+        WriteBehindPersister.await(persister.put("jbeans.demo.a", "1"));
+    }
+
+    /**
+     * The rewritten file keeps the permissions of the file it replaces.
+     */
+    @Test
+    public void testWriteKeepsPermissions() throws Exception {
+        Assume.assumeNotNull(Files.getFileAttributeView(file, PosixFileAttributeView.class));
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-rw-r--"));
+        persister = new WriteBehindPersister(file, 0);
+        WriteBehindPersister.await(persister.put("jbeans.demo.a", "1"));
+
+        assertEquals("1", load().getProperty("jbeans.demo.a"));
+        assertEquals("rw-rw-r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+        assertOnlyPropertiesFileLeft();
+    }
+
+    private Properties load() throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        return props;
+    }
+
+    private void assertOnlyPropertiesFileLeft() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                assertEquals(file, f);
+            }
+        }
+    }
+}